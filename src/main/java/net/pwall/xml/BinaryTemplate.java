@@ -0,0 +1,426 @@
+/*
+ * @(#) BinaryTemplate.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.Text;
+
+/**
+ * Binary form of a template document.  The binary form holds the nodes of the template DOM with all names and text
+ * in a de-duplicated string table, and can be converted back to a DOM in a single sequential pass, without the cost of
+ * XML parsing.  The source location of each element, recorded when the source was parsed, is held with the element
+ * (see {@link TemplateException#getLine()}).
+ *
+ * <p>The binary form records the size, the modification time and a checksum of the XML source from which it was
+ * created.  When a template is loaded, the source is read and its checksum compared only if its size or modification
+ * time differ from those recorded; when the source no longer matches (or the binary form was created by an incompatible
+ * version) the source is parsed instead.</p>
+ *
+ * @author  Peter Wall
+ */
+public class BinaryTemplate {
+
+    public static final String fileExtension = ".xtb";
+
+    private static final int magic = 0x58544A42; // "XTJB"
+    private static final int formatVersion = 3;
+
+    private static final int versionOffset = 4;
+    private static final int sourceLengthOffset = versionOffset + 4;
+    private static final int sourceModifiedOffset = sourceLengthOffset + 8;
+    private static final int sourceChecksumOffset = sourceModifiedOffset + 8;
+    private static final int payloadLengthOffset = sourceChecksumOffset + 8;
+    private static final int payloadCRCOffset = payloadLengthOffset + 4;
+    private static final int headerLength = payloadCRCOffset + 8;
+
+    private static final byte endTag = 0;
+    private static final byte elementTag = 1;
+    private static final byte textTag = 2;
+    private static final byte cdataTag = 3;
+    private static final byte commentTag = 4;
+    private static final byte piTag = 5;
+
+    private static final int noString = -1;
+
+    /**
+     * Write the binary form of a template document.
+     *
+     * @param   document        the template document
+     * @param   sourceLength    the size of the XML source of the document
+     * @param   sourceModified  the modification time of the XML source of the document (in milliseconds)
+     * @param   sourceChecksum  the checksum of the XML source of the document
+     * @param   os              the {@link OutputStream}
+     * @throws  IOException     on any I/O errors
+     */
+    public static void write(Document document, long sourceLength, long sourceModified, long sourceChecksum,
+            OutputStream os) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        DataOutputStream nodesOut = new DataOutputStream(nodes);
+        NodeList children = document.getChildNodes();
+        for (int i = 0, n = children.getLength(); i < n; i++)
+            writeNode(children.item(i), strings, nodesOut);
+        nodesOut.writeByte(endTag);
+        nodesOut.flush();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(nodes.size() + strings.byteLength + 64);
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        strings.write(payloadOut);
+        nodes.writeTo(payloadOut);
+        payloadOut.flush();
+        byte[] payloadBytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes, 0, payloadBytes.length);
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(magic);
+        dos.writeInt(formatVersion);
+        dos.writeLong(sourceLength);
+        dos.writeLong(sourceModified);
+        dos.writeLong(sourceChecksum);
+        dos.writeInt(payloadBytes.length);
+        dos.writeLong(crc.getValue());
+        dos.write(payloadBytes);
+        dos.flush();
+    }
+
+    private static void writeNode(Node node, StringTable strings, DataOutputStream dos) throws IOException {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            Element element = (Element)node;
+            dos.writeByte(elementTag);
+            dos.writeInt(strings.index(element.getNamespaceURI()));
+            dos.writeInt(strings.index(element.getTagName()));
+            int[] location = DocumentLoader.getLocation(element);
+            dos.writeInt(location != null ? location[0] : 0);
+            dos.writeInt(location != null ? location[1] : 0);
+            NamedNodeMap attributes = element.getAttributes();
+            int numAttributes = attributes.getLength();
+            dos.writeInt(numAttributes);
+            for (int i = 0; i < numAttributes; i++) {
+                Attr attr = (Attr)attributes.item(i);
+                dos.writeInt(strings.index(attr.getNamespaceURI()));
+                dos.writeInt(strings.index(attr.getName()));
+                dos.writeInt(strings.index(attr.getValue()));
+            }
+            NodeList children = element.getChildNodes();
+            for (int i = 0, n = children.getLength(); i < n; i++)
+                writeNode(children.item(i), strings, dos);
+            dos.writeByte(endTag);
+            break;
+        case Node.CDATA_SECTION_NODE:
+            dos.writeByte(cdataTag);
+            dos.writeInt(strings.index(((Text)node).getData()));
+            break;
+        case Node.TEXT_NODE:
+            dos.writeByte(textTag);
+            dos.writeInt(strings.index(((Text)node).getData()));
+            break;
+        case Node.COMMENT_NODE:
+            dos.writeByte(commentTag);
+            dos.writeInt(strings.index(node.getNodeValue()));
+            break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            ProcessingInstruction pi = (ProcessingInstruction)node;
+            dos.writeByte(piTag);
+            dos.writeInt(strings.index(pi.getTarget()));
+            dos.writeInt(strings.index(pi.getData()));
+            break;
+        default:
+            if (!(node instanceof DocumentType))
+                throw new IOException("Can't store node in binary template - " + node.getNodeName());
+        }
+    }
+
+    /**
+     * Read a template document from its binary form.
+     *
+     * @param   buffer          a {@link ByteBuffer} containing the binary form
+     * @param   sourceChecksum  the checksum of the current XML source of the document
+     * @return  the document, or {@code null} if the binary form is not compatible or does not match the source
+     * @throws  IOException     if the binary form is corrupt
+     */
+    public static Document read(ByteBuffer buffer, long sourceChecksum) throws IOException {
+        if (!isCompatible(buffer) || buffer.getLong(buffer.position() + sourceChecksumOffset) != sourceChecksum)
+            return null;
+        return readBody(buffer);
+    }
+
+    private static boolean isCompatible(ByteBuffer buffer) {
+        int base = buffer.position();
+        return buffer.remaining() >= headerLength && buffer.getInt(base) == magic &&
+                buffer.getInt(base + versionOffset) == formatVersion;
+    }
+
+    private static boolean matchesAttributes(ByteBuffer buffer, BasicFileAttributes attributes) {
+        int base = buffer.position();
+        return buffer.getLong(base + sourceLengthOffset) == attributes.size() &&
+                buffer.getLong(base + sourceModifiedOffset) == attributes.lastModifiedTime().toMillis();
+    }
+
+    private static Document readBody(ByteBuffer buffer) throws IOException {
+        int base = buffer.position();
+        int payloadLength = buffer.getInt(base + payloadLengthOffset);
+        long payloadCRC = buffer.getLong(base + payloadCRCOffset);
+        buffer.position(base + headerLength);
+        if (buffer.remaining() != payloadLength)
+            throw new IOException("Binary template truncated");
+        byte[] payload;
+        int offset;
+        if (buffer.hasArray()) {
+            payload = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        }
+        else {
+            payload = new byte[payloadLength];
+            buffer.get(payload);
+            offset = 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, offset, payloadLength);
+        if (crc.getValue() != payloadCRC)
+            throw new IOException("Binary template checksum error");
+        try {
+            return readPayload(ByteBuffer.wrap(payload, offset, payloadLength));
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Binary template corrupt", e);
+        }
+    }
+
+    private static Document readPayload(ByteBuffer buffer) throws IOException {
+        int numStrings = buffer.getInt();
+        String[] strings = new String[numStrings];
+        byte[] array = buffer.array();
+        for (int i = 0; i < numStrings; i++) {
+            int length = buffer.getInt();
+            int position = buffer.position();
+            strings[i] = new String(array, buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+            buffer.position(position + length);
+        }
+        Document document = newDocument();
+        Node current = document;
+        for (;;) {
+            byte tag = buffer.get();
+            if (tag == endTag) {
+                if (current == document)
+                    break;
+                current = current.getParentNode();
+                continue;
+            }
+            switch (tag) {
+            case elementTag:
+                Element element = document.createElementNS(getString(strings, buffer.getInt()),
+                        getString(strings, buffer.getInt()));
+                int line = buffer.getInt();
+                int column = buffer.getInt();
+                if (line > 0)
+                    DocumentLoader.setLocation(element, new int[] { line, column });
+                for (int i = 0, n = buffer.getInt(); i < n; i++) {
+                    String attrNamespace = getString(strings, buffer.getInt());
+                    String attrName = getString(strings, buffer.getInt());
+                    element.setAttributeNS(attrNamespace, attrName, getString(strings, buffer.getInt()));
+                }
+                current.appendChild(element);
+                current = element;
+                break;
+            case textTag:
+                current.appendChild(document.createTextNode(getString(strings, buffer.getInt())));
+                break;
+            case cdataTag:
+                current.appendChild(document.createCDATASection(getString(strings, buffer.getInt())));
+                break;
+            case commentTag:
+                current.appendChild(document.createComment(getString(strings, buffer.getInt())));
+                break;
+            case piTag:
+                String target = getString(strings, buffer.getInt());
+                current.appendChild(document.createProcessingInstruction(target, getString(strings, buffer.getInt())));
+                break;
+            default:
+                throw new IOException("Binary template corrupt - unexpected tag " + tag);
+            }
+        }
+        return document;
+    }
+
+    private static String getString(String[] strings, int index) {
+        return index == noString ? null : strings[index];
+    }
+
+    private static Document newDocument() throws IOException {
+        try {
+            return DocumentLoader.newDocument();
+        }
+        catch (Exception e) {
+            throw new IOException("Can't create document", e);
+        }
+    }
+
+    /**
+     * Calculate the checksum of the XML source of a template.
+     *
+     * @param   source  the source bytes
+     * @return  the checksum
+     */
+    public static long checksum(byte[] source) {
+        return checksum(ByteBuffer.wrap(source));
+    }
+
+    private static long checksum(ByteBuffer source) {
+        int length = source.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(source.duplicate());
+        return ((long)length << 32) ^ crc.getValue();
+    }
+
+    /**
+     * Create the binary form of a template file.
+     *
+     * @param   source          the XML source file
+     * @param   target          the binary file to be written
+     * @throws  TemplateException   if the source can not be read or parsed
+     */
+    public static void compile(File source, File target) throws TemplateException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+            byte[] sourceBytes = Files.readAllBytes(source.toPath());
+            Document document = parse(sourceBytes, source);
+            try (OutputStream os = new FileOutputStream(target)) {
+                write(document, sourceBytes.length, attributes.lastModifiedTime().toMillis(), checksum(sourceBytes),
+                        os);
+            }
+        }
+        catch (IOException e) {
+            throw new TemplateException("I/O error compiling template - " + source);
+        }
+    }
+
+    /**
+     * Load a template file, using the binary form if it exists and is current, and parsing the XML source otherwise.
+     * The XML source is read only if its size or modification time differ from those recorded in the binary form (to
+     * compare checksums), or if it must be parsed.  The document URI of the resulting document is set to the URI of the
+     * source file.
+     *
+     * @param   source          the XML source file
+     * @param   binary          the binary file
+     * @return  the document
+     * @throws  IOException     on any I/O errors reading the source
+     * @throws  TemplateException   if the source can not be parsed
+     */
+    public static Document load(File source, File binary) throws IOException, TemplateException {
+        BasicFileAttributes attributes = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+        ByteBuffer sourceBytes = null;
+        Document document = null;
+        if (binary.exists()) {
+            try (FileChannel channel = FileChannel.open(binary.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (isCompatible(buffer)) {
+                    if (matchesAttributes(buffer, attributes))
+                        document = readBody(buffer);
+                    else {
+                        sourceBytes = DocumentLoader.readFile(source);
+                        document = read(buffer, checksum(sourceBytes));
+                    }
+                }
+            }
+            catch (IOException ignore) {
+                // fall back to parsing the source
+            }
+        }
+        if (document == null)
+            document = parse(sourceBytes != null ? sourceBytes : DocumentLoader.readFile(source), source);
+        document.setDocumentURI(source.toURI().toString());
+        return document;
+    }
+
+    private static Document parse(byte[] sourceBytes, File source) throws TemplateException {
+        return parse(ByteBuffer.wrap(sourceBytes), source);
+    }
+
+    private static Document parse(ByteBuffer sourceBytes, File source) throws TemplateException {
+        try {
+            return DocumentLoader.parse(sourceBytes, source.toURI().toString(), true);
+        }
+        catch (Exception e) {
+            throw new TemplateException("Parsing error reading file - " + source);
+        }
+    }
+
+    private static class StringTable {
+
+        private final Map<String, Integer> map = new HashMap<>();
+        private final List<byte[]> list = new ArrayList<>();
+        private int byteLength = 0;
+
+        public int index(String str) {
+            if (str == null)
+                return noString;
+            Integer index = map.get(str);
+            if (index == null) {
+                index = list.size();
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                list.add(bytes);
+                byteLength += bytes.length + 4;
+                map.put(str, index);
+            }
+            return index;
+        }
+
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(list.size());
+            for (byte[] bytes : list) {
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+        }
+
+    }
+
+}
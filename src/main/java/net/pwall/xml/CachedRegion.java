@@ -0,0 +1,201 @@
+/*
+ * @(#) CachedRegion.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.w3c.dom.Element;
+
+import net.pwall.el.ExpressionException;
+
+/**
+ * The recorded output of one execution of a {@code <region>} element, with the variables on which it depends.  While
+ * the region is processed, every identifier resolved from outside the region is recorded: for a variable set on the
+ * processor (by {@link TemplateProcessor#setVariable(String, Object)}), the version of the variable; for a variable
+ * set within the template ({@code <set>}, {@code <for>} or {@code <param>}), its value, which must be a string,
+ * number, boolean or character for the region to be re-usable.  The output may be re-used as long as every recorded
+ * dependency is unchanged.  A region that calls a function not declared pure is never re-used.
+ *
+ * @author  Peter Wall
+ */
+class CachedRegion {
+
+    private static final long valueDependency = -1;
+    private static final long absentDependency = -2;
+
+    private final Element element;
+    private final TemplateContext variables;
+    private final Map<String, Long> versions;
+    private final Map<String, Dependency> dependencies;
+    private final List<CachedRegion> nested;
+    private final SAXRecorder output;
+    private boolean cacheable;
+
+    /**
+     * Construct a {@code CachedRegion}.
+     *
+     * @param   element     the {@code <region>} element
+     * @param   variables   the context holding the variables set on the processor
+     * @param   versions    the versions of the variables set on the processor
+     */
+    CachedRegion(Element element, TemplateContext variables, Map<String, Long> versions) {
+        this.element = element;
+        this.variables = variables;
+        this.versions = versions;
+        dependencies = new HashMap<>();
+        nested = new ArrayList<>();
+        output = new SAXRecorder();
+        cacheable = true;
+    }
+
+    Element getElement() {
+        return element;
+    }
+
+    SAXRecorder getOutput() {
+        return output;
+    }
+
+    /**
+     * Get the regions processed (or re-used) within this region, in the order they were processed.
+     *
+     * @return  the nested regions
+     */
+    List<CachedRegion> getNested() {
+        return nested;
+    }
+
+    /**
+     * Record a dependency on an identifier resolved from outside the region.  This may be called from more than one
+     * thread when the region contains a {@code <parallel>} element.
+     *
+     * @param   identifier  the identifier
+     * @param   outer       the context enclosing the region
+     */
+    synchronized void record(String identifier, TemplateContext outer) {
+        if (cacheable && !dependencies.containsKey(identifier)) {
+            Dependency dependency = capture(identifier, outer);
+            if (dependency != null)
+                dependencies.put(identifier, dependency);
+            else
+                cacheable = false;
+        }
+    }
+
+    /**
+     * Record a call to a function that has not been declared pure: the output of the region may not be re-used, since
+     * the function may return a different result next time.
+     */
+    synchronized void recordImpureCall() {
+        cacheable = false;
+    }
+
+    /**
+     * Test whether the recorded output may be re-used in the given context.  Each identifier is resolved in the
+     * context, so that an enclosing region that is being recorded acquires the same dependencies.
+     *
+     * @param   outer   the context enclosing the region
+     * @return  {@code true} if no dependency has changed
+     */
+    boolean isValid(TemplateContext outer) {
+        if (!cacheable)
+            return false;
+        for (Map.Entry<String, Dependency> entry : dependencies.entrySet()) {
+            String identifier = entry.getKey();
+            outer.resolve(identifier);
+            if (!entry.getValue().equals(capture(identifier, outer)))
+                return false;
+        }
+        return true;
+    }
+
+    private Dependency capture(String identifier, TemplateContext outer) {
+        TemplateContext owner = outer.getDefiningContext(identifier);
+        if (owner == null)
+            return new Dependency(absentDependency, null);
+        for (TemplateContext context = variables; context != null; context = context.getParent()) {
+            if (context == owner) {
+                Long version = versions.get(identifier);
+                return new Dependency(version != null ? version : 0, null);
+            }
+        }
+        try {
+            Object value = owner.resolve(identifier).evaluate();
+            return isSimpleValue(value) ? new Dependency(valueDependency, value) : null;
+        }
+        catch (ExpressionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Test whether a value is immutable and compared by {@code equals()}.
+     *
+     * @param   value   the value
+     * @return  {@code true} if the value is a string, number, boolean or character
+     */
+    static boolean isSimpleValue(Object value) {
+        return value == null || value instanceof String || value instanceof Integer || value instanceof Long ||
+                value instanceof Double || value instanceof Boolean || value instanceof Character ||
+                value instanceof Short || value instanceof Byte || value instanceof Float ||
+                value instanceof BigDecimal || value instanceof BigInteger;
+    }
+
+    private static class Dependency {
+
+        private final long version;
+        private final Object value;
+
+        Dependency(long version, Object value) {
+            this.version = version;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof Dependency))
+                return false;
+            Dependency dependency = (Dependency)other;
+            return version == dependency.version && Objects.equals(value, dependency.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(version) ^ Objects.hashCode(value);
+        }
+
+    }
+
+}
@@ -0,0 +1,1651 @@
+/*
+ * @(#) CompiledTemplate.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+
+import net.pwall.el.Constant;
+import net.pwall.el.Expression;
+import net.pwall.el.Parser;
+import net.pwall.el.Resolver;
+
+/**
+ * Compiled form of a template document.  This holds information derived from the template DOM when the template is
+ * loaded, so that the work of deriving it is not repeated each time the template is processed.  The compiled form is
+ * not modified after it is created (other than the links to included documents, published together when complete, and
+ * the cache of dynamic includes, which is thread-safe), and may be shared between threads.  Documents are compiled
+ * outside the lock on the cache of compiled forms (see {@link #get(Document, String, URL, boolean, Map, boolean,
+ * boolean)}), so that templates may be loaded in parallel.
+ *
+ * <p>The compiled forms of a document are held in a user data slot on the document itself, not in a global map; the
+ * compiled forms refer to the document and its nodes, so they are retained exactly as long as the document is.</p>
+ *
+ * <p>Includes with a static {@code href} are resolved when the template is compiled, and linked to the compiled form
+ * of the included document.  The resolution of dynamic {@code href}s is cached by {@code href}; both forms of linking
+ * apply only when the base URL of the include is the URL of this template (an include in a macro called from another
+ * document is resolved against the URL of the calling document, and is not linked).</p>
+ *
+ * <p>Conditions ({@code if} attributes and the tests of {@code <if>}, {@code <switch>} and {@code <case>} elements) and
+ * the values of {@code <set>} elements are folded when they depend only on literals and on the static variables of
+ * the processor, and elements that can never be processed are pruned.  A static variable is not treated as constant
+ * in a template any document of which binds the same name (in {@code <set>}, {@code <for>}, {@code <param>} or
+ * {@code <intercept>}); see {@link #findConstants(Document, URL, String, Map)}.
+ * The compiled form is specific to the set of static variables, and a bounded number of variants is kept for each
+ * document, the least recently used being discarded when the limit is reached.</p>
+ *
+ * <p>Text and output attributes in the body of a {@code <for>} element that do not refer to any name bound within the
+ * loop (the {@code name} and {@code index} of the loop, and the names bound by {@code <set>}, {@code <for>},
+ * {@code <param>} and {@code <intercept>} elements within it) are marked as loop-invariant; the processor substitutes
+ * them once on each entry to the loop, and re-uses the result for each iteration.</p>
+ *
+ * <p>Text and output attribute values that occur more than once in the document are recorded as common expressions,
+ * with the identifiers they refer to; where all of those identifiers refer to variables set on the processor (or to
+ * nothing), the processor substitutes the value once for each use of the template.</p>
+ *
+ * <p>A minified form may be compiled, in which each run of whitespace in the text of the document (outside
+ * {@code ${...}} expressions) is reduced to a single space, and whitespace-only text between block-level HTML elements
+ * is removed.  Text within {@code <pre>}, {@code <textarea>}, {@code <script>} and {@code <style>} elements, and within
+ * elements with {@code xml:space="preserve"}, is left unchanged.  Comments are never output.  The content of a macro or
+ * an included template may be output within such an element, so the processor records at run time whether the output
+ * is being preserved, and if so takes the content from the unminified form ({@link #getUnminified()}).</p>
+ *
+ * <p>An output element with only static attributes and static content (text without expressions, and elements of
+ * the same kind) is recorded as static, and the outermost such elements as static runs.  When compressed output is
+ * produced without indentation, the processor keeps the formatted output of each static run in pre-compressed form
+ * (see {@link #getChunk(Element, int)}), so that it is not compressed again on each use of the template.</p>
+ *
+ * @author  Peter Wall
+ */
+class CompiledTemplate {
+
+    static final int defaultMaxVariants = 16;
+    static final int chunkSlots = 12;
+    private static final Object notConstant = new Object();
+    private static final String anyName = "*";
+    private static final Parser parser = Expression.getDefaultParser();
+    private static final String xmlNamespace = "http://www.w3.org/XML/1998/namespace";
+    private static final Set<String> preserveElements = new HashSet<>(Arrays.asList("pre", "textarea", "script",
+            "style"));
+    private static final Set<String> blockElements = new HashSet<>(Arrays.asList("html", "head", "body", "title",
+            "meta", "link", "base", "address", "article", "aside", "blockquote", "caption", "col", "colgroup", "dd",
+            "details", "dialog", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "h1", "h2",
+            "h3", "h4", "h5", "h6", "header", "hr", "li", "main", "nav", "ol", "optgroup", "option", "p", "pre",
+            "section", "summary", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul"));
+    private static final Set<String> operatorNames = new HashSet<>(Arrays.asList("and", "or", "not", "eq", "ne",
+            "lt", "gt", "le", "ge", "div", "mod", "empty", "instanceof"));
+    private static final Set<String> nonTextElements = new HashSet<>(Arrays.asList("html", "head", "table", "thead",
+            "tbody", "tfoot", "tr", "colgroup", "select", "optgroup"));
+
+    private static final String variantsKey = CompiledTemplate.class.getName() + ".variants";
+    private static final Object lock = DocumentLoader.userDataLock; // the compiled forms are in user data
+    private static int maxVariants = defaultMaxVariants;
+    private static long compileCount = 0;
+
+    private final Document document;
+    private final String namespace;
+    private final URL url;
+    private final String urlString;
+    private final Map<String, Object> staticVariables;
+    private final boolean minify;
+    private final Map<String, Object> constants;
+    private final Set<String> boundNames;
+    private final Map<Element, Contents> contentsMap;
+    private final Map<Element, Contents> trimmedContentsMap;
+    private final Map<Element, OutputAttributes> attributesMap;
+    private final List<Element> staticIncludes;
+    private volatile Map<Element, CompiledTemplate> includesMap;
+    private volatile List<String> unlinkedIncludes;
+    private final Map<String, CompiledTemplate> dynamicIncludesMap;
+    private final Map<Attr, Boolean> conditionsMap;
+    private final Map<Element, Element> switchMap;
+    private final Map<Element, Object> setMap;
+    private final Set<Element> prunedElements;
+    private final Set<Node> invariantNodes;
+    private final Set<Element> invariantLoops;
+    private final Map<String, String[]> commonExpressions;
+    private final Set<Element> staticElements;
+    private final Set<Element> staticRuns;
+    private final Map<Element, CompressedOutputStream.Chunk[]> chunks;
+    private Map<String, Node> expressionNodes;
+    private volatile Set<String> reachableBoundNames;
+    private volatile CompiledTemplate unminified;
+
+    private CompiledTemplate(Document document, String namespace, URL url, Map<String, Object> staticVariables,
+            boolean minify) {
+        this.document = document;
+        this.namespace = namespace;
+        this.url = url;
+        urlString = url == null ? null : url.toString();
+        this.staticVariables = staticVariables;
+        this.minify = minify;
+        contentsMap = new IdentityHashMap<>();
+        trimmedContentsMap = new IdentityHashMap<>();
+        attributesMap = new IdentityHashMap<>();
+        staticIncludes = new ArrayList<>();
+        includesMap = Collections.emptyMap();
+        unlinkedIncludes = Collections.emptyList();
+        dynamicIncludesMap = new ConcurrentHashMap<>();
+        conditionsMap = new IdentityHashMap<>();
+        switchMap = new IdentityHashMap<>();
+        setMap = new IdentityHashMap<>();
+        prunedElements = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        invariantNodes = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        invariantLoops = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        commonExpressions = new HashMap<>();
+        staticElements = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        staticRuns = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        chunks = new ConcurrentHashMap<>();
+        expressionNodes = new HashMap<>();
+        Element documentElement = document.getDocumentElement();
+        boundNames = new HashSet<>();
+        if (documentElement != null && !addBoundNames(documentElement, namespace, boundNames))
+            boundNames.add(anyName);
+        constants = findConstants();
+        reachableBoundNames = null;
+        if (documentElement != null) {
+            findLoopInvariants(documentElement);
+            compileElements(documentElement);
+        }
+        for (Element element : staticElements)
+            if (!staticElements.contains(element.getParentNode()))
+                staticRuns.add(element);
+        expressionNodes = null;
+    }
+
+    /**
+     * Get the compiled form of a template document, compiling it if necessary.  If the document has already been
+     * compiled, the existing compiled form is returned regardless of the URL with which it was compiled.
+     *
+     * @param   document        the template document
+     * @param   namespace       the namespace URI of the template elements and attributes
+     * @param   staticVariables the static variables of the processor
+     * @param   minify          {@code true} for the minified form
+     * @return  the compiled form
+     */
+    static CompiledTemplate get(Document document, String namespace, Map<String, Object> staticVariables,
+            boolean minify) {
+        return get(document, namespace, null, false, staticVariables, minify, true);
+    }
+
+    /**
+     * Get the compiled form of a template document loaded from the specified URL, compiling it (and resolving its
+     * static includes) if necessary.
+     *
+     * @param   document        the template document
+     * @param   namespace       the namespace URI of the template elements and attributes
+     * @param   url             the URL of the document (may be {@code null})
+     * @param   staticVariables the static variables of the processor
+     * @param   minify          {@code true} for the minified form
+     * @return  the compiled form
+     */
+    static CompiledTemplate get(Document document, String namespace, URL url, Map<String, Object> staticVariables,
+            boolean minify) {
+        return get(document, namespace, url, true, staticVariables, minify, true);
+    }
+
+    /**
+     * Get the compiled form of a template document, compiling it if necessary.  The cache of compiled forms is locked
+     * only to find or reserve the entry for the variant; the document is compiled, and its static includes are loaded
+     * and compiled, without holding the lock.  A thread that requires a variant being compiled by another thread waits
+     * for that variant only.
+     *
+     * <p>The compiled form is returned to the processor only when its includes have been linked.  When the includes
+     * are being linked, the compiled form of an included document is returned as soon as it has been created, so
+     * that recursive includes (in the same thread or in different threads) do not wait for each other; the links are
+     * published when complete (see {@link #getInclude(Element)}).</p>
+     *
+     * @param   document        the template document
+     * @param   namespace       the namespace URI of the template elements and attributes
+     * @param   url             the URL of the document (may be {@code null})
+     * @param   checkURL        {@code true} if an existing compiled form must have been compiled with the same URL
+     * @param   staticVariables the static variables of the processor
+     * @param   minify          {@code true} for the minified form
+     * @param   linked          {@code true} to wait until the includes of the compiled form have been linked
+     * @return  the compiled form
+     */
+    private static CompiledTemplate get(Document document, String namespace, URL url, boolean checkURL,
+            Map<String, Object> staticVariables, boolean minify, boolean linked) {
+        Variant variant;
+        synchronized (lock) {
+            for (;;) {
+                variant = find(document, namespace, staticVariables, minify);
+                if (variant == null || checkURL && !variant.isBaseURL(url)) {
+                    variant = new Variant(namespace, url, staticVariables, minify);
+                    add(document, variant);
+                    compileCount++;
+                    break;
+                }
+                if (variant.compiled != null && (variant.linked || !linked || variant.linker == Thread.currentThread()))
+                    return variant.compiled;
+                awaitVariant();
+            }
+        }
+        CompiledTemplate compiled = null;
+        try {
+            compiled = new CompiledTemplate(document, namespace, url, staticVariables, minify);
+            synchronized (lock) {
+                variant.compiled = compiled;
+                variant.linker = Thread.currentThread();
+                lock.notifyAll();
+            }
+            compiled.linkIncludes();
+        }
+        finally {
+            synchronized (lock) {
+                if (compiled == null) {
+                    // compilation failed - remove the entry so that a later request will try again
+                    List<Variant> variants = getVariants(document);
+                    if (variants != null)
+                        variants.remove(variant);
+                }
+                variant.linked = true;
+                variant.linker = null;
+                lock.notifyAll();
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Wait for a change in the state of the variants being compiled.  The caller must hold the lock on
+     * {@link #lock}.  Interruption is deferred until the wait is complete.
+     */
+    private static void awaitVariant() {
+        boolean interrupted = false;
+        try {
+            lock.wait();
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Set the maximum number of compiled variants (for different namespaces, sets of static variables or minification)
+     * to be kept for each document.  If the limit is reduced, the variants of a document in excess of the new limit
+     * are discarded when the document is next used.
+     *
+     * @param   max     the maximum number of variants
+     */
+    static void setMaxVariants(int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("Maximum variants must be at least 1 - " + max);
+        synchronized (lock) {
+            maxVariants = max;
+        }
+    }
+
+    static int getMaxVariants() {
+        synchronized (lock) {
+            return maxVariants;
+        }
+    }
+
+    /**
+     * Get the number of compiled variants currently kept for a document.
+     *
+     * @param   document    the document
+     * @return  the number of variants
+     */
+    static int getVariantCount(Document document) {
+        synchronized (lock) {
+            List<Variant> variants = getVariants(document);
+            return variants == null ? 0 : variants.size();
+        }
+    }
+
+    /**
+     * Get the number of times a document has been compiled (for any variant).
+     *
+     * @return  the number of compilations
+     */
+    static long getCompileCount() {
+        synchronized (lock) {
+            return compileCount;
+        }
+    }
+
+    /**
+     * Get the list of compiled variants of a document, in order of use (most recent last), discarding any in excess
+     * of the current limit.  The caller must hold the lock on {@link #lock}.
+     *
+     * @param   document    the document
+     * @return  the list of variants, or {@code null} if the document has not been compiled
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Variant> getVariants(Document document) {
+        List<Variant> variants = (List<Variant>)document.getUserData(variantsKey);
+        if (variants != null)
+            while (variants.size() > maxVariants)
+                variants.remove(0);
+        return variants;
+    }
+
+    private static Variant find(Document document, String namespace, Map<String, Object> staticVariables,
+            boolean minify) {
+        List<Variant> variants = getVariants(document);
+        if (variants != null) {
+            for (int i = 0, n = variants.size(); i < n; i++) {
+                Variant variant = variants.get(i);
+                if (variant.namespace.equals(namespace) && variant.staticVariables.equals(staticVariables) &&
+                        variant.minify == minify) {
+                    // keep the list in order of use, most recent last
+                    if (i < n - 1)
+                        variants.add(variants.remove(i));
+                    return variant;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void add(Document document, Variant variant) {
+        List<Variant> variants = getVariants(document);
+        if (variants == null) {
+            variants = new ArrayList<>();
+            document.setUserData(variantsKey, variants, null);
+        }
+        Variant existing = find(document, variant.namespace, variant.staticVariables, variant.minify);
+        if (existing != null)
+            variants.remove(existing);
+        else
+            while (variants.size() >= maxVariants)
+                variants.remove(0);
+        variants.add(variant);
+    }
+
+    /**
+     * Load and compile the documents included by includes with a static {@code href}, and link them to this compiled
+     * form.  The links are published together when complete.
+     */
+    private void linkIncludes() {
+        Map<Element, CompiledTemplate> links = new IdentityHashMap<>();
+        List<String> unlinked = new ArrayList<>();
+        for (Element element : staticIncludes) {
+            String href = element.getAttribute(TemplateProcessor.hrefAttrName);
+            try {
+                URL includeURL = url == null ? new URL(href) : new URL(url, href);
+                links.put(element, get(TemplateProcessor.getDocument(includeURL), namespace, includeURL, true,
+                        staticVariables, minify, false));
+            }
+            catch (Exception e) {
+                // leave unlinked - any error will be reported if and when the include is processed
+                unlinked.add(href);
+            }
+        }
+        staticIncludes.clear();
+        unlinkedIncludes = unlinked.isEmpty() ? Collections.<String>emptyList() :
+                Collections.unmodifiableList(unlinked);
+        includesMap = links;
+    }
+
+    Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Test whether an element is the outermost element of a static run (a static output element whose parent is not
+     * one).
+     *
+     * @param   element the element
+     * @return  {@code true} if the element starts a static run
+     */
+    boolean isStaticRun(Element element) {
+        return staticRuns.contains(element);
+    }
+
+    /**
+     * Get the pre-compressed output of a static run.  The output depends on the formatter and the whitespace option,
+     * and on whether whitespace is being preserved; the processor combines these into a slot number.
+     *
+     * @param   element the element starting the static run
+     * @param   slot    the slot number (0 to {@link #chunkSlots} - 1)
+     * @return  the chunk, or {@code null} if it has not been created
+     */
+    CompressedOutputStream.Chunk getChunk(Element element, int slot) {
+        CompressedOutputStream.Chunk[] array = chunks.get(element);
+        return array == null ? null : array[slot];
+    }
+
+    /**
+     * Store the pre-compressed output of a static run (see {@link #getChunk(Element, int)}).  If two threads create the
+     * same chunk concurrently, either may be kept.
+     *
+     * @param   element the element starting the static run
+     * @param   slot    the slot number
+     * @param   chunk   the chunk
+     */
+    void setChunk(Element element, int slot, CompressedOutputStream.Chunk chunk) {
+        CompressedOutputStream.Chunk[] array = chunks.get(element);
+        if (array == null) {
+            array = new CompressedOutputStream.Chunk[chunkSlots];
+            CompressedOutputStream.Chunk[] existing = chunks.putIfAbsent(element, array);
+            if (existing != null)
+                array = existing;
+        }
+        array[slot] = chunk;
+    }
+
+    /**
+     * Get the {@code href}s of static includes that could not be loaded when the template was compiled.
+     *
+     * @return  the list of {@code href}s
+     */
+    List<String> getUnlinkedIncludes() {
+        return unlinkedIncludes;
+    }
+
+    String getNamespace() {
+        return namespace;
+    }
+
+    URL getURL() {
+        return url;
+    }
+
+    Map<String, Object> getStaticVariables() {
+        return staticVariables;
+    }
+
+    boolean isMinify() {
+        return minify;
+    }
+
+    /**
+     * Get the unminified form of this compiled template, for use when the output of a macro or an included template is
+     * within an element in which whitespace is preserved.
+     *
+     * @return  the unminified form (this object, if it is not minified)
+     */
+    CompiledTemplate getUnminified() {
+        if (!minify)
+            return this;
+        CompiledTemplate result = unminified;
+        if (result == null) {
+            result = url != null ? get(document, namespace, url, staticVariables, false) :
+                    get(document, namespace, staticVariables, false);
+            unminified = result;
+        }
+        return result;
+    }
+
+    /**
+     * Test whether a URL is the URL of this template, and may therefore be used as the base URL for linked includes.
+     *
+     * @param   url     the URL (may be {@code null})
+     * @return  {@code true} if the URL is the URL of this template
+     */
+    boolean isBaseURL(URL url) {
+        if (url == this.url)
+            return true;
+        return url != null && urlString != null && urlString.equals(url.toString());
+    }
+
+    /**
+     * Get the compiled form of the document included by an include element with a static {@code href}.
+     *
+     * @param   element the include element
+     * @return  the compiled form of the included document, or {@code null} if the include was not linked
+     */
+    CompiledTemplate getInclude(Element element) {
+        return includesMap.get(element);
+    }
+
+    /**
+     * Get the compiled form of a document included with a dynamic {@code href}, if it has previously been resolved.
+     *
+     * @param   href    the {@code href}
+     * @return  the compiled form of the included document, or {@code null}
+     */
+    CompiledTemplate getDynamicInclude(String href) {
+        return dynamicIncludesMap.get(href);
+    }
+
+    void putDynamicInclude(String href, CompiledTemplate included) {
+        dynamicIncludesMap.put(href, included);
+    }
+
+    /**
+     * Get the folded value of a condition (an {@code if} attribute, or the {@code test} attribute of an
+     * {@code <if>} or {@code <case>} element).
+     *
+     * @param   attr    the attribute (may be {@code null})
+     * @return  the value of the condition, or {@code null} if it could not be evaluated when the template was compiled
+     */
+    Boolean getCondition(Attr attr) {
+        return conditionsMap.get(attr);
+    }
+
+    /**
+     * Get the case selected by a {@code <switch>} element, if all the tests up to and including that of the selected
+     * case could be evaluated when the template was compiled.
+     *
+     * @param   element the {@code <switch>} element
+     * @return  the selected {@code <case>} element, or {@code null}
+     */
+    Element getSwitchCase(Element element) {
+        return switchMap.get(element);
+    }
+
+    /**
+     * Get the folded value of a {@code <set>} element.
+     *
+     * @param   element the {@code <set>} element
+     * @return  the value, or {@code null} if it could not be evaluated when the template was compiled
+     */
+    Object getSetValue(Element element) {
+        return setMap.get(element);
+    }
+
+    /**
+     * Test whether the body of a {@code <for>} element contains any loop-invariant text or attributes.
+     *
+     * @param   element the {@code <for>} element
+     * @return  {@code true} if the loop has loop-invariant text or attributes
+     */
+    boolean hasInvariants(Element element) {
+        return invariantLoops.contains(element);
+    }
+
+    /**
+     * Get the identifiers referred to by a text or output attribute value that occurs more than once in the document.
+     *
+     * @param   str     the text or attribute value
+     * @return  the identifiers, or {@code null} if the value is not a common expression
+     */
+    String[] getCommonExpression(String str) {
+        return commonExpressions.get(str);
+    }
+
+    /**
+     * Get the contents of an element.  If the contents are to be trimmed, leading and trailing whitespace (and
+     * comments) are removed.
+     *
+     * @param   element the element
+     * @param   trim    {@code true} if the contents are to be trimmed
+     * @return  the contents
+     */
+    Contents getContents(Element element, boolean trim) {
+        Contents contents = (trim ? trimmedContentsMap : contentsMap).get(element);
+        return contents != null ? contents : compileContents(element, trim);
+    }
+
+    /**
+     * Get the attributes to be output for an element.
+     *
+     * @param   element the element
+     * @return  the attributes
+     */
+    OutputAttributes getOutputAttributes(Element element) {
+        OutputAttributes attributes = attributesMap.get(element);
+        return attributes != null ? attributes :
+                new OutputAttributes(element, namespace, Collections.<Node>emptySet());
+    }
+
+    /**
+     * Compile an element, the elements in its contents and the macros it contains.  The elements are taken from an
+     * explicit list rather than by recursion, so that the depth of nesting is not limited by the Java stack; each
+     * element is tested as a static output element after all of its descendants.
+     */
+    private void compileElements(Element root) {
+        List<Element> pending = new ArrayList<>();
+        List<Element> compiledElements = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Element element = pending.remove(pending.size() - 1);
+            Contents contents = compileElement(element);
+            compiledElements.add(element);
+            for (int i = contents.nodes.length; i > 0; ) {
+                Node node = contents.nodes[--i];
+                if (node instanceof Element)
+                    pending.add((Element)node);
+            }
+            for (int i = contents.macros.length; i > 0; )
+                pending.add(contents.macros[--i]);
+        }
+        for (int i = compiledElements.size(); i > 0; ) {
+            Element element = compiledElements.get(--i);
+            if (isStaticElement(element, contentsMap.get(element)))
+                staticElements.add(element);
+        }
+    }
+
+    private Contents compileElement(Element element) {
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+            if (child instanceof Element)
+                foldElement((Element)child);
+        Contents contents = compileContents(element, false);
+        contentsMap.put(element, contents);
+        // the contents of template elements (<if>, <for>, <macro> etc.) are trimmed
+        if (namespace.equals(element.getNamespaceURI())) {
+            Contents trimmedContents = compileContents(element, true);
+            trimmedContentsMap.put(element, trimmedContents);
+            countExpressions(element, trimmedContents);
+            if (element.getLocalName().equals(TemplateProcessor.includeElementName)) {
+                String href = element.getAttribute(TemplateProcessor.hrefAttrName);
+                if (!href.isEmpty() && isStatic(href))
+                    staticIncludes.add(element);
+            }
+        }
+        attributesMap.put(element, new OutputAttributes(element, namespace, invariantNodes));
+        countExpressions(element, contents);
+        return contents;
+    }
+
+    /**
+     * Test whether an element is a static output element: an element that is not a template element, has no template
+     * attributes and no attribute values with expressions, and contains only static text and static elements.  The
+     * child elements must already have been compiled.
+     */
+    private boolean isStaticElement(Element element, Contents contents) {
+        if (namespace.equals(element.getNamespaceURI()) || contents.macros.length > 0 ||
+                attributesMap.get(element).staticAttributes == null)
+            return false;
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0, n = attributes.getLength(); i < n; i++)
+            if (namespace.equals(attributes.item(i).getNamespaceURI()))
+                return false;
+        for (int i = 0, n = contents.nodes.length; i < n; i++) {
+            Node node = contents.nodes[i];
+            if (node instanceof Element ? !staticElements.contains(node) : contents.chars[i] == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count the occurrences of the text and output attribute values of an element, recording those that occur in more
+     * than one node as common expressions.
+     */
+    private void countExpressions(Element element, Contents contents) {
+        for (int i = 0, n = contents.nodes.length; i < n; i++)
+            if (contents.data[i] != null)
+                countExpression(contents.data[i], contents.nodes[i]);
+        if (!namespace.equals(element.getNamespaceURI())) {
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                Attr attr = (Attr)attributes.item(i);
+                if (!namespace.equals(attr.getNamespaceURI()))
+                    countExpression(attr.getValue(), attr);
+            }
+        }
+    }
+
+    private void countExpression(String str, Node node) {
+        if (isStatic(str) || commonExpressions.containsKey(str))
+            return;
+        Node previous = expressionNodes.put(str, node);
+        if (previous != null && previous != node) {
+            Set<String> identifiers = findIdentifiers(str);
+            if (identifiers != null)
+                commonExpressions.put(str, identifiers.toArray(new String[identifiers.size()]));
+        }
+    }
+
+    private Contents compileContents(Element element, boolean trim) {
+        NodeList childNodes = element.getChildNodes();
+        int start = 0;
+        int end = childNodes.getLength();
+        if (trim) {
+            while (start < end && XML.isCommentOrEmpty(childNodes.item(start)))
+                start++;
+            while (start < end && XML.isCommentOrEmpty(childNodes.item(end - 1)))
+                end--;
+        }
+        List<Element> macros = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
+        List<String> data = new ArrayList<>();
+        List<Node> invariant = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            Node childNode = childNodes.item(i);
+            short nodeType = childNode.getNodeType();
+            if (nodeType == Node.ELEMENT_NODE) {
+                Element childElement = (Element)childNode;
+                if (XML.matchNS(childElement, TemplateProcessor.macroElementName, namespace))
+                    macros.add(childElement);
+                else if (!prunedElements.contains(childElement)) {
+                    nodes.add(childElement);
+                    data.add(null);
+                }
+            }
+            else if (nodeType == Node.TEXT_NODE) {
+                String text = ((Text)childNode).getData();
+                if (trim) {
+                    if (i == start)
+                        text = XML.trimLeading(text);
+                    if (i == end - 1)
+                        text = XML.trimTrailing(text);
+                }
+                if (minify && !isPreserved(element))
+                    text = isRemovable(childNode, text) ? "" : collapseWhitespace(text);
+                if (text.length() > 0) {
+                    nodes.add(childNode);
+                    data.add(text);
+                    if (invariantNodes.contains(childNode))
+                        invariant.add(childNode);
+                }
+            }
+        }
+        return new Contents(macros.toArray(new Element[macros.size()]), nodes.toArray(new Node[nodes.size()]),
+                data.toArray(new String[data.size()]), invariant);
+    }
+
+    /**
+     * Test whether the whitespace in the content of an element is to be preserved in the minified form, because the
+     * element or one of its ancestors is a {@code <pre>}, {@code <textarea>}, {@code <script>} or {@code <style>}
+     * element, or has {@code xml:space="preserve"}.
+     */
+    private boolean isPreserved(Element element) {
+        for (Node node = element; node instanceof Element; node = node.getParentNode()) {
+            Element ancestor = (Element)node;
+            String space = ancestor.getAttributeNS(xmlNamespace, "space");
+            if (space.equals("preserve"))
+                return true;
+            if (space.equals("default"))
+                return false;
+            if (!namespace.equals(ancestor.getNamespaceURI()) &&
+                    preserveElements.contains(localName(ancestor).toLowerCase()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Test whether a text node may be omitted from the minified form: it must consist only of whitespace, and either be
+     * in an element that does not contain text (such as {@code <head>} or {@code <tr>}), or be between block-level
+     * elements (or between a block-level element and the start or end of the content of a block-level parent or of
+     * the document).
+     */
+    private boolean isRemovable(Node textNode, String text) {
+        for (int i = 0, n = text.length(); i < n; i++)
+            if (!isWhitespace(text.charAt(i)))
+                return false;
+        Node parent = textNode.getParentNode();
+        if (parent instanceof Element && !namespace.equals(parent.getNamespaceURI()) &&
+                nonTextElements.contains(localName((Element)parent).toLowerCase()))
+            return true;
+        Node previous = textNode.getPreviousSibling();
+        while (previous != null && XML.isCommentOrEmpty(previous))
+            previous = previous.getPreviousSibling();
+        Node next = textNode.getNextSibling();
+        while (next != null && XML.isCommentOrEmpty(next))
+            next = next.getNextSibling();
+        return isBlockBoundary(previous, parent) && isBlockBoundary(next, parent);
+    }
+
+    private boolean isBlockBoundary(Node sibling, Node parent) {
+        Node node = sibling != null ? sibling : parent;
+        if (!(node instanceof Element))
+            return false;
+        if (sibling == null && node == document.getDocumentElement())
+            return true;
+        Element element = (Element)node;
+        return !namespace.equals(element.getNamespaceURI()) &&
+                blockElements.contains(localName(element).toLowerCase());
+    }
+
+    private static String localName(Element element) {
+        String localName = element.getLocalName();
+        return localName != null ? localName : element.getTagName();
+    }
+
+    /**
+     * Reduce each run of whitespace in a string to a single space, leaving {@code ${...}} expressions (including any
+     * string literals within them) unchanged.
+     *
+     * @param   text    the string
+     * @return  the string with whitespace collapsed
+     */
+    static String collapseWhitespace(String text) {
+        int n = text.length();
+        StringBuilder sb = null;
+        int i = 0;
+        while (i < n) {
+            char ch = text.charAt(i);
+            if (ch == '$' && i + 1 < n && text.charAt(i + 1) == '{') {
+                int end = findExpressionEnd(text, i + 2);
+                if (sb != null)
+                    sb.append(text, i, end);
+                i = end;
+            }
+            else if (isWhitespace(ch)) {
+                int end = i + 1;
+                while (end < n && isWhitespace(text.charAt(end)))
+                    end++;
+                if (sb == null && (ch != ' ' || end > i + 1))
+                    sb = new StringBuilder(n).append(text, 0, i);
+                if (sb != null)
+                    sb.append(' ');
+                i = end;
+            }
+            else {
+                if (sb != null)
+                    sb.append(ch);
+                i++;
+            }
+        }
+        return sb != null ? sb.toString() : text;
+    }
+
+    private static int findExpressionEnd(String text, int i) {
+        char quote = 0;
+        for (int n = text.length(); i < n; i++) {
+            char ch = text.charAt(i);
+            if (quote != 0) {
+                if (ch == '\\')
+                    i++;
+                else if (ch == quote)
+                    quote = 0;
+            }
+            else if (ch == '\'' || ch == '"')
+                quote = ch;
+            else if (ch == '}')
+                return i + 1;
+        }
+        return text.length();
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r';
+    }
+
+    /**
+     * Find the loop-invariant text nodes and output attributes in the body of each {@code <for>} element.  Each is
+     * associated with the innermost loop containing it; the contents of nested loops and of macros are not
+     * considered part of the body.  A loop that binds a name determined by substitution has no invariants.
+     */
+    private void findLoopInvariants(Element documentElement) {
+        NodeList loops = documentElement.getElementsByTagNameNS(namespace, TemplateProcessor.forElementName);
+        for (int i = 0, n = loops.getLength(); i < n; i++) {
+            Element loop = (Element)loops.item(i);
+            Set<String> bound = findBoundNames(loop, namespace);
+            if (bound != null) {
+                int before = invariantNodes.size();
+                findInvariants(loop, bound);
+                if (invariantNodes.size() > before)
+                    invariantLoops.add(loop);
+            }
+        }
+    }
+
+    /**
+     * Find the names bound within a {@code <for>} element: the {@code name} and {@code index} of the loop, and the
+     * names bound by {@code <set>}, {@code <for>}, {@code <param>} and {@code <intercept>} elements within it.
+     *
+     * @param   loop        the {@code <for>} element
+     * @param   namespace   the namespace URI of the template elements
+     * @return  the set of names, or {@code null} if any name is determined by substitution
+     */
+    static Set<String> findBoundNames(Element loop, String namespace) {
+        Set<String> bound = new HashSet<>();
+        if (!addBound(bound, loop))
+            return null;
+        NodeList elements = loop.getElementsByTagNameNS(namespace, "*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            Element element = (Element)elements.item(i);
+            String localName = element.getLocalName();
+            if (localName.equals(TemplateProcessor.setElementName) ||
+                    localName.equals(TemplateProcessor.paramElementName) ||
+                    localName.equals(TemplateProcessor.interceptElementName) ||
+                    localName.equals(TemplateProcessor.forElementName)) {
+                if (!addBound(bound, element))
+                    return null;
+            }
+        }
+        return bound;
+    }
+
+    private static boolean addBound(Set<String> bound, Element element) {
+        String name = element.getAttribute(TemplateProcessor.nameAttrName);
+        String index = element.getAttribute(TemplateProcessor.indexAttrName);
+        if (!isStatic(name) || !isStatic(index))
+            return false;
+        bound.add(name);
+        bound.add(index);
+        return true;
+    }
+
+    private void findInvariants(Element loop, Set<String> bound) {
+        List<Element> pending = new ArrayList<>();
+        pending.add(loop);
+        while (!pending.isEmpty()) {
+            Element element = pending.remove(pending.size() - 1);
+            findInvariantChildren(element, bound, pending);
+        }
+    }
+
+    private void findInvariantChildren(Element element, Set<String> bound, List<Element> pending) {
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                Element childElement = (Element)child;
+                if (namespace.equals(childElement.getNamespaceURI())) {
+                    String localName = childElement.getLocalName();
+                    if (localName.equals(TemplateProcessor.forElementName) ||
+                            localName.equals(TemplateProcessor.macroElementName))
+                        continue;
+                }
+                else {
+                    NamedNodeMap attributes = childElement.getAttributes();
+                    for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                        Attr attr = (Attr)attributes.item(i);
+                        if (!namespace.equals(attr.getNamespaceURI()) && isInvariant(attr.getValue(), bound))
+                            invariantNodes.add(attr);
+                    }
+                }
+                pending.add(childElement);
+            }
+            else if (child.getNodeType() == Node.TEXT_NODE && isInvariant(((Text)child).getData(), bound))
+                invariantNodes.add(child);
+        }
+    }
+
+    private static boolean isInvariant(String str, Set<String> bound) {
+        if (isStatic(str))
+            return false;
+        Set<String> identifiers = findIdentifiers(str);
+        if (identifiers == null)
+            return false;
+        for (String identifier : identifiers)
+            if (bound.contains(identifier))
+                return false;
+        return true;
+    }
+
+    /**
+     * Find the identifiers that may refer to variables in the expressions for substitution in a string.  The scan is
+     * lexical and conservative: every identifier is included except those following a {@code .} (property names).
+     *
+     * @param   str     the string
+     * @return  the set of identifiers, or {@code null} if the expressions could not be scanned
+     */
+    static Set<String> findIdentifiers(String str) {
+        Set<String> identifiers = new HashSet<>();
+        int n = str.length();
+        int i = str.indexOf("${");
+        while (i >= 0) {
+            i += 2;
+            int depth = 0;
+            boolean property = false;
+            for (;;) {
+                if (i >= n)
+                    return null;
+                char ch = str.charAt(i);
+                if (ch == '}') {
+                    i++;
+                    if (depth == 0)
+                        break;
+                    depth--;
+                    property = false;
+                }
+                else if (ch == '{') {
+                    i++;
+                    depth++;
+                    property = false;
+                }
+                else if (ch == '\'' || ch == '"') {
+                    i++;
+                    while (i < n && str.charAt(i) != ch)
+                        i += str.charAt(i) == '\\' ? 2 : 1;
+                    if (i >= n)
+                        return null;
+                    i++;
+                    property = false;
+                }
+                else if (Character.isJavaIdentifierStart(ch)) {
+                    int start = i++;
+                    while (i < n && Character.isJavaIdentifierPart(str.charAt(i)))
+                        i++;
+                    if (!property)
+                        identifiers.add(str.substring(start, i));
+                    property = false;
+                }
+                else if (Character.isDigit(ch)) {
+                    i++;
+                    while (i < n && (Character.isLetterOrDigit(str.charAt(i)) || str.charAt(i) == '.'))
+                        i++;
+                    property = false;
+                }
+                else {
+                    i++;
+                    if (ch == '.')
+                        property = true;
+                    else if (!Character.isWhitespace(ch))
+                        property = false;
+                }
+            }
+            i = str.indexOf("${", i);
+        }
+        return identifiers;
+    }
+
+    /**
+     * Find the functions called in the expressions for substitution in a string, or in a single expression.  Each
+     * function is returned as its prefix and name separated by a colon, or as its name alone if it has no prefix.
+     * Like {@link #findIdentifiers(String)} the scan is lexical: a function call is an identifier (not a property
+     * name or an operator such as {@code empty}), optionally with a prefix, followed by an opening parenthesis.
+     *
+     * @param   str         the string
+     * @param   expression  {@code true} if the string is a single expression (without <code>${</code> and
+     *                      <code>}</code>)
+     * @return  the list of functions (empty if none), or {@code null} if the expressions could not be scanned
+     */
+    static List<String> findFunctions(String str, boolean expression) {
+        List<String> functions = new ArrayList<>();
+        int n = str.length();
+        int i = expression ? 0 : str.indexOf("${");
+        while (i >= 0) {
+            if (!expression)
+                i += 2;
+            int depth = 0;
+            boolean property = false;
+            for (;;) {
+                if (i >= n)
+                    return expression ? functions : null;
+                char ch = str.charAt(i);
+                if (ch == '}') {
+                    i++;
+                    if (depth == 0)
+                        break;
+                    depth--;
+                    property = false;
+                }
+                else if (ch == '{') {
+                    i++;
+                    depth++;
+                    property = false;
+                }
+                else if (ch == '\'' || ch == '"') {
+                    i++;
+                    while (i < n && str.charAt(i) != ch)
+                        i += str.charAt(i) == '\\' ? 2 : 1;
+                    if (i >= n)
+                        return null;
+                    i++;
+                    property = false;
+                }
+                else if (Character.isJavaIdentifierStart(ch)) {
+                    int start = i++;
+                    while (i < n && Character.isJavaIdentifierPart(str.charAt(i)))
+                        i++;
+                    if (!property) {
+                        int end = i; // the end of the prefixed name, if the identifier is followed by a colon
+                        if (end + 1 < n && str.charAt(end) == ':' &&
+                                Character.isJavaIdentifierStart(str.charAt(end + 1))) {
+                            end += 2;
+                            while (end < n && Character.isJavaIdentifierPart(str.charAt(end)))
+                                end++;
+                        }
+                        int j = end;
+                        while (j < n && Character.isWhitespace(str.charAt(j)))
+                            j++;
+                        if (j < n && str.charAt(j) == '(' &&
+                                (end > i || !operatorNames.contains(str.substring(start, i)))) {
+                            functions.add(str.substring(start, end));
+                            i = end;
+                        }
+                    }
+                    property = false;
+                }
+                else if (Character.isDigit(ch)) {
+                    i++;
+                    while (i < n && (Character.isLetterOrDigit(str.charAt(i)) || str.charAt(i) == '.'))
+                        i++;
+                    property = false;
+                }
+                else {
+                    i++;
+                    if (ch == '.')
+                        property = true;
+                    else if (!Character.isWhitespace(ch))
+                        property = false;
+                }
+            }
+            i = expression ? i : str.indexOf("${", i);
+        }
+        return functions;
+    }
+
+    /**
+     * Find the depth of property access applied to each identifier in the expressions for substitution in a string,
+     * that is, the smallest number of property references ({@code .name} or {@code [index]}) that follow any
+     * occurrence of the identifier.  An identifier used other than as the start of a property reference (for example,
+     * as a function argument or the operand of {@code empty}) has a depth of zero.  Like
+     * {@link #findIdentifiers(String)} the scan is lexical.
+     *
+     * @param   str     the string
+     * @return  a map from identifier to depth, or {@code null} if the expressions could not be scanned
+     */
+    static Map<String, Integer> findPropertyDepths(String str) {
+        Map<String, Integer> depths = new HashMap<>();
+        int n = str.length();
+        int i = str.indexOf("${");
+        while (i >= 0) {
+            i += 2;
+            int depth = 0;
+            boolean property = false;
+            for (;;) {
+                if (i >= n)
+                    return null;
+                char ch = str.charAt(i);
+                if (ch == '}') {
+                    i++;
+                    if (depth == 0)
+                        break;
+                    depth--;
+                    property = false;
+                }
+                else if (ch == '{') {
+                    i++;
+                    depth++;
+                    property = false;
+                }
+                else if (ch == '\'' || ch == '"') {
+                    i++;
+                    while (i < n && str.charAt(i) != ch)
+                        i += str.charAt(i) == '\\' ? 2 : 1;
+                    if (i >= n)
+                        return null;
+                    i++;
+                    property = false;
+                }
+                else if (Character.isJavaIdentifierStart(ch)) {
+                    int start = i++;
+                    while (i < n && Character.isJavaIdentifierPart(str.charAt(i)))
+                        i++;
+                    if (!property) {
+                        String identifier = str.substring(start, i);
+                        int steps = countPropertySteps(str, i);
+                        Integer previous = depths.get(identifier);
+                        if (previous == null || steps < previous)
+                            depths.put(identifier, steps);
+                    }
+                    property = false;
+                }
+                else if (Character.isDigit(ch)) {
+                    i++;
+                    while (i < n && (Character.isLetterOrDigit(str.charAt(i)) || str.charAt(i) == '.'))
+                        i++;
+                    property = false;
+                }
+                else {
+                    i++;
+                    if (ch == '.')
+                        property = true;
+                    else if (!Character.isWhitespace(ch))
+                        property = false;
+                }
+            }
+            i = str.indexOf("${", i);
+        }
+        return depths;
+    }
+
+    private static int countPropertySteps(String str, int i) {
+        int n = str.length();
+        int steps = 0;
+        while (i < n) {
+            char ch = str.charAt(i);
+            if (ch == '[')
+                return steps + 1;
+            if (ch != '.' || i + 1 >= n || !Character.isJavaIdentifierStart(str.charAt(i + 1)))
+                break;
+            i += 2;
+            while (i < n && Character.isJavaIdentifierPart(str.charAt(i)))
+                i++;
+            steps++;
+        }
+        return steps;
+    }
+
+    /**
+     * Find the static variables that may be treated as constants in this document, that is, those that are not
+     * re-bound by any element of the document.  If any element binds a name determined by substitution, none of the
+     * static variables is treated as constant.
+     */
+    private Map<String, Object> findConstants() {
+        if (staticVariables.isEmpty() || boundNames.isEmpty())
+            return staticVariables;
+        if (boundNames.contains(anyName))
+            return Collections.emptyMap();
+        Map<String, Object> result = new HashMap<>(staticVariables);
+        result.keySet().removeAll(boundNames);
+        return result;
+    }
+
+    /**
+     * Find the static variables that may be treated as constants throughout a template, that is, those that are not
+     * re-bound in the template document or in any document reachable from it through includes with a static
+     * {@code href}.  A name bound in one document may be referred to in another (in a macro called, or a document
+     * included, within the scope of the binding), so a name bound anywhere in the template is not constant in any of
+     * its documents.  If any element binds a name determined by substitution, none of the static variables is treated
+     * as constant.  The result is used in place of the static variables when the documents are compiled.
+     *
+     * @param   document        the template document
+     * @param   url             the URL of the document (may be {@code null})
+     * @param   namespace       the namespace URI of the template elements and attributes
+     * @param   staticVariables the static variables of the processor
+     * @return  the static variables that may be treated as constants
+     */
+    static Map<String, Object> findConstants(Document document, URL url, String namespace,
+            Map<String, Object> staticVariables) {
+        if (staticVariables.isEmpty())
+            return staticVariables;
+        Set<String> bound = new HashSet<>();
+        Set<Document> visited = Collections.newSetFromMap(new IdentityHashMap<Document, Boolean>());
+        List<Document> pendingDocuments = new ArrayList<>();
+        List<URL> pendingURLs = new ArrayList<>();
+        pendingDocuments.add(document);
+        pendingURLs.add(url);
+        while (!pendingDocuments.isEmpty()) {
+            Document pendingDocument = pendingDocuments.remove(pendingDocuments.size() - 1);
+            URL pendingURL = pendingURLs.remove(pendingURLs.size() - 1);
+            Element documentElement = pendingDocument.getDocumentElement();
+            if (!visited.add(pendingDocument) || documentElement == null)
+                continue;
+            if (!addBoundNames(documentElement, namespace, bound))
+                return Collections.emptyMap();
+            NodeList includes = documentElement.getElementsByTagNameNS(namespace, TemplateProcessor.includeElementName);
+            for (int i = 0, n = includes.getLength(); i < n; i++) {
+                String href = ((Element)includes.item(i)).getAttribute(TemplateProcessor.hrefAttrName);
+                if (isStatic(href)) {
+                    try {
+                        URL includeURL = pendingURL == null ? new URL(href) : new URL(pendingURL, href);
+                        pendingDocuments.add(TemplateProcessor.getDocument(includeURL));
+                        pendingURLs.add(includeURL);
+                    }
+                    catch (Exception e) {
+                        // any error will be reported if and when the include is processed
+                    }
+                }
+            }
+        }
+        if (Collections.disjoint(bound, staticVariables.keySet()))
+            return staticVariables;
+        Map<String, Object> result = new HashMap<>(staticVariables);
+        result.keySet().removeAll(bound);
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Add the names bound in a document (by {@code <set>}, {@code <for>}, {@code <param>} and {@code <intercept>}
+     * elements) to a set.
+     *
+     * @param   documentElement the document element
+     * @param   namespace       the namespace URI of the template elements and attributes
+     * @param   names           the set of names
+     * @return  {@code false} if any element binds a name determined by substitution
+     */
+    private static boolean addBoundNames(Element documentElement, String namespace, Set<String> names) {
+        NodeList elements = documentElement.getElementsByTagNameNS(namespace, "*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            Element element = (Element)elements.item(i);
+            String localName = element.getLocalName();
+            if (localName.equals(TemplateProcessor.setElementName) ||
+                    localName.equals(TemplateProcessor.paramElementName) ||
+                    localName.equals(TemplateProcessor.interceptElementName) ||
+                    localName.equals(TemplateProcessor.forElementName)) {
+                if (!addBoundName(names, element.getAttribute(TemplateProcessor.nameAttrName)) ||
+                        !addBoundName(names, element.getAttribute(TemplateProcessor.indexAttrName)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean addBoundName(Set<String> names, String name) {
+        if (!isStatic(name))
+            return false;
+        if (!name.isEmpty())
+            names.add(name);
+        return true;
+    }
+
+    /**
+     * Find a constant that is re-bound in this document or in any document linked to it through static includes.
+     * This is used to check a document included with a dynamic {@code href}, which is not covered by
+     * {@link #findConstants(Document, URL, String, Map)}.
+     *
+     * @param   constants   the static variables treated as constants
+     * @return  the name of a re-bound constant, or {@code null} if none
+     */
+    String findRebound(Map<String, Object> constants) {
+        if (constants.isEmpty())
+            return null;
+        Set<String> names = reachableBoundNames;
+        if (names == null) {
+            names = new HashSet<>();
+            Set<CompiledTemplate> visited = Collections.newSetFromMap(new IdentityHashMap<CompiledTemplate, Boolean>());
+            List<CompiledTemplate> pending = new ArrayList<>();
+            pending.add(this);
+            while (!pending.isEmpty()) {
+                CompiledTemplate compiled = pending.remove(pending.size() - 1);
+                if (visited.add(compiled)) {
+                    names.addAll(compiled.boundNames);
+                    pending.addAll(compiled.includesMap.values());
+                }
+            }
+            reachableBoundNames = names;
+        }
+        for (String name : constants.keySet())
+            if (names.contains(name) || names.contains(anyName))
+                return name;
+        return null;
+    }
+
+    /**
+     * Fold the conditions of an element, and the value of a {@code <set>} element, where they depend only on
+     * constants.  Elements that can never be processed are pruned from the contents of their parent.
+     */
+    private void foldElement(Element element) {
+        Attr ifAttr = element.getAttributeNodeNS(namespace, TemplateProcessor.ifAttrName);
+        if (ifAttr != null && foldCondition(ifAttr, Boolean.TRUE) == Boolean.FALSE)
+            prunedElements.add(element);
+        if (!namespace.equals(element.getNamespaceURI()))
+            return;
+        String localName = element.getLocalName();
+        if (localName.equals(TemplateProcessor.ifElementName)) {
+            Attr testAttr = element.getAttributeNode(TemplateProcessor.testAttrName);
+            if (testAttr != null && foldCondition(testAttr, null) == Boolean.FALSE)
+                prunedElements.add(element);
+        }
+        else if (localName.equals(TemplateProcessor.caseElementName)) {
+            Attr testAttr = element.getAttributeNode(TemplateProcessor.testAttrName);
+            if (testAttr != null)
+                foldCondition(testAttr, Boolean.TRUE);
+        }
+        else if (localName.equals(TemplateProcessor.switchElementName))
+            foldSwitch(element);
+        else if (localName.equals(TemplateProcessor.setElementName))
+            foldSet(element);
+    }
+
+    private void foldSwitch(Element element) {
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                Element childElement = (Element)child;
+                Attr ifAttr = childElement.getAttributeNodeNS(namespace, TemplateProcessor.ifAttrName);
+                Boolean included = ifAttr == null ? Boolean.TRUE : foldCondition(ifAttr, Boolean.TRUE);
+                if (included == null)
+                    return;
+                if (included) {
+                    if (!XML.matchNS(childElement, TemplateProcessor.caseElementName, namespace))
+                        return; // error will be reported when processed
+                    Attr testAttr = childElement.getAttributeNode(TemplateProcessor.testAttrName);
+                    Boolean selected = testAttr == null ? Boolean.TRUE : foldCondition(testAttr, Boolean.TRUE);
+                    if (selected == null)
+                        return;
+                    if (selected) {
+                        switchMap.put(element, childElement);
+                        return;
+                    }
+                }
+            }
+            else if (!XML.isCommentOrEmpty(child))
+                return; // error will be reported when processed
+        }
+        // no case can be selected
+        prunedElements.add(element);
+    }
+
+    private void foldSet(Element element) {
+        String name = element.getAttribute(TemplateProcessor.nameAttrName);
+        if (!isStatic(name) || !Expression.isValidIdentifier(name) ||
+                !element.getAttribute(TemplateProcessor.documentAttrName).isEmpty() || !XML.isElementEmpty(element))
+            return;
+        Object value = fold(element.getAttribute(TemplateProcessor.valueAttrName));
+        // only immutable values are shared between uses of the template
+        if (value instanceof String || value instanceof Number || value instanceof Boolean ||
+                value instanceof Character)
+            setMap.put(element, value);
+    }
+
+    private Boolean foldCondition(Attr attr, Boolean emptyValue) {
+        Boolean result = null;
+        FoldingResolver resolver = new FoldingResolver();
+        try {
+            String substituted = parser.substitute(attr.getValue(), resolver);
+            if (!resolver.dynamic) {
+                if (substituted == null || substituted.isEmpty())
+                    result = emptyValue;
+                else {
+                    boolean value = parser.parseExpression(substituted, resolver).asBoolean();
+                    if (!resolver.dynamic)
+                        result = value;
+                }
+            }
+        }
+        catch (Exception e) {
+            // not folded - any error will be reported when the condition is evaluated
+        }
+        if (result != null)
+            conditionsMap.put(attr, result);
+        return result;
+    }
+
+    private Object fold(String str) {
+        FoldingResolver resolver = new FoldingResolver();
+        try {
+            String substituted = parser.substitute(str, resolver);
+            if (!resolver.dynamic && substituted != null && !substituted.isEmpty()) {
+                Object value = parser.parseExpression(substituted, resolver).evaluate();
+                if (!resolver.dynamic)
+                    return value;
+            }
+        }
+        catch (Exception e) {
+            // not folded - any error will be reported when the expression is evaluated
+        }
+        return notConstant;
+    }
+
+    /**
+     * Test whether a string is static text, that is, it contains no expressions for substitution.
+     *
+     * @param   str     the string
+     * @return  {@code true} if the string is static text
+     */
+    static boolean isStatic(String str) {
+        return str.indexOf('$') < 0;
+    }
+
+    /**
+     * Resolver used when folding expressions.  Constants are resolved to their values; a reference to any other name
+     * causes the expression to be treated as dynamic.
+     */
+    private class FoldingResolver implements Resolver {
+
+        private boolean dynamic;
+
+        @Override
+        public Expression resolve(String identifier) {
+            if (constants.containsKey(identifier))
+                return new Constant(constants.get(identifier));
+            dynamic = true;
+            return null;
+        }
+
+    }
+
+    /**
+     * An entry in the cache of compiled forms: the key of the variant, and the compiled form once it has been created.
+     * The mutable fields are guarded by the lock on {@link #lock}.
+     */
+    private static class Variant {
+
+        final String namespace;
+        final String urlString;
+        final Map<String, Object> staticVariables;
+        final boolean minify;
+        CompiledTemplate compiled;
+        boolean linked;
+        Thread linker;
+
+        Variant(String namespace, URL url, Map<String, Object> staticVariables, boolean minify) {
+            this.namespace = namespace;
+            urlString = url == null ? null : url.toString();
+            this.staticVariables = staticVariables;
+            this.minify = minify;
+            compiled = null;
+            linked = false;
+            linker = null;
+        }
+
+        boolean isBaseURL(URL url) {
+            return url == null ? urlString == null : url.toString().equals(urlString);
+        }
+
+    }
+
+    /**
+     * The contents of an element - the macros defined in the element, and the child elements and text nodes in
+     * document order (comments and other nodes are not output and are omitted).  For text nodes the data (trimmed if
+     * required) is held, along with a {@code char[]} copy of static text for direct output, and an indication of
+     * whether the text is loop-invariant.
+     */
+    static class Contents {
+
+        final Element[] macros;
+        final Node[] nodes;
+        final String[] data;
+        final char[][] chars;
+        final boolean[] invariant;
+
+        Contents(Element[] macros, Node[] nodes, String[] data, List<Node> invariantNodes) {
+            this.macros = macros;
+            this.nodes = nodes;
+            this.data = data;
+            int n = nodes.length;
+            chars = new char[n][];
+            invariant = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                String text = data[i];
+                if (text != null && isStatic(text))
+                    chars[i] = text.toCharArray();
+                invariant[i] = invariantNodes.contains(nodes[i]);
+            }
+        }
+
+    }
+
+    /**
+     * The attributes to be output for an element (omitting attributes in the template namespace).  If all the
+     * attributes are static, they are held in an {@link Attributes} object that may be passed to the SAX handler
+     * directly; otherwise they are held in arrays along with an indication of which require substitution, and the
+     * attribute nodes of those that are loop-invariant (used as the key for the substituted value).
+     */
+    static class OutputAttributes {
+
+        final Attributes staticAttributes;
+        final String[] uris;
+        final String[] localNames;
+        final String[] qNames;
+        final String[] values;
+        final boolean[] dynamic;
+        final Attr[] invariant;
+        final Boolean preserve;
+
+        OutputAttributes(Element element, String namespace, Set<Node> invariantNodes) {
+            String space = element.getAttributeNS(xmlNamespace, "space");
+            if (space.equals("preserve"))
+                preserve = Boolean.TRUE;
+            else if (space.equals("default"))
+                preserve = Boolean.FALSE;
+            else
+                preserve = preserveElements.contains(localName(element).toLowerCase()) ? Boolean.TRUE : null;
+            List<Attr> list = new ArrayList<>();
+            boolean allStatic = true;
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                Attr attr = (Attr)attributes.item(i);
+                if (!namespace.equals(attr.getNamespaceURI())) {
+                    list.add(attr);
+                    if (!isStatic(attr.getValue()))
+                        allStatic = false;
+                }
+            }
+            int n = list.size();
+            if (allStatic) {
+                AttributesImpl attrs = new AttributesImpl();
+                for (Attr attr : list) {
+                    String value = attr.getValue();
+                    if (value.length() > 0) // empty attributes are not output
+                        attrs.addAttribute(attr.getNamespaceURI(), attr.getLocalName(), attr.getNodeName(), "CDATA",
+                                value);
+                }
+                staticAttributes = attrs;
+                uris = null;
+                localNames = null;
+                qNames = null;
+                values = null;
+                dynamic = null;
+                invariant = null;
+            }
+            else {
+                staticAttributes = null;
+                uris = new String[n];
+                localNames = new String[n];
+                qNames = new String[n];
+                values = new String[n];
+                dynamic = new boolean[n];
+                invariant = new Attr[n];
+                for (int i = 0; i < n; i++) {
+                    Attr attr = list.get(i);
+                    if (invariantNodes.contains(attr))
+                        invariant[i] = attr;
+                    uris[i] = attr.getNamespaceURI();
+                    localNames[i] = attr.getLocalName();
+                    qNames[i] = attr.getNodeName();
+                    values[i] = attr.getValue();
+                    dynamic[i] = !isStatic(values[i]);
+                }
+            }
+        }
+
+    }
+
+}
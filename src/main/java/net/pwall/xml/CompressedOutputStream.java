@@ -0,0 +1,375 @@
+/*
+ * @(#) CompressedOutputStream.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An {@link OutputStream} producing compressed output in gzip, zlib ("deflate" as used in HTTP
+ * {@code Content-Encoding}) or raw deflate format.  The {@link Deflater} is taken from a per-thread pool and returned
+ * when the stream is finished (or released, if output is abandoned), so that the native compression state is not
+ * allocated afresh for each page.
+ *
+ * <p>Output that is known in advance may be held in pre-compressed form as a {@link Chunk}.  When a chunk is expected
+ * (see {@link #expect(Chunk)}), the stream looks for its bytes in the data subsequently written; if they are found,
+ * the data before them is compressed and flushed with {@link Deflater#FULL_FLUSH}, so that the compressed data that
+ * follows does not refer back past that point, and the pre-compressed form is copied to the output in place of
+ * compressing the bytes again.  The chunk is compressed independently and ends on a byte boundary, so the result is a
+ * single valid deflate stream.  Since the bytes are compared before the chunk is used, the output decompresses to
+ * exactly the data written, whatever is expected.  The checksum for the gzip or zlib trailer is computed by the stream
+ * (the {@link Deflater} is always used in raw mode).</p>
+ *
+ * @author  Peter Wall
+ */
+public class CompressedOutputStream extends DeflaterOutputStream {
+
+    public static final int defaultBufferSize = 8192;
+
+    /** The number of bytes examined for an expected chunk (beyond its length) before it is abandoned. */
+    static final int maxChunkDelay = 65536;
+
+    private static final byte[] gzipHeader = { 0x1F, (byte)0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+
+    /**
+     * The compression formats.
+     */
+    public enum Format {
+
+        GZIP("gzip"),
+        DEFLATE("deflate"),
+        RAW_DEFLATE(null);
+
+        private final String contentEncoding;
+
+        Format(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Get the HTTP {@code Content-Encoding} value for the format.
+         *
+         * @return  the content encoding, or {@code null} if the format has no corresponding content encoding
+         */
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+    }
+
+    private final Format format;
+    private final int level;
+    private final Checksum checksum;
+    private long totalIn;
+    private final Deque<Chunk> expected;
+    private int matched;
+    private long examined;
+    private boolean finished;
+    private boolean released;
+
+    /**
+     * Construct a {@code CompressedOutputStream}.
+     *
+     * @param   out     the underlying {@link OutputStream}
+     * @param   format  the compression format
+     * @param   level   the compression level (0-9, or {@link Deflater#DEFAULT_COMPRESSION})
+     * @throws  IOException on any I/O errors writing the header
+     */
+    public CompressedOutputStream(OutputStream out, Format format, int level) throws IOException {
+        super(out, acquireDeflater(level), defaultBufferSize);
+        this.format = format;
+        this.level = level;
+        checksum = format == Format.GZIP ? new CRC32() : format == Format.DEFLATE ? new Adler32() : null;
+        totalIn = 0;
+        expected = new ArrayDeque<>();
+        matched = 0;
+        examined = 0;
+        finished = false;
+        released = false;
+        if (format == Format.GZIP)
+            out.write(gzipHeader);
+        else if (format == Format.DEFLATE) {
+            out.write(0x78); // deflate, 32K window
+            out.write(zlibFlags(level));
+        }
+    }
+
+    public CompressedOutputStream(OutputStream out, Format format) throws IOException {
+        this(out, format, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Expect a chunk of pre-compressed output.  If the bytes of the chunk are written to the stream (after any data
+     * already written or expected), the pre-compressed form is used in place of compressing them.  If they are not
+     * found within {@link #maxChunkDelay} bytes (beyond the length of the chunk), the expectation is abandoned.
+     *
+     * @param   chunk   the chunk
+     */
+    void expect(Chunk chunk) {
+        if (!finished)
+            expected.addLast(chunk);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Write after finish");
+        int end = off + len;
+        int start = off; // the bytes from start to i have not yet been compressed or matched
+        int i = off;
+        while (i < end && !expected.isEmpty()) {
+            Chunk chunk = expected.peekFirst();
+            byte[] data = chunk.data;
+            if (matched == 0) {
+                if (examined > data.length + maxChunkDelay) {
+                    expected.removeFirst();
+                    chunk.misses.incrementAndGet();
+                    examined = 0;
+                    continue;
+                }
+                int scanStart = i;
+                byte first = data[0];
+                while (i < end && b[i] != first)
+                    i++;
+                examined += i - scanStart;
+                if (i < end) {
+                    compress(b, start, i - start);
+                    matched = 1;
+                    examined++;
+                    start = ++i;
+                }
+            }
+            else {
+                int n = Math.min(end - i, data.length - matched);
+                int k = 0;
+                while (k < n && b[i + k] == data[matched + k])
+                    k++;
+                i += k;
+                matched += k;
+                examined += k;
+                start = i;
+                if (matched == data.length) {
+                    insert(chunk);
+                    expected.removeFirst();
+                    matched = 0;
+                    examined = 0;
+                }
+                else if (k < n) {
+                    // the bytes matched so far are compressed as usual, and the search continues at this byte
+                    compress(data, 0, matched);
+                    matched = 0;
+                }
+            }
+        }
+        compress(b, start, end - start);
+    }
+
+    private void compress(byte[] b, int off, int len) throws IOException {
+        if (len > 0) {
+            super.write(b, off, len);
+            if (checksum != null)
+                checksum.update(b, off, len);
+            totalIn += len;
+        }
+    }
+
+    private void insert(Chunk chunk) throws IOException {
+        int len;
+        while ((len = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH)) > 0) {
+            out.write(buf, 0, len);
+            if (len < buf.length)
+                break;
+        }
+        out.write(chunk.compressed);
+        if (checksum != null)
+            checksum.update(chunk.data, 0, chunk.data.length);
+        totalIn += chunk.data.length;
+        chunk.hits.incrementAndGet();
+    }
+
+    /**
+     * Finish writing the compressed data, including the gzip or zlib trailer if required, without closing the
+     * underlying stream.  The {@link Deflater} is returned to the pool, and no further data may be written.
+     *
+     * @throws  IOException on any I/O errors
+     */
+    @Override
+    public void finish() throws IOException {
+        if (!finished) {
+            Chunk chunk = expected.peekFirst();
+            if (chunk != null && matched > 0)
+                compress(chunk.data, 0, matched);
+            for (Chunk unused : expected)
+                unused.misses.incrementAndGet();
+            expected.clear();
+            matched = 0;
+            super.finish();
+            if (format == Format.GZIP) {
+                writeIntLE((int)checksum.getValue());
+                writeIntLE((int)totalIn);
+            }
+            else if (format == Format.DEFLATE)
+                writeIntBE((int)checksum.getValue());
+            release();
+        }
+    }
+
+    /**
+     * Return the {@link Deflater} to the pool without finishing the compressed data, for use when output has been
+     * abandoned (for example, when processing has failed).  No further data may be written, and the compressed output
+     * is left incomplete.  Calling this method after {@link #finish()}, or more than once, has no effect.
+     */
+    public void release() {
+        if (!released) {
+            finished = true;
+            released = true;
+            expected.clear();
+            releaseDeflater(def);
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    private void writeIntBE(int value) throws IOException {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static int zlibFlags(int level) {
+        // the compression level field is informative only; the check bits make the header a multiple of 31
+        if (level == 0 || level == 1)
+            return 0x01;
+        if (level >= 2 && level <= 5)
+            return 0x5E;
+        if (level >= 7)
+            return 0xDA;
+        return 0x9C;
+    }
+
+    /**
+     * Compress a chunk of output for later use by a {@code CompressedOutputStream}.  The chunk is compressed without
+     * reference to any preceding data, and ends on a byte boundary without marking the end of the stream.
+     *
+     * @param   data    the uncompressed bytes
+     * @param   level   the compression level
+     * @return  the chunk
+     */
+    static Chunk compress(byte[] data, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[defaultBufferSize];
+            int len;
+            do {
+                len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                baos.write(buffer, 0, len);
+            } while (len == buffer.length);
+            return new Chunk(data, baos.toByteArray(), level);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static Deflater acquireDeflater(int level) {
+        Deflater deflater = deflaters.get();
+        if (deflater == null)
+            return new Deflater(level, true);
+        deflaters.set(null); // not available to a nested stream while in use
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (deflaters.get() == null)
+            deflaters.set(deflater);
+        else
+            deflater.end();
+    }
+
+    /**
+     * A chunk of output held in both uncompressed and pre-compressed form.  The number of times the chunk has been
+     * used, and the number of times it was expected but not found, are recorded, so that a chunk that does not match
+     * the output may be abandoned by its user.
+     */
+    static class Chunk {
+
+        final byte[] data;
+        final byte[] compressed;
+        final int level;
+        final AtomicInteger hits;
+        final AtomicInteger misses;
+
+        Chunk(byte[] data, byte[] compressed, int level) {
+            this.data = data;
+            this.compressed = compressed;
+            this.level = level;
+            hits = new AtomicInteger();
+            misses = new AtomicInteger();
+        }
+
+        /**
+         * Test whether the chunk is worth expecting: it has been found at least as often as it has been missed,
+         * allowing for a few misses at first.  A chunk with no data records output that was too small to be worth
+         * holding in pre-compressed form, and is never expected.
+         *
+         * @return  {@code true} if the chunk should be expected
+         */
+        boolean isUseful() {
+            return data != null && misses.get() - hits.get() < 8;
+        }
+
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * @(#) DocumentLoader.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Loading of XML documents.  Each thread uses its own {@link DocumentBuilder}, created on first use and reset before
+ * each subsequent use, so that documents may be parsed concurrently without the cost of creating a builder each time.
+ * Files are read through a {@link FileChannel}; files larger than {@link #mapThreshold} are memory-mapped.
+ *
+ * <p>When a template is loaded, the source location (line and column) of each element is recorded in the user data
+ * of the element (see {@link #getLocation(Element)}), for the reporting of errors.  The locations are found by a SAX
+ * pass over the same bytes as those from which the document was parsed, matching the elements in document order.</p>
+ *
+ * @author  Peter Wall
+ */
+class DocumentLoader {
+
+    static final int mapThreshold = 256 * 1024;
+
+    /**
+     * The lock guarding the user data of template documents.  A DOM implementation may hold the user data of all the
+     * nodes of a document in a single map that is not safe for concurrent use, even for reading.
+     */
+    static final Object userDataLock = new Object();
+
+    private static final String locationKey = DocumentLoader.class.getName() + ".location";
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                return XML.getDocumentBuilderNS();
+            }
+            catch (Exception e) {
+                throw new RuntimeException("Can't create DocumentBuilder", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<SAXParser> saxParsers = new ThreadLocal<SAXParser>() {
+        @Override
+        protected SAXParser initialValue() {
+            try {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                return factory.newSAXParser();
+            }
+            catch (Exception e) {
+                throw new RuntimeException("Can't create SAXParser", e);
+            }
+        }
+    };
+
+    /**
+     * Get the {@link DocumentBuilder} for the current thread.  The builder must not be retained or passed to another
+     * thread.
+     *
+     * @return  the {@link DocumentBuilder}, reset to its initial state
+     */
+    static DocumentBuilder getDocumentBuilder() {
+        DocumentBuilder documentBuilder = documentBuilders.get();
+        documentBuilder.reset();
+        return documentBuilder;
+    }
+
+    /**
+     * Create a new empty document.
+     *
+     * @return  the document
+     */
+    static Document newDocument() {
+        return getDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Parse a document from an {@link InputSource}.
+     *
+     * @param   inputSource     the {@link InputSource}
+     * @return  the document
+     * @throws  IOException     on any I/O errors
+     * @throws  SAXException    on any parsing errors
+     */
+    static Document parse(InputSource inputSource) throws IOException, SAXException {
+        return getDocumentBuilder().parse(inputSource);
+    }
+
+    /**
+     * Parse a document from a {@link ByteBuffer}.
+     *
+     * @param   buffer          the buffer (the content from the position to the limit is parsed)
+     * @param   systemId        the system identifier (URI) of the document, for resolving relative references (may be
+     *                          {@code null})
+     * @param   locations       {@code true} to record the source locations of the elements
+     * @return  the document
+     * @throws  IOException     on any I/O errors
+     * @throws  SAXException    on any parsing errors
+     */
+    static Document parse(ByteBuffer buffer, String systemId, boolean locations) throws IOException, SAXException {
+        Document document = parse(inputSource(buffer, systemId));
+        if (locations)
+            recordLocations(document, findLocations(inputSource(buffer, systemId)));
+        return document;
+    }
+
+    /**
+     * Parse a document from a file.
+     *
+     * @param   file            the file
+     * @param   locations       {@code true} to record the source locations of the elements
+     * @return  the document
+     * @throws  IOException     on any I/O errors
+     * @throws  SAXException    on any parsing errors
+     */
+    static Document parse(File file, boolean locations) throws IOException, SAXException {
+        return parse(readFile(file), file.toURI().toString(), locations);
+    }
+
+    /**
+     * Parse a document from a URL.  If the source locations of the elements are to be recorded, the content is read
+     * into memory so that it is fetched only once.
+     *
+     * @param   url             the URL
+     * @param   locations       {@code true} to record the source locations of the elements
+     * @return  the document
+     * @throws  IOException     on any I/O errors
+     * @throws  SAXException    on any parsing errors
+     */
+    static Document parse(URL url, boolean locations) throws IOException, SAXException {
+        if (!locations)
+            return parse(new InputSource(url.toString()));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream is = url.openStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) > 0)
+                baos.write(buffer, 0, n);
+        }
+        return parse(ByteBuffer.wrap(baos.toByteArray()), url.toString(), true);
+    }
+
+    private static InputSource inputSource(ByteBuffer buffer, String systemId) {
+        InputSource inputSource = new InputSource(new ByteBufferInputStream(buffer.duplicate()));
+        inputSource.setSystemId(systemId);
+        return inputSource;
+    }
+
+    /**
+     * Find the source locations of the elements of a document, in document order.
+     *
+     * @param   inputSource     the source of the document
+     * @return  the list of line and column numbers (the column number is that of the end of the start tag)
+     * @throws  IOException     on any I/O errors
+     * @throws  SAXException    on any parsing errors
+     */
+    static List<int[]> findLocations(InputSource inputSource) throws IOException, SAXException {
+        final List<int[]> positions = new ArrayList<>();
+        SAXParser saxParser = saxParsers.get();
+        saxParser.reset();
+        saxParser.parse(inputSource, new DefaultHandler() {
+            private Locator locator;
+            @Override
+            public void setDocumentLocator(Locator locator) {
+                this.locator = locator;
+            }
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                positions.add(locator == null ? new int[2] :
+                        new int[] { locator.getLineNumber(), locator.getColumnNumber() });
+            }
+        });
+        return positions;
+    }
+
+    /**
+     * Record the source locations of the elements of a document in the user data of the elements.  If the number of
+     * locations does not match the number of elements, nothing is recorded.
+     *
+     * @param   document    the document
+     * @param   positions   the locations, in document order
+     */
+    static void recordLocations(Document document, List<int[]> positions) {
+        NodeList elements = document.getElementsByTagName("*");
+        int n = elements.getLength();
+        if (n == positions.size()) {
+            synchronized (userDataLock) {
+                for (int i = 0; i < n; i++)
+                    elements.item(i).setUserData(locationKey, positions.get(i), null);
+            }
+        }
+    }
+
+    /**
+     * Get the source location of an element, as recorded when the document was loaded.
+     *
+     * @param   element     the element
+     * @return  the line and column number, or {@code null} if not recorded
+     */
+    static int[] getLocation(Element element) {
+        synchronized (userDataLock) {
+            return (int[])element.getUserData(locationKey);
+        }
+    }
+
+    /**
+     * Record the source location of an element.
+     *
+     * @param   element     the element
+     * @param   location    the line and column number
+     */
+    static void setLocation(Element element, int[] location) {
+        synchronized (userDataLock) {
+            element.setUserData(locationKey, location, null);
+        }
+    }
+
+    /**
+     * Read the contents of a file into a {@link ByteBuffer}.  Files larger than {@link #mapThreshold} are
+     * memory-mapped; smaller files are read into a heap buffer.
+     *
+     * @param   file            the file
+     * @return  the buffer
+     * @throws  IOException     on any I/O errors
+     */
+    static ByteBuffer readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > mapThreshold)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large - " + file);
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // continue reading
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * An {@link InputStream} reading from a {@link ByteBuffer}.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            int remaining = buffer.remaining();
+            if (remaining == 0)
+                return -1;
+            int n = Math.min(len, remaining);
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int)Math.min(Math.max(n, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
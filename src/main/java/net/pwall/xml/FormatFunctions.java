@@ -0,0 +1,452 @@
+/*
+ * @(#) FormatFunctions.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.Calendar;
+import java.util.Currency;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Formatting functions for use in templates: number, currency, percentage and date formatting, escaping for URLs and
+ * JavaScript, and joining of collections.  An instance is registered as the implementation of a function namespace,
+ * in the same way as the JSTL functions:
+ * <pre>
+ *     processor.addNamespace(TemplateProcessor.formatFunctionsURL, new FormatFunctions());
+ * </pre>
+ * and the functions are then called using a prefix mapped to that namespace URI, for example
+ * {@code ${xf:formatNumber(amount, '#,##0.00')}}.
+ *
+ * <p>Number formats are not thread-safe, so they are cached per thread, keyed by locale and pattern (or currency);
+ * date formats use {@link DateTimeFormatter}, which is immutable, and are cached in a map shared between threads.  A
+ * format is therefore created only once for each pattern on each thread, however many times it is used.  The escaping
+ * and joining functions return their argument unchanged where possible, and otherwise build the result in a single
+ * pass.  A {@code null} value is formatted as an empty string.</p>
+ *
+ * @author  Peter Wall
+ */
+public class FormatFunctions {
+
+    static final int maxCachedFormats = 64;
+
+    private static final char[] hexDigits = "0123456789ABCDEF".toCharArray();
+
+    private static final String[] percentKeys = { "0", "1", "2", "3", "4", "5", "6", "7", "8", "9" };
+
+    private static final ThreadLocal<Map<Locale, Map<String, NumberFormat>>> numberFormats = newFormatCache();
+    private static final ThreadLocal<Map<Locale, Map<String, NumberFormat>>> currencyFormats = newFormatCache();
+    private static final ThreadLocal<Map<Locale, Map<String, NumberFormat>>> percentFormats = newFormatCache();
+
+    private static final ConcurrentMap<Locale, ConcurrentMap<String, DateTimeFormatter>> dateFormats =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Locale> locales = new ConcurrentHashMap<>();
+
+    private final Locale locale;
+    private final ZoneId zone;
+
+    /**
+     * Construct a {@code FormatFunctions} object using the specified locale and time zone.
+     *
+     * @param   locale  the default locale for formatting
+     * @param   zone    the time zone used to format dates held as {@link Date}, {@link Calendar}, {@link Instant} or
+     *                  milliseconds
+     */
+    public FormatFunctions(Locale locale, ZoneId zone) {
+        this.locale = locale;
+        this.zone = zone;
+    }
+
+    /**
+     * Construct a {@code FormatFunctions} object using the default locale and time zone.
+     */
+    public FormatFunctions() {
+        this(Locale.getDefault(), ZoneId.systemDefault());
+    }
+
+    public Locale getLocale() {
+        return locale;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * Format a number using a {@link DecimalFormat} pattern.
+     *
+     * @param   value   the number (or a string representation of a number)
+     * @param   pattern the pattern
+     * @return  the formatted number
+     */
+    public String formatNumber(Object value, Object pattern) {
+        return formatNumber(value, pattern, null);
+    }
+
+    /**
+     * Format a number using a {@link DecimalFormat} pattern and the conventions of the specified locale.
+     *
+     * @param   value       the number (or a string representation of a number)
+     * @param   pattern     the pattern
+     * @param   localeTag   the locale, as an IETF language tag (for example {@code en-AU}), or {@code null} for the
+     *                      default locale
+     * @return  the formatted number
+     */
+    public String formatNumber(Object value, Object pattern, Object localeTag) {
+        if (value == null)
+            return "";
+        Locale formatLocale = getLocale(localeTag);
+        String patternString = toString(pattern);
+        Map<String, NumberFormat> formats = getFormats(numberFormats, formatLocale);
+        NumberFormat format = formats.get(patternString);
+        if (format == null) {
+            format = new DecimalFormat(patternString, DecimalFormatSymbols.getInstance(formatLocale));
+            formats.put(patternString, format);
+        }
+        return format.format(toNumber(value));
+    }
+
+    /**
+     * Format a currency amount in the specified currency, using the conventions of the default locale.
+     *
+     * @param   value           the amount (or a string representation of a number)
+     * @param   currencyCode    the ISO 4217 currency code (for example {@code AUD})
+     * @return  the formatted amount
+     */
+    public String formatCurrency(Object value, Object currencyCode) {
+        return formatCurrency(value, currencyCode, null);
+    }
+
+    /**
+     * Format a currency amount in the specified currency, using the conventions of the specified locale.
+     *
+     * @param   value           the amount (or a string representation of a number)
+     * @param   currencyCode    the ISO 4217 currency code (for example {@code AUD})
+     * @param   localeTag       the locale, as an IETF language tag, or {@code null} for the default locale
+     * @return  the formatted amount
+     */
+    public String formatCurrency(Object value, Object currencyCode, Object localeTag) {
+        if (value == null)
+            return "";
+        Locale formatLocale = getLocale(localeTag);
+        String code = toString(currencyCode);
+        Map<String, NumberFormat> formats = getFormats(currencyFormats, formatLocale);
+        NumberFormat format = formats.get(code);
+        if (format == null) {
+            format = NumberFormat.getCurrencyInstance(formatLocale);
+            Currency currency = Currency.getInstance(code);
+            format.setCurrency(currency);
+            format.setMinimumFractionDigits(currency.getDefaultFractionDigits());
+            format.setMaximumFractionDigits(currency.getDefaultFractionDigits());
+            formats.put(code, format);
+        }
+        return format.format(toNumber(value));
+    }
+
+    /**
+     * Format a fraction as a percentage (0.25 is formatted as 25%), with no decimal places.
+     *
+     * @param   value   the fraction (or a string representation of a number)
+     * @return  the formatted percentage
+     */
+    public String formatPercent(Object value) {
+        return formatPercent(value, 0);
+    }
+
+    /**
+     * Format a fraction as a percentage, with the specified number of decimal places (up to 9).
+     *
+     * @param   value           the fraction (or a string representation of a number)
+     * @param   fractionDigits  the number of decimal places
+     * @return  the formatted percentage
+     */
+    public String formatPercent(Object value, Object fractionDigits) {
+        if (value == null)
+            return "";
+        int digits = Math.min(Math.max(toNumber(fractionDigits).intValue(), 0), percentKeys.length - 1);
+        Map<String, NumberFormat> formats = getFormats(percentFormats, locale);
+        String key = percentKeys[digits];
+        NumberFormat format = formats.get(key);
+        if (format == null) {
+            format = NumberFormat.getPercentInstance(locale);
+            format.setMinimumFractionDigits(digits);
+            format.setMaximumFractionDigits(digits);
+            formats.put(key, format);
+        }
+        return format.format(toNumber(value));
+    }
+
+    /**
+     * Format a date or time using a {@link DateTimeFormatter} pattern.  The value may be any {@link TemporalAccessor}
+     * that has the fields required by the pattern (such as {@link java.time.LocalDate} or
+     * {@link java.time.ZonedDateTime}), or a {@link Date}, {@link Calendar}, {@link Instant} or number of milliseconds
+     * since the epoch, which is formatted in the time zone of this object.
+     *
+     * @param   value   the date or time
+     * @param   pattern the pattern
+     * @return  the formatted date or time
+     */
+    public String formatDate(Object value, Object pattern) {
+        return formatDate(value, pattern, null);
+    }
+
+    /**
+     * Format a date or time using a {@link DateTimeFormatter} pattern and the conventions of the specified locale.
+     *
+     * @param   value       the date or time
+     * @param   pattern     the pattern
+     * @param   localeTag   the locale, as an IETF language tag, or {@code null} for the default locale
+     * @return  the formatted date or time
+     */
+    public String formatDate(Object value, Object pattern, Object localeTag) {
+        if (value == null)
+            return "";
+        Locale formatLocale = getLocale(localeTag);
+        String patternString = toString(pattern);
+        ConcurrentMap<String, DateTimeFormatter> formats = dateFormats.get(formatLocale);
+        if (formats == null) {
+            formats = new ConcurrentHashMap<>();
+            ConcurrentMap<String, DateTimeFormatter> existing = dateFormats.putIfAbsent(formatLocale, formats);
+            if (existing != null)
+                formats = existing;
+        }
+        DateTimeFormatter formatter = formats.get(patternString);
+        if (formatter == null) {
+            formatter = DateTimeFormatter.ofPattern(patternString, formatLocale);
+            if (formats.size() < maxCachedFormats)
+                formats.put(patternString, formatter);
+        }
+        return formatter.format(toTemporal(value));
+    }
+
+    /**
+     * Escape a string for use as a component of a URL (a path segment or a query parameter name or value).  All
+     * characters other than the unreserved characters of RFC 3986 (letters, digits, {@code -}, {@code .}, {@code _}
+     * and {@code ~}) are percent-encoded as UTF-8.
+     *
+     * @param   value   the string
+     * @return  the escaped string
+     */
+    public String escapeURL(Object value) {
+        String str = toString(value);
+        int n = str.length();
+        int i = 0;
+        while (i < n && isUnreserved(str.charAt(i)))
+            i++;
+        if (i == n)
+            return str;
+        StringBuilder sb = new StringBuilder(n + 16).append(str, 0, i);
+        while (i < n) {
+            char ch = str.charAt(i);
+            if (isUnreserved(ch)) {
+                sb.append(ch);
+                i++;
+            }
+            else {
+                int end = i + 1;
+                if (Character.isHighSurrogate(ch) && end < n && Character.isLowSurrogate(str.charAt(end)))
+                    end++;
+                for (byte b : str.substring(i, end).getBytes(StandardCharsets.UTF_8))
+                    sb.append('%').append(hexDigits[(b >> 4) & 0xF]).append(hexDigits[b & 0xF]);
+                i = end;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Escape a string for use within a JavaScript string literal (delimited by either single or double quotes).  The
+     * characters {@code <}, {@code >} and {@code &} are also escaped, so that the result may be used safely within a
+     * {@code <script>} element or an event handler attribute.
+     *
+     * @param   value   the string
+     * @return  the escaped string
+     */
+    public String escapeJS(Object value) {
+        String str = toString(value);
+        int n = str.length();
+        int i = 0;
+        while (i < n && !needsJSEscape(str.charAt(i)))
+            i++;
+        if (i == n)
+            return str;
+        StringBuilder sb = new StringBuilder(n + 16).append(str, 0, i);
+        for (; i < n; i++) {
+            char ch = str.charAt(i);
+            if (!needsJSEscape(ch))
+                sb.append(ch);
+            else if (ch == '\\')
+                sb.append("\\\\");
+            else if (ch == '\'')
+                sb.append("\\'");
+            else if (ch == '"')
+                sb.append("\\\"");
+            else if (ch == '\n')
+                sb.append("\\n");
+            else if (ch == '\r')
+                sb.append("\\r");
+            else if (ch == '\t')
+                sb.append("\\t");
+            else
+                sb.append("\\u").append(hexDigits[(ch >> 12) & 0xF]).append(hexDigits[(ch >> 8) & 0xF]).
+                        append(hexDigits[(ch >> 4) & 0xF]).append(hexDigits[ch & 0xF]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Join the items of a collection, array or map (the values are used), separated by the specified string.
+     *
+     * @param   items       the items
+     * @param   separator   the separator
+     * @return  the joined string
+     */
+    public String join(Object items, Object separator) {
+        if (items == null)
+            return "";
+        String separatorString = toString(separator);
+        StringBuilder sb = new StringBuilder();
+        if (items instanceof Map<?, ?>)
+            items = ((Map<?, ?>)items).values();
+        if (items instanceof Iterable<?>) {
+            Iterator<?> iterator = ((Iterable<?>)items).iterator();
+            if (iterator.hasNext()) {
+                append(sb, iterator.next());
+                while (iterator.hasNext())
+                    append(sb.append(separatorString), iterator.next());
+            }
+        }
+        else if (items.getClass().isArray()) {
+            for (int i = 0, n = Array.getLength(items); i < n; i++) {
+                if (i > 0)
+                    sb.append(separatorString);
+                append(sb, Array.get(items, i));
+            }
+        }
+        else
+            append(sb, items);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, Object item) {
+        if (item != null)
+            sb.append(item);
+    }
+
+    private Locale getLocale(Object localeTag) {
+        if (localeTag == null)
+            return locale;
+        String tag = localeTag.toString();
+        if (tag.isEmpty())
+            return locale;
+        Locale result = locales.get(tag);
+        if (result == null) {
+            result = Locale.forLanguageTag(tag);
+            if (locales.size() < maxCachedFormats)
+                locales.put(tag, result);
+        }
+        return result;
+    }
+
+    private static ThreadLocal<Map<Locale, Map<String, NumberFormat>>> newFormatCache() {
+        return new ThreadLocal<Map<Locale, Map<String, NumberFormat>>>() {
+            @Override
+            protected Map<Locale, Map<String, NumberFormat>> initialValue() {
+                return new HashMap<>();
+            }
+        };
+    }
+
+    private static Map<String, NumberFormat> getFormats(ThreadLocal<Map<Locale, Map<String, NumberFormat>>> cache,
+            Locale locale) {
+        Map<Locale, Map<String, NumberFormat>> threadFormats = cache.get();
+        Map<String, NumberFormat> formats = threadFormats.get(locale);
+        if (formats == null) {
+            formats = new HashMap<>();
+            threadFormats.put(locale, formats);
+        }
+        else if (formats.size() >= maxCachedFormats)
+            formats.clear();
+        return formats;
+    }
+
+    private static Number toNumber(Object value) {
+        if (value instanceof Number)
+            return (Number)value;
+        if (value == null)
+            return 0;
+        try {
+            return new BigDecimal(value.toString().trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number - " + value);
+        }
+    }
+
+    private TemporalAccessor toTemporal(Object value) {
+        if (value instanceof TemporalAccessor && !(value instanceof Instant))
+            return (TemporalAccessor)value;
+        if (value instanceof Instant)
+            return ((Instant)value).atZone(zone);
+        if (value instanceof Date)
+            return Instant.ofEpochMilli(((Date)value).getTime()).atZone(zone);
+        if (value instanceof Calendar)
+            return Instant.ofEpochMilli(((Calendar)value).getTimeInMillis()).atZone(zone);
+        if (value instanceof Number)
+            return Instant.ofEpochMilli(((Number)value).longValue()).atZone(zone);
+        throw new IllegalArgumentException("Not a date - " + value);
+    }
+
+    private static String toString(Object value) {
+        return value == null ? "" : value.toString();
+    }
+
+    private static boolean isUnreserved(char ch) {
+        return ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' || ch == '-' ||
+                ch == '.' || ch == '_' || ch == '~';
+    }
+
+    private static boolean needsJSEscape(char ch) {
+        return ch < 0x20 || ch == '\\' || ch == '\'' || ch == '"' || ch == '<' || ch == '>' || ch == '&' ||
+                ch == 0x2028 || ch == 0x2029;
+    }
+
+}
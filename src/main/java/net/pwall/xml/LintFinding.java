@@ -0,0 +1,132 @@
+/*
+ * @(#) LintFinding.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+/**
+ * A finding of the static analysis of a template (see {@link TemplateProcessor#lint()}): a construct that is likely to
+ * make processing of the template slow, with its location.
+ *
+ * @author  Peter Wall
+ */
+public class LintFinding {
+
+    /**
+     * The types of finding.
+     */
+    public enum Type {
+
+        /** An {@code <include>} with a dynamic {@code href} within a {@code <for>} loop */
+        DYNAMIC_INCLUDE_IN_LOOP,
+        /** A {@code <call>} with a dynamic {@code name} within a {@code <for>} loop */
+        DYNAMIC_CALL_IN_LOOP,
+        /** An expression evaluated on each iteration of a loop that does not refer to any name bound in the loop */
+        LOOP_INVARIANT_EXPRESSION,
+        /** A {@code <copy>} with a large number of {@code <intercept>}s */
+        MANY_INTERCEPTS,
+        /** A {@code <set>} within a {@code <for>} loop */
+        SET_IN_LOOP,
+        /** A macro that calls itself (directly or through other macros) unconditionally */
+        UNBOUNDED_RECURSION,
+        /** A large block of static content */
+        LARGE_STATIC_CONTENT,
+        /** An element in the template namespace that is not part of the template language */
+        UNKNOWN_ELEMENT,
+        /** An {@code <include>} with a static {@code href} that could not be loaded */
+        INCLUDE_ERROR
+
+    }
+
+    private final Type type;
+    private final String message;
+    private final String url;
+    private final String xpath;
+    private final int line;
+    private final int column;
+
+    LintFinding(Type type, String message, String url, String xpath, int line, int column) {
+        this.type = type;
+        this.message = message;
+        this.url = url;
+        this.xpath = xpath;
+        this.line = line;
+        this.column = column;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the URL of the template document containing the finding.
+     *
+     * @return  the URL (as a string), or {@code null} if not known
+     */
+    public String getURL() {
+        return url;
+    }
+
+    public String getXPath() {
+        return xpath;
+    }
+
+    /**
+     * Get the line number of the element to which the finding relates.
+     *
+     * @return  the line number, or 0 if not known
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * Get the column number of the end of the start tag of the element to which the finding relates.
+     *
+     * @return  the column number, or 0 if not known
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (url != null)
+            sb.append(url).append(':');
+        if (line > 0)
+            sb.append(line).append(':').append(column).append(':');
+        if (sb.length() > 0)
+            sb.append(' ');
+        if (xpath != null)
+            sb.append(xpath).append(": ");
+        return sb.append(message).toString();
+    }
+
+}
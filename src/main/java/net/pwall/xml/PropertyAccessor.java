@@ -0,0 +1,328 @@
+/*
+ * @(#) PropertyAccessor.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import net.pwall.el.Constant;
+import net.pwall.el.Expression;
+import net.pwall.el.ExpressionException;
+import net.pwall.el.ExtendedResolver;
+
+/**
+ * Property access for Java beans, using {@link MethodHandle}s cached per class in place of reflection on each access.
+ *
+ * <p>The Expression Language accesses the properties of a {@link Map} by name, so a bean wrapped in a {@link BeanMap}
+ * (see {@link #wrap(Object)}) has its properties resolved through the cached accessors.  Variables hold the beans
+ * themselves; a {@link WrappingResolver} wraps a bean only for an expression that uses it solely for property access,
+ * so that functions, {@code empty} and comparisons still see the bean.</p>
+ *
+ * @author  Peter Wall
+ */
+public class PropertyAccessor {
+
+    private static final MethodType getterType = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Map<String, MethodHandle>> accessors = new ClassValue<Map<String, MethodHandle>>() {
+        @Override
+        protected Map<String, MethodHandle> computeValue(Class<?> type) {
+            return findAccessors(type);
+        }
+    };
+
+    /**
+     * Wrap an object in a {@link BeanMap} if it is a bean.  Objects of the standard Java types and of types known to
+     * the Expression Language are returned unchanged.
+     *
+     * @param   obj     the object
+     * @return  the wrapped object, or the original object if it is not a bean
+     */
+    public static Object wrap(Object obj) {
+        return wrap(obj, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Wrap an object in a {@link BeanMap} if it is a bean, to a limited depth: the properties of the wrapped bean are
+     * themselves wrapped to one less than the given depth.
+     *
+     * @param   obj     the object
+     * @param   depth   the number of levels of property access to be resolved through the cached accessors
+     * @return  the wrapped object, or the original object if it is not a bean or the depth is zero
+     */
+    public static Object wrap(Object obj, int depth) {
+        return depth > 0 && isBean(obj) ? new BeanMap(obj, depth) : obj;
+    }
+
+    private static boolean isBean(Object obj) {
+        if (obj == null || obj instanceof BeanMap || obj instanceof Map<?, ?> || obj instanceof Iterable<?> ||
+                obj instanceof CharSequence || obj instanceof Number || obj instanceof Boolean ||
+                obj instanceof Character || obj instanceof Enum<?> || obj instanceof TemplateProcessor.ElementWrapper)
+            return false;
+        Class<?> type = obj.getClass();
+        if (type.isArray())
+            return false;
+        String className = type.getName();
+        return !(className.startsWith("java.") || className.startsWith("javax.") ||
+                className.startsWith("net.pwall.json.") || className.startsWith("net.pwall.el."));
+    }
+
+    private static Object invoke(MethodHandle getter, Object obj, String name) {
+        try {
+            return (Object)getter.invokeExact(obj);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new RuntimeException("Error getting property " + name + " of " + obj.getClass().getName(), t);
+        }
+    }
+
+    private static Map<String, MethodHandle> findAccessors(Class<?> type) {
+        Map<String, MethodHandle> result = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0 ||
+                    method.getReturnType() == void.class)
+                continue;
+            String methodName = method.getName();
+            String propertyName;
+            if (methodName.startsWith("get") && methodName.length() > 3 && !methodName.equals("getClass"))
+                propertyName = decapitalize(methodName.substring(3));
+            else if (methodName.startsWith("is") && methodName.length() > 2 && method.getReturnType() == boolean.class)
+                propertyName = decapitalize(methodName.substring(2));
+            else
+                continue;
+            MethodHandle getter = findGetter(method);
+            if (getter != null && !result.containsKey(propertyName))
+                result.put(propertyName, getter.asType(getterType));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static MethodHandle findGetter(Method method) {
+        // the method may be declared in a class that is not accessible; look for the same method in a public type
+        for (Class<?> type = method.getDeclaringClass(); type != null; type = type.getSuperclass()) {
+            MethodHandle getter = findGetter(type, method);
+            if (getter != null)
+                return getter;
+            for (Class<?> interfaceType : type.getInterfaces()) {
+                getter = findGetter(interfaceType, method);
+                if (getter != null)
+                    return getter;
+            }
+        }
+        return null;
+    }
+
+    private static MethodHandle findGetter(Class<?> type, Method method) {
+        if (!Modifier.isPublic(type.getModifiers()))
+            return null;
+        try {
+            return MethodHandles.publicLookup().unreflect(type.getMethod(method.getName()));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static String decapitalize(String name) {
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(0)) && Character.isUpperCase(name.charAt(1)))
+            return name;
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * A read-only {@link Map} view of the properties of a bean.  Property values that are themselves beans are also
+     * returned as {@code BeanMap}s, so that a chain of property references uses the cached accessors throughout.
+     */
+    public static class BeanMap extends AbstractMap<String, Object> {
+
+        private final Object bean;
+        private final Map<String, MethodHandle> getters;
+        private final int depth;
+
+        public BeanMap(Object bean, int depth) {
+            this.bean = bean;
+            getters = accessors.get(bean.getClass());
+            this.depth = depth;
+        }
+
+        public BeanMap(Object bean) {
+            this(bean, Integer.MAX_VALUE);
+        }
+
+        public Object getBean() {
+            return bean;
+        }
+
+        @Override
+        public Object get(Object key) {
+            MethodHandle getter = getters.get(key);
+            return getter == null ? null : wrap(invoke(getter, bean, (String)key), depth - 1);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getters.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return getters.size();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    final Iterator<String> keys = getters.keySet().iterator();
+                    return new Iterator<Entry<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+                        @Override
+                        public Entry<String, Object> next() {
+                            String key = keys.next();
+                            return new SimpleImmutableEntry<>(key, get(key));
+                        }
+                    };
+                }
+                @Override
+                public int size() {
+                    return getters.size();
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other == this || other instanceof BeanMap && bean.equals(((BeanMap)other).bean);
+        }
+
+        @Override
+        public int hashCode() {
+            return bean.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return bean.toString();
+        }
+
+    }
+
+    /**
+     * A resolver that wraps the values of variables for an expression according to the depth of property access
+     * applied to each identifier in the expression (see {@link CompiledTemplate#findPropertyDepths(String)}).  One
+     * resolver is created for each expression string, and it delegates to the resolver for the current context at the
+     * time of use; the wrapped beans are held in a cache supplied by the user of the resolver, so that a bean used
+     * repeatedly is wrapped only once for each depth.
+     */
+    abstract static class WrappingResolver implements ExtendedResolver {
+
+        private final Map<String, Integer> depths;
+
+        WrappingResolver(Map<String, Integer> depths) {
+            this.depths = depths;
+        }
+
+        /**
+         * Get the resolver to which resolution is delegated.
+         *
+         * @return  the resolver for the current context
+         */
+        abstract ExtendedResolver getResolver();
+
+        /**
+         * Get the cache of wrapped beans, keyed by the identity of the bean, with the wrapped form for each depth.
+         *
+         * @return  the cache
+         */
+        abstract Map<Object, Constant[]> getWrappers();
+
+        boolean hasDepths() {
+            return !depths.isEmpty();
+        }
+
+        @Override
+        public Expression resolve(String identifier) {
+            Expression expression = getResolver().resolve(identifier);
+            Integer depth = depths.get(identifier);
+            if (expression == null || depth == null || depth == 0)
+                return expression;
+            try {
+                Object value = expression.evaluate();
+                return isBean(value) ? getWrapper(value, depth) : expression;
+            }
+            catch (ExpressionException e) {
+                return expression;
+            }
+        }
+
+        private Constant getWrapper(Object bean, int depth) {
+            Map<Object, Constant[]> wrappers = getWrappers();
+            Constant[] array = wrappers.get(bean);
+            if (array == null || array.length <= depth) {
+                Constant[] newArray = new Constant[depth + 1];
+                if (array != null)
+                    System.arraycopy(array, 0, newArray, 0, array.length);
+                array = newArray;
+                wrappers.put(bean, array);
+            }
+            Constant wrapper = array[depth];
+            if (wrapper == null) {
+                wrapper = new Constant(new BeanMap(bean, depth));
+                array[depth] = wrapper;
+            }
+            return wrapper;
+        }
+
+        @Override
+        public String resolvePrefix(String prefix) {
+            return getResolver().resolvePrefix(prefix);
+        }
+
+        @Override
+        public Object resolveNamespace(String uri) {
+            return getResolver().resolveNamespace(uri);
+        }
+
+    }
+
+}
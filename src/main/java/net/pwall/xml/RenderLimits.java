@@ -0,0 +1,117 @@
+/*
+ * @(#) RenderLimits.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+/**
+ * Limits applied to the processing of a template, to prevent a pathological template or data set from occupying a
+ * thread indefinitely.  A limit of zero means no limit; all limits default to zero except the call depth, which
+ * defaults to {@link #defaultMaxCallDepth} (and that default applies also when no {@code RenderLimits} are set).  When
+ * a limit is exceeded, processing fails with a {@link TemplateException} identifying the element being processed.
+ *
+ * @author  Peter Wall
+ * @see     TemplateProcessor#setRenderLimits(RenderLimits)
+ */
+public class RenderLimits {
+
+    public static final int defaultMaxCallDepth = 100;
+
+    private long maxIterations;
+    private int maxCallDepth;
+    private long maxOutputBytes;
+    private long timeLimit;
+
+    public RenderLimits() {
+        maxIterations = 0;
+        maxCallDepth = defaultMaxCallDepth;
+        maxOutputBytes = 0;
+        timeLimit = 0;
+    }
+
+    public long getMaxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * Set the maximum total number of iterations of {@code <for>} loops in a single use of the template.  The count is
+     * shared by the blocks of {@code <parallel>} elements and by the shards of sharded output.
+     *
+     * @param   maxIterations   the maximum number of iterations, or 0 for no limit
+     */
+    public void setMaxIterations(long maxIterations) {
+        this.maxIterations = checkLimit(maxIterations);
+    }
+
+    public int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+
+    /**
+     * Set the maximum depth of nested {@code <call>} and {@code <include>} elements.  Processing uses the Java stack in
+     * proportion to this depth, and the default allows for the default stack size of a thread; a larger limit (or no
+     * limit) should be used only with a larger stack (see {@link TemplateProcessor#setStackSize(long)}), since
+     * exhausting the stack fails with a {@link StackOverflowError}.
+     *
+     * @param   maxCallDepth    the maximum depth, or 0 for no limit
+     */
+    public void setMaxCallDepth(int maxCallDepth) {
+        this.maxCallDepth = (int)checkLimit(maxCallDepth);
+    }
+
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    /**
+     * Set the maximum number of bytes of output.  If compression is selected, the limit applies to the uncompressed
+     * output (before compression), so that it limits the work done whatever the compression ratio.  This limit does
+     * not apply to output to a {@link SAXHandler} or DOM.
+     *
+     * @param   maxOutputBytes  the maximum number of bytes, or 0 for no limit
+     */
+    public void setMaxOutputBytes(long maxOutputBytes) {
+        this.maxOutputBytes = checkLimit(maxOutputBytes);
+    }
+
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * Set the maximum elapsed time for a single use of the template.
+     *
+     * @param   timeLimit   the time limit in milliseconds, or 0 for no limit
+     */
+    public void setTimeLimit(long timeLimit) {
+        this.timeLimit = checkLimit(timeLimit);
+    }
+
+    private static long checkLimit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Limit must not be negative - " + limit);
+        return limit;
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * @(#) SAXRecorder.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * A {@link SAXHandler} that records the events it receives, so that they may be replayed later to another handler.
+ * Character data is copied, so the arrays passed to {@link #characters(char[], int, int)} may be re-used by the
+ * caller.
+ *
+ * @author  Peter Wall
+ */
+class SAXRecorder extends DefaultHandler2 implements SAXHandler {
+
+    private static final byte startElementEvent = 1;
+    private static final byte endElementEvent = 2;
+    private static final byte charactersEvent = 3;
+    private static final byte ignorableWhitespaceEvent = 4;
+    private static final byte processingInstructionEvent = 5;
+    private static final byte startPrefixMappingEvent = 6;
+    private static final byte endPrefixMappingEvent = 7;
+    private static final byte startCDATAEvent = 8;
+    private static final byte endCDATAEvent = 9;
+    private static final byte commentEvent = 10;
+    private static final byte startDTDEvent = 11;
+    private static final byte endDTDEvent = 12;
+
+    private byte[] events;
+    private int numEvents;
+    private final List<Object> args;
+    private char[] chars;
+    private int numChars;
+
+    SAXRecorder() {
+        events = new byte[64];
+        numEvents = 0;
+        args = new ArrayList<>();
+        chars = new char[1024];
+        numChars = 0;
+    }
+
+    /**
+     * Replay the recorded events to another handler.
+     *
+     * @param   handler         the handler
+     * @throws  SAXException    if thrown by the handler
+     */
+    void replay(SAXHandler handler) throws SAXException {
+        int argIndex = 0;
+        for (int i = 0; i < numEvents; i++) {
+            switch (events[i]) {
+            case startElementEvent:
+                handler.startElement((String)args.get(argIndex), (String)args.get(argIndex + 1),
+                        (String)args.get(argIndex + 2), (Attributes)args.get(argIndex + 3));
+                argIndex += 4;
+                break;
+            case endElementEvent:
+                handler.endElement((String)args.get(argIndex), (String)args.get(argIndex + 1),
+                        (String)args.get(argIndex + 2));
+                argIndex += 3;
+                break;
+            case charactersEvent:
+            case ignorableWhitespaceEvent:
+            case commentEvent:
+                int[] range = (int[])args.get(argIndex++);
+                if (events[i] == charactersEvent)
+                    handler.characters(chars, range[0], range[1]);
+                else if (events[i] == ignorableWhitespaceEvent)
+                    handler.ignorableWhitespace(chars, range[0], range[1]);
+                else
+                    handler.comment(chars, range[0], range[1]);
+                break;
+            case processingInstructionEvent:
+                handler.processingInstruction((String)args.get(argIndex), (String)args.get(argIndex + 1));
+                argIndex += 2;
+                break;
+            case startPrefixMappingEvent:
+                handler.startPrefixMapping((String)args.get(argIndex), (String)args.get(argIndex + 1));
+                argIndex += 2;
+                break;
+            case endPrefixMappingEvent:
+                handler.endPrefixMapping((String)args.get(argIndex++));
+                break;
+            case startCDATAEvent:
+                handler.startCDATA();
+                break;
+            case endCDATAEvent:
+                handler.endCDATA();
+                break;
+            case startDTDEvent:
+                handler.startDTD((String)args.get(argIndex), (String)args.get(argIndex + 1),
+                        (String)args.get(argIndex + 2));
+                argIndex += 3;
+                break;
+            case endDTDEvent:
+                handler.endDTD();
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+        addEvent(startElementEvent);
+        args.add(uri);
+        args.add(localName);
+        args.add(qName);
+        args.add(new AttributesImpl(atts));
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        addEvent(endElementEvent);
+        args.add(uri);
+        args.add(localName);
+        args.add(qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        addChars(charactersEvent, ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        addChars(ignorableWhitespaceEvent, ch, start, length);
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) {
+        addChars(commentEvent, ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) {
+        addEvent(processingInstructionEvent);
+        args.add(target);
+        args.add(data);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        addEvent(startPrefixMappingEvent);
+        args.add(prefix);
+        args.add(uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) {
+        addEvent(endPrefixMappingEvent);
+        args.add(prefix);
+    }
+
+    @Override
+    public void startCDATA() {
+        addEvent(startCDATAEvent);
+    }
+
+    @Override
+    public void endCDATA() {
+        addEvent(endCDATAEvent);
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+        addEvent(startDTDEvent);
+        args.add(name);
+        args.add(publicId);
+        args.add(systemId);
+    }
+
+    @Override
+    public void endDTD() {
+        addEvent(endDTDEvent);
+    }
+
+    private void addEvent(byte event) {
+        if (numEvents == events.length)
+            events = Arrays.copyOf(events, numEvents * 2);
+        events[numEvents++] = event;
+    }
+
+    private void addChars(byte event, char[] ch, int start, int length) {
+        addEvent(event);
+        if (numChars + length > chars.length)
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, numChars + length));
+        System.arraycopy(ch, start, chars, numChars, length);
+        args.add(new int[] { numChars, length });
+        numChars += length;
+    }
+
+}
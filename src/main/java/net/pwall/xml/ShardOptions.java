@@ -0,0 +1,128 @@
+/*
+ * @(#) ShardOptions.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+/**
+ * Options for sharded output, in which one top-level {@code <for>} loop of a template is partitioned into a number of
+ * shards, and each shard is processed concurrently into a separate file.  Each shard processes a contiguous slice of
+ * the iterations of the loop, so that the shards taken in order contain the output of the loop in its usual order.
+ *
+ * @author  Peter Wall
+ * @see     TemplateProcessor#processSharded(ShardOptions)
+ */
+public class ShardOptions {
+
+    private String loopName;
+    private int shards;
+    private String filePattern;
+    private boolean repeatFrame;
+    private int bufferSize;
+
+    public ShardOptions() {
+        loopName = null;
+        shards = 1;
+        filePattern = null;
+        repeatFrame = true;
+        bufferSize = ChannelOutputStream.defaultBufferSize;
+    }
+
+    public String getLoopName() {
+        return loopName;
+    }
+
+    /**
+     * Set the name of the loop to be partitioned.  This is the {@code name} attribute of the {@code <for>} element,
+     * which must be the only {@code <for>} of that name in the template, and must not be within another
+     * {@code <for>}, a {@code <macro>} or a {@code <parallel>} element.
+     *
+     * @param   loopName    the loop name
+     */
+    public void setLoopName(String loopName) {
+        this.loopName = loopName;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Set the number of shards.
+     *
+     * @param   shards  the number of shards
+     */
+    public void setShards(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("Number of shards must be at least 1 - " + shards);
+        this.shards = shards;
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    /**
+     * Set the pattern for the names of the shard files.  The name of each file is derived by
+     * {@link String#format(String, Object...)}, with the shard number (starting from 1) as the argument, for example
+     * {@code export-%03d.xml}.
+     *
+     * @param   filePattern     the file name pattern
+     */
+    public void setFilePattern(String filePattern) {
+        this.filePattern = filePattern;
+    }
+
+    public boolean isRepeatFrame() {
+        return repeatFrame;
+    }
+
+    /**
+     * Select whether the output of the template before and after the loop (the header and footer) is repeated in
+     * each shard.  If not, the header is output only in the first shard and the footer only in the last, so that the
+     * shards may be concatenated to give the output of the template as a whole.
+     *
+     * @param   repeatFrame     {@code true} to repeat the header and footer in each shard
+     */
+    public void setRepeatFrame(boolean repeatFrame) {
+        this.repeatFrame = repeatFrame;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the size of the output buffer for each shard file.
+     *
+     * @param   bufferSize  the buffer size
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be positive - " + bufferSize);
+        this.bufferSize = bufferSize;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * @(#) ShardResult.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+import java.io.File;
+
+/**
+ * The result of processing one shard of sharded output: the file written, and the number of iterations of the
+ * partitioned loop (records) it contains.
+ *
+ * @author  Peter Wall
+ * @see     TemplateProcessor#processSharded(ShardOptions)
+ */
+public class ShardResult {
+
+    private final File file;
+    private final int records;
+
+    ShardResult(File file, int records) {
+        this.file = file;
+        this.records = records;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+}
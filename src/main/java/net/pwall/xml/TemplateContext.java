@@ -2,7 +2,7 @@
  * @(#) TemplateContext.java
  *
  * xtj XML Templating for Java
- * Copyright (c) 2015, 2016, 2019, 2020 Peter Wall
+ * Copyright (c) 2015, 2016, 2019, 2020, 2026 Peter Wall
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -48,13 +48,15 @@ public class TemplateContext implements ExtendedResolver {
 
     private final TemplateContext parent;
     private final Element element;
-    private final Map<String, Expression> map;
-    private final Map<String, Element> macros;
-    private final Map<String, Object> namespaces;
+    private Map<String, Expression> map;
+    private Map<String, Element> macros;
+    private Map<String, Object> namespaces;
     private URL url;
+    private CachedRegion region;
 
     /**
-     * Construct the <code>TemplateContext</code>
+     * Construct the <code>TemplateContext</code>.  The maps of variables, macros and namespaces are not allocated until
+     * they are required, so that a context that defines nothing is cheap to create.
      *
      * @param   parent  the parent context
      * @param   element the context element
@@ -62,10 +64,11 @@ public class TemplateContext implements ExtendedResolver {
     public TemplateContext(TemplateContext parent, Element element) {
         this.parent = parent;
         this.element = element;
-        map = new HashMap<>();
-        macros = new HashMap<>();
-        namespaces = new HashMap<>();
+        map = null;
+        macros = null;
+        namespaces = null;
         url = parent == null ? null : parent.getURL();
+        region = null;
     }
 
     /**
@@ -85,6 +88,26 @@ public class TemplateContext implements ExtendedResolver {
         this.url = url;
     }
 
+    /**
+     * Mark this context as the context of a {@code <region>} being recorded.  Identifiers resolved through this
+     * context from the enclosing contexts are recorded as dependencies of the region.
+     *
+     * @param   region  the region
+     */
+    void setRegion(CachedRegion region) {
+        this.region = region;
+    }
+
+    /**
+     * Record a call to a function that has not been declared pure: the regions being recorded in this context and the
+     * enclosing contexts may not be re-used.
+     */
+    void recordImpureCall() {
+        for (TemplateContext context = this; context != null; context = context.parent)
+            if (context.region != null)
+                context.region.recordImpureCall();
+    }
+
     /**
      * Create a variable, or modify an existing one.
      *
@@ -92,10 +115,14 @@ public class TemplateContext implements ExtendedResolver {
      * @param object      the value of the variable
      */
     public void setVariable(String identifier, Object object) {
+        if (map == null)
+            map = new HashMap<>();
         map.put(identifier, new SimpleVariable(identifier, object));
     }
 
     public void setConstant(String identifier, Object object) {
+        if (map == null)
+            map = new HashMap<>();
         map.put(identifier, new Constant(object));
     }
 
@@ -109,13 +136,30 @@ public class TemplateContext implements ExtendedResolver {
     @Override
     public Expression resolve(String identifier) {
         for (TemplateContext context = this; context != null; context = context.parent) {
-            Expression e = context.map.get(identifier);
-            if (e != null)
-                return e;
+            if (context.map != null) {
+                Expression e = context.map.get(identifier);
+                if (e != null)
+                    return e;
+            }
+            if (context.region != null)
+                context.region.record(identifier, context.parent);
         }
         return null;
     }
 
+    /**
+     * Find the context in which an identifier is defined.
+     *
+     * @param   identifier  the identifier
+     * @return  the context, or {@code null} if the identifier is not defined
+     */
+    TemplateContext getDefiningContext(String identifier) {
+        for (TemplateContext context = this; context != null; context = context.parent)
+            if (context.map != null && context.map.containsKey(identifier))
+                return context;
+        return null;
+    }
+
     /**
      * Add a macro to the current context.
      *
@@ -126,7 +170,9 @@ public class TemplateContext implements ExtendedResolver {
         String name = element.getAttribute(nameAttrName);
         if (!Expression.isValidIdentifier(name))
             throw new TemplateException(element, "Macro name missing or invalid");
-        if (macros.containsKey(name))
+        if (macros == null)
+            macros = new HashMap<>();
+        else if (macros.containsKey(name))
             throw new TemplateException(element, "Duplicate macro - " + name);
         macros.put(name, element);
     }
@@ -139,14 +185,18 @@ public class TemplateContext implements ExtendedResolver {
      */
     public Element getMacro(String name) {
         for (TemplateContext context = this; context != null; context = context.parent) {
-            Element macro = context.macros.get(name);
-            if (macro != null)
-                return macro;
+            if (context.macros != null) {
+                Element macro = context.macros.get(name);
+                if (macro != null)
+                    return macro;
+            }
         }
         return null;
     }
 
     public void addNamespace(String uri, Object impl) {
+        if (namespaces == null)
+            namespaces = new HashMap<>();
         namespaces.put(uri, impl);
     }
 
@@ -169,9 +219,11 @@ public class TemplateContext implements ExtendedResolver {
     @Override
     public Object resolveNamespace(String uri) {
         for (TemplateContext context = this; context != null; context = context.parent) {
-            Object impl = context.namespaces.get(uri);
-            if (impl != null)
-                return impl;
+            if (context.namespaces != null) {
+                Object impl = context.namespaces.get(uri);
+                if (impl != null)
+                    return impl;
+            }
         }
         return null;
     }
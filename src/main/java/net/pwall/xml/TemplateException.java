@@ -2,7 +2,7 @@
  * @(#) TemplateException.java
  *
  * xtj XML Templating for Java
- * Copyright (c) 2015, 2016, 2019 Peter Wall
+ * Copyright (c) 2015, 2016, 2019, 2026 Peter Wall
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -25,9 +25,10 @@
 
 package net.pwall.xml;
 
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
 
 import net.pwall.util.UserError;
@@ -36,25 +37,69 @@ public class TemplateException extends UserError {
 
     private static final long serialVersionUID = 6540965713285875008L;
     private static final String idAttrName = "id";
+    private static final int[] noLocation = new int[2];
 
-    private Node node;
-    private String attrName;
+    private final Node node;
+    private final String attrName;
+    private final boolean stackTrace;
+    private String xpath;
 
     public TemplateException(Node node, String message) {
+        this(node, message, true);
+    }
+
+    /**
+     * Construct a {@code TemplateException}, optionally without a stack trace.  The stack trace of a
+     * {@code TemplateException} shows only the recursion of the template processor; where exceptions are expected in
+     * large numbers (for example, when templates use {@code <error>} to reject invalid data), creating them without
+     * stack traces greatly reduces the cost.
+     *
+     * @param   node        the node being processed
+     * @param   message     the message
+     * @param   stackTrace  {@code false} to create the exception without a stack trace
+     * @see     TemplateProcessor#setStackTraceEnabled(boolean)
+     */
+    public TemplateException(Node node, String message, boolean stackTrace) {
         super(message);
         this.node = node;
+        attrName = null;
+        this.stackTrace = stackTrace;
+        if (stackTrace)
+            super.fillInStackTrace();
     }
 
     public TemplateException(Element element, String attrName, String message) {
+        this(element, attrName, message, true);
+    }
+
+    public TemplateException(Element element, String attrName, String message, boolean stackTrace) {
         super(message);
         this.node = element;
         this.attrName = attrName;
+        this.stackTrace = stackTrace;
+        if (stackTrace)
+            super.fillInStackTrace();
     }
 
     public TemplateException(String message) {
         this(null, message);
     }
 
+    public TemplateException(String message, boolean stackTrace) {
+        this(null, message, stackTrace);
+    }
+
+    /**
+     * Fill in the stack trace, if enabled for this exception.  (The stack trace is not filled in while the superclass
+     * is being constructed; the constructor of this class fills it in once the option is known.)
+     *
+     * @return  this exception
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return stackTrace ? super.fillInStackTrace() : this;
+    }
+
     public Node getNode() {
         return node;
     }
@@ -63,36 +108,102 @@ public class TemplateException extends UserError {
         return attrName;
     }
 
+    /**
+     * Get the URL of the template document in which the error occurred.
+     *
+     * @return  the URL (as a string), or {@code null} if not known
+     */
+    public String getURL() {
+        if (node == null)
+            return null;
+        Document document = node instanceof Document ? (Document)node : node.getOwnerDocument();
+        return document == null ? null : document.getDocumentURI();
+    }
+
+    /**
+     * Get the line number in the template document of the element in which the error occurred.  The location is
+     * recorded when the template is loaded from its source or from its binary form; it is not known for a document
+     * created by the application.
+     *
+     * @return  the line number, or 0 if not known
+     */
+    public int getLine() {
+        return getLocation()[0];
+    }
+
+    /**
+     * Get the column number of the end of the start tag of the element in which the error occurred (see
+     * {@link #getLine()}).
+     *
+     * @return  the column number, or 0 if not known
+     */
+    public int getColumn() {
+        return getLocation()[1];
+    }
+
+    private int[] getLocation() {
+        Node current = node;
+        while (current != null && !(current instanceof Element))
+            current = current instanceof Attr ? ((Attr)current).getOwnerElement() : current.getParentNode();
+        int[] location = current != null ? DocumentLoader.getLocation((Element)current) : null;
+        return location != null ? location : noLocation;
+    }
+
+    /**
+     * Get an XPath-like description of the location of the error within the template.  The result is computed on the
+     * first call and retained.
+     *
+     * @return  the location, or {@code null} if not known
+     */
     public String getXPath() {
         if (node == null)
             return null;
+        String result = xpath;
+        if (result == null) {
+            result = getXPath(node, attrName);
+            xpath = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get an XPath-like description of the location of a node within a template.
+     *
+     * @param   node        the node
+     * @param   attrName    the name of an attribute of the node (if it is an element), or {@code null}
+     * @return  the location
+     */
+    static String getXPath(Node node, String attrName) {
         StringBuilder sb = new StringBuilder();
+        Node current = node;
         if (attrName != null)
             sb.append("/ @").append(attrName);
-        else if (node instanceof Text) {
+        else if (current instanceof Text) {
             sb.append("/ text()");
-            Node parent = node.getParentNode();
-            if (parent != null) {
-                int count = 0;
-                int thisIndex = 0;
-                NodeList siblings = parent.getChildNodes();
-                for (int i = 0, n = siblings.getLength(); i < n; i++) {
-                    Node sibling = siblings.item(i);
-                    if (sibling == node)
-                        thisIndex = count;
-                    else if (sibling instanceof Text)
-                        count++;
+            int thisIndex = 0;
+            boolean others = false;
+            for (Node sibling = current.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling())
+                if (sibling instanceof Text)
+                    thisIndex++;
+            if (thisIndex > 0)
+                others = true;
+            else {
+                for (Node sibling = current.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+                    if (sibling instanceof Text) {
+                        others = true;
+                        break;
+                    }
                 }
-                if (count > 0)
-                    sb.append('[').append(thisIndex + 1).append(']');
             }
-            node = node.getParentNode();
+            if (others)
+                sb.append('[').append(thisIndex + 1).append(']');
+            current = current.getParentNode();
         }
-        while (node != null && node instanceof Element) {
+        while (current instanceof Element) {
             sb.insert(0, ' ');
-            sb.insert(0, getXPathElement((Element)node));
+            sb.insert(0, getXPathElement((Element)current));
             sb.insert(0, "/ ");
-            node = node.getParentNode();
+            current = current.getParentNode();
         }
         return sb.toString();
     }
@@ -102,27 +213,33 @@ public class TemplateException extends UserError {
         String id = element.getAttribute(idAttrName);
         if (!isEmpty(id))
             sb.append('#').append(id);
-        else {
-            Node parent = element.getParentNode();
-            if (parent != null) {
-                String tagName = element.getTagName();
-                int count = 0;
-                int thisIndex = 0;
-                NodeList siblings = parent.getChildNodes();
-                for (int i = 0, n = siblings.getLength(); i < n; i++) {
-                    Node sibling = siblings.item(i);
-                    if (sibling == element)
-                        thisIndex = count;
-                    else if (sibling instanceof Element && ((Element)sibling).getTagName().equals(tagName))
-                        count++;
+        else if (element.getParentNode() != null) {
+            String tagName = element.getTagName();
+            int thisIndex = 0;
+            boolean others = false;
+            for (Node sibling = element.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling())
+                if (isElementNamed(sibling, tagName))
+                    thisIndex++;
+            if (thisIndex > 0)
+                others = true;
+            else {
+                for (Node sibling = element.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+                    if (isElementNamed(sibling, tagName)) {
+                        others = true;
+                        break;
+                    }
                 }
-                if (count > 0)
-                    sb.append('[').append(thisIndex + 1).append(']');
             }
+            if (others)
+                sb.append('[').append(thisIndex + 1).append(']');
         }
         return sb.toString();
     }
 
+    private static boolean isElementNamed(Node node, String tagName) {
+        return node instanceof Element && ((Element)node).getTagName().equals(tagName);
+    }
+
     private static boolean isEmpty(String str) {
         return str == null || str.length() == 0;
     }
@@ -0,0 +1,399 @@
+/*
+ * @(#) TemplateLinter.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Static analysis of a template and the documents it includes, reporting constructs that are likely to make
+ * processing slow.  The elements of the template language are those declared in {@code xt-1.0.xsd}, which is read
+ * from the classpath (alongside this class) when first required.
+ *
+ * <p>Text and output attributes in a loop that do not refer to any name bound in the loop are substituted once per
+ * entry to the loop by the processor, so they are not reported; the expressions reported as loop-invariant are the
+ * conditions, values and other expressions of template elements (and {@code if} attributes), which are evaluated on
+ * every iteration.</p>
+ *
+ * @author  Peter Wall
+ */
+class TemplateLinter {
+
+    static final int maxIntercepts = 4;
+    static final int largeStaticSize = 16 * 1024;
+
+    static final String schemaResource = "xt-1.0.xsd";
+    private static final String schemaNamespace = "http://www.w3.org/2001/XMLSchema";
+    private static final String schemaElementName = "element";
+
+    private static volatile Set<String> elementNames;
+
+    private static final List<String> expressionAttrNames = Arrays.asList(TemplateProcessor.testAttrName,
+            TemplateProcessor.valueAttrName, TemplateProcessor.collectionAttrName, TemplateProcessor.fromAttrName,
+            TemplateProcessor.toAttrName, TemplateProcessor.byAttrName, TemplateProcessor.elementAttrName);
+
+    private final String namespace;
+    private final List<LintFinding> findings;
+    private final Set<String> visited;
+    private final Map<String, Element> macros;
+    private final Map<String, List<String>> unconditionalCalls;
+    private Map<Element, int[]> locations;
+    private String url;
+
+    TemplateLinter(String namespace) {
+        this.namespace = namespace;
+        findings = new ArrayList<>();
+        visited = new HashSet<>();
+        macros = new LinkedHashMap<>();
+        unconditionalCalls = new HashMap<>();
+    }
+
+    /**
+     * Analyse a template document and the documents it includes (through {@code <include>} elements with a static
+     * {@code href}).
+     *
+     * @param   document    the template document
+     * @param   url         the URL of the document (may be {@code null})
+     * @return  the findings
+     */
+    List<LintFinding> lint(Document document, URL url) {
+        lintDocument(document, url);
+        findRecursion();
+        return findings;
+    }
+
+    private void lintDocument(Document document, URL documentURL) {
+        if (documentURL != null && !visited.add(documentURL.toString()))
+            return;
+        Map<Element, int[]> savedLocations = locations;
+        String savedURL = url;
+        locations = findLocations(document, documentURL);
+        url = documentURL != null ? documentURL.toString() : document.getDocumentURI();
+        Element documentElement = document.getDocumentElement();
+        if (documentElement != null)
+            lintElement(documentElement, null, null, null, false);
+        locations = savedLocations;
+        url = savedURL;
+    }
+
+    /**
+     * Analyse an element and its contents.
+     *
+     * @param   element     the element
+     * @param   loop        the innermost enclosing {@code <for>} element, or {@code null}
+     * @param   bound       the names bound in that loop, or {@code null} if not known
+     * @param   macro       the name of the enclosing macro, or {@code null}
+     * @param   conditional {@code true} if the element is processed conditionally within the macro
+     */
+    private void lintElement(Element element, Element loop, Set<String> bound, String macro, boolean conditional) {
+        Attr ifAttr = element.getAttributeNodeNS(namespace, TemplateProcessor.ifAttrName);
+        if (ifAttr != null) {
+            checkInvariant(element, ifAttr.getName(), ifAttr.getValue(), loop, bound);
+            conditional = true;
+        }
+        if (!namespace.equals(element.getNamespaceURI())) {
+            int size = staticSize(element);
+            if (size >= 0) {
+                if (size >= largeStaticSize)
+                    addFinding(LintFinding.Type.LARGE_STATIC_CONTENT, element, null,
+                            "Static content of about " + size + " characters; consider caching the output");
+                return;
+            }
+            lintChildren(element, loop, bound, macro, conditional);
+            return;
+        }
+        String localName = element.getLocalName();
+        if (!getElementNames().contains(localName)) {
+            addFinding(LintFinding.Type.UNKNOWN_ELEMENT, element, null, "Unrecognised element <" + localName + ">");
+            return;
+        }
+        if (loop != null && !localName.equals(TemplateProcessor.setElementName))
+            for (String attrName : expressionAttrNames)
+                if (element.hasAttribute(attrName))
+                    checkInvariant(element, attrName, element.getAttribute(attrName), loop, bound);
+        switch (localName) {
+        case TemplateProcessor.forElementName:
+            lintChildren(element, element, CompiledTemplate.findBoundNames(element, namespace), macro, true);
+            return;
+        case TemplateProcessor.macroElementName:
+            String name = element.getAttribute(TemplateProcessor.nameAttrName);
+            if (!macros.containsKey(name))
+                macros.put(name, element);
+            lintChildren(element, null, null, name, false);
+            return;
+        case TemplateProcessor.ifElementName:
+        case TemplateProcessor.switchElementName:
+            conditional = true;
+            break;
+        case TemplateProcessor.setElementName:
+            if (loop != null)
+                addFinding(LintFinding.Type.SET_IN_LOOP, element, null,
+                        "<set> within <for> is evaluated on each iteration");
+            break;
+        case TemplateProcessor.includeElementName:
+            lintInclude(element, loop);
+            break;
+        case TemplateProcessor.callElementName:
+            String callName = element.getAttribute(TemplateProcessor.nameAttrName);
+            if (!CompiledTemplate.isStatic(callName)) {
+                if (loop != null)
+                    addFinding(LintFinding.Type.DYNAMIC_CALL_IN_LOOP, element, TemplateProcessor.nameAttrName,
+                            "<call> with dynamic name within <for>");
+            }
+            else if (macro != null && !conditional)
+                addCall(macro, callName);
+            break;
+        case TemplateProcessor.copyElementName:
+            int intercepts = 0;
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+                if (child instanceof Element &&
+                        XML.matchNS((Element)child, TemplateProcessor.interceptElementName, namespace))
+                    intercepts++;
+            if (intercepts > maxIntercepts)
+                addFinding(LintFinding.Type.MANY_INTERCEPTS, element, null,
+                        "<copy> with " + intercepts + " <intercept> elements");
+            break;
+        }
+        lintChildren(element, loop, bound, macro, conditional);
+    }
+
+    private void lintChildren(Element element, Element loop, Set<String> bound, String macro, boolean conditional) {
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+            if (child instanceof Element)
+                lintElement((Element)child, loop, bound, macro, conditional);
+    }
+
+    private void lintInclude(Element element, Element loop) {
+        String href = element.getAttribute(TemplateProcessor.hrefAttrName);
+        if (!CompiledTemplate.isStatic(href)) {
+            if (loop != null)
+                addFinding(LintFinding.Type.DYNAMIC_INCLUDE_IN_LOOP, element, TemplateProcessor.hrefAttrName,
+                        "<include> with dynamic href within <for>");
+            return;
+        }
+        URL includeURL;
+        Document included;
+        try {
+            URL base = url == null ? null : new URL(url);
+            includeURL = base == null ? new URL(href) : new URL(base, href);
+            included = TemplateProcessor.getDocument(includeURL);
+        }
+        catch (Exception e) {
+            addFinding(LintFinding.Type.INCLUDE_ERROR, element, TemplateProcessor.hrefAttrName,
+                    "Include could not be loaded - " + href);
+            return;
+        }
+        lintDocument(included, includeURL);
+    }
+
+    private void checkInvariant(Element element, String attrName, String value, Element loop, Set<String> bound) {
+        if (loop == null || bound == null)
+            return;
+        Set<String> identifiers = CompiledTemplate.findIdentifiers("${" + value + '}');
+        if (identifiers == null || identifiers.isEmpty())
+            return;
+        for (String identifier : identifiers)
+            if (bound.contains(identifier))
+                return;
+        addFinding(LintFinding.Type.LOOP_INVARIANT_EXPRESSION, element, attrName,
+                "Expression does not refer to any name bound in the enclosing <for> - " + value);
+    }
+
+    /**
+     * Get the approximate size of the output of an element, if it is entirely static.
+     *
+     * @param   element     the element
+     * @return  the size in characters, or -1 if the element is not static
+     */
+    private int staticSize(Element element) {
+        if (namespace.equals(element.getNamespaceURI()))
+            return -1;
+        int size = element.getTagName().length() * 2 + 5;
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0, n = attributes.getLength(); i < n; i++) {
+            Attr attr = (Attr)attributes.item(i);
+            if (namespace.equals(attr.getNamespaceURI()) || !CompiledTemplate.isStatic(attr.getValue()))
+                return -1;
+            size += attr.getName().length() + attr.getValue().length() + 4;
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element) {
+                int childSize = staticSize((Element)child);
+                if (childSize < 0)
+                    return -1;
+                size += childSize;
+            }
+            else if (child instanceof Text) {
+                String data = ((Text)child).getData();
+                if (!CompiledTemplate.isStatic(data))
+                    return -1;
+                size += data.length();
+            }
+        }
+        return size;
+    }
+
+    private void addCall(String macro, String callName) {
+        List<String> calls = unconditionalCalls.get(macro);
+        if (calls == null) {
+            calls = new ArrayList<>();
+            unconditionalCalls.put(macro, calls);
+        }
+        calls.add(callName);
+    }
+
+    /**
+     * Find the macros that call themselves unconditionally, directly or through other macros.
+     */
+    private void findRecursion() {
+        for (Map.Entry<String, Element> entry : macros.entrySet()) {
+            String name = entry.getKey();
+            List<String> pending = new ArrayList<>(getCalls(name));
+            Set<String> reached = new HashSet<>();
+            while (!pending.isEmpty()) {
+                String called = pending.remove(pending.size() - 1);
+                if (called.equals(name)) {
+                    Element macro = entry.getValue();
+                    locations = findLocations(macro.getOwnerDocument(), null);
+                    url = macro.getOwnerDocument().getDocumentURI();
+                    addFinding(LintFinding.Type.UNBOUNDED_RECURSION, macro, null,
+                            "Macro " + name + " calls itself unconditionally");
+                    break;
+                }
+                if (reached.add(called))
+                    pending.addAll(getCalls(called));
+            }
+        }
+    }
+
+    private List<String> getCalls(String macro) {
+        List<String> calls = unconditionalCalls.get(macro);
+        return calls != null ? calls : Collections.<String>emptyList();
+    }
+
+    private void addFinding(LintFinding.Type type, Element element, String attrName, String message) {
+        int[] location = DocumentLoader.getLocation(element);
+        if (location == null)
+            location = locations.get(element);
+        findings.add(new LintFinding(type, message, url, TemplateException.getXPath(element, attrName),
+                location != null ? location[0] : 0, location != null ? location[1] : 0));
+    }
+
+    /**
+     * Get the names of the elements of the template language, as declared (at any level) in the schema.
+     *
+     * @return  the set of element names
+     * @throws  IllegalStateException if the schema can not be read
+     */
+    static Set<String> getElementNames() {
+        Set<String> result = elementNames;
+        if (result == null) {
+            final Set<String> names = new HashSet<>();
+            try (InputStream is = TemplateLinter.class.getResourceAsStream(schemaResource)) {
+                if (is == null)
+                    throw new IllegalStateException("Schema not found - " + schemaResource);
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.newSAXParser().parse(is, new DefaultHandler() {
+                    @Override
+                    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                        if (schemaNamespace.equals(uri) && schemaElementName.equals(localName)) {
+                            String name = attributes.getValue("name");
+                            if (name != null)
+                                names.add(name);
+                        }
+                    }
+                });
+            }
+            catch (IllegalStateException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("Error reading schema - " + schemaResource, e);
+            }
+            result = Collections.unmodifiableSet(names);
+            elementNames = result;
+        }
+        return result;
+    }
+
+    /**
+     * Find the line and column numbers of the elements of a document that was not loaded by the processor (so that
+     * the locations were not recorded when it was loaded), by parsing it from its URL with a SAX {@link Locator}.  The
+     * result is empty if the locations were recorded, or if the document has no URL, or if it can not be parsed, or if
+     * it does not match the source.
+     *
+     * @param   document    the document
+     * @param   url         the URL of the document ({@code null} to use the document URI)
+     * @return  a map from element to line and column number
+     */
+    private static Map<Element, int[]> findLocations(Document document, URL url) {
+        Map<Element, int[]> result = new IdentityHashMap<>();
+        Element documentElement = document.getDocumentElement();
+        String systemId = url != null ? url.toString() : document.getDocumentURI();
+        if (documentElement == null || DocumentLoader.getLocation(documentElement) != null || systemId == null)
+            return result;
+        List<int[]> positions;
+        try {
+            positions = DocumentLoader.findLocations(new InputSource(systemId));
+        }
+        catch (Exception e) {
+            return result;
+        }
+        NodeList elements = document.getElementsByTagName("*");
+        int n = elements.getLength();
+        if (n == positions.size())
+            for (int i = 0; i < n; i++)
+                result.put((Element)elements.item(i), positions.get(i));
+        return result;
+    }
+
+}
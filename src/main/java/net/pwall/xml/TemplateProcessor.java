@@ -2,7 +2,7 @@
  * @(#) TemplateProcessor.java
  *
  * xtj XML Templating for Java
- * Copyright (c) 2015, 2016, 2020 Peter Wall
+ * Copyright (c) 2015, 2016, 2020, 2026 Peter Wall
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -25,11 +25,11 @@
 
 package net.pwall.xml;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -38,16 +38,53 @@ import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import net.pwall.el.Constant;
 import net.pwall.el.DoubleCoercionException;
 import net.pwall.el.Expression;
 import net.pwall.el.ExpressionException;
+import net.pwall.el.ExtendedResolver;
 import net.pwall.el.Functions;
 import net.pwall.el.IntCoercionException;
 import net.pwall.el.Parser;
@@ -65,7 +102,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
-import org.xml.sax.InputSource;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
@@ -109,22 +146,25 @@ public class TemplateProcessor {
 
     public static final String defaultNamespace = "http://pwall.net/xml/xt/1.0";
     public static final String jstlFunctionsURL = "http://java.sun.com/jsp/jstl/functions";
-
-    private static final String templateElementName = "template";
-    private static final String macroElementName = "macro";
-    private static final String errorElementName = "error";
-    private static final String doctypeElementName = "doctype";
-    private static final String includeElementName = "include";
-    private static final String setElementName = "set";
-    private static final String ifElementName = "if";
-    private static final String switchElementName = "switch";
-    private static final String caseElementName = "case";
-    private static final String forElementName = "for";
-    private static final String callElementName = "call";
-    private static final String paramElementName = "param";
-    private static final String commentElementName = "comment";
-    private static final String copyElementName = "copy";
-    private static final String interceptElementName = "intercept";
+    public static final String formatFunctionsURL = "http://pwall.net/xml/xt/functions";
+
+    static final String templateElementName = "template";
+    static final String macroElementName = "macro";
+    static final String errorElementName = "error";
+    static final String doctypeElementName = "doctype";
+    static final String includeElementName = "include";
+    static final String setElementName = "set";
+    static final String ifElementName = "if";
+    static final String switchElementName = "switch";
+    static final String caseElementName = "case";
+    static final String forElementName = "for";
+    static final String callElementName = "call";
+    static final String paramElementName = "param";
+    static final String commentElementName = "comment";
+    static final String copyElementName = "copy";
+    static final String interceptElementName = "intercept";
+    static final String parallelElementName = "parallel";
+    static final String regionElementName = "region";
 
     private static final String whitespaceAttrName = "whitespace";
     private static final String outputAttrName = "output";
@@ -134,19 +174,19 @@ public class TemplateProcessor {
     private static final String textAttrName = "text";
     private static final String systemAttrName = "system";
     private static final String publicAttrName = "public";
-    private static final String nameAttrName = "name";
-    private static final String documentAttrName = "document";
-    private static final String valueAttrName = "value";
-    private static final String testAttrName = "test";
-    private static final String collectionAttrName = "collection";
-    private static final String fromAttrName = "from";
-    private static final String toAttrName = "to";
-    private static final String byAttrName = "by";
-    private static final String elementAttrName = "element";
+    static final String nameAttrName = "name";
+    static final String documentAttrName = "document";
+    static final String valueAttrName = "value";
+    static final String testAttrName = "test";
+    static final String collectionAttrName = "collection";
+    static final String fromAttrName = "from";
+    static final String toAttrName = "to";
+    static final String byAttrName = "by";
+    static final String elementAttrName = "element";
     private static final String optionAttrName = "option";
-    private static final String ifAttrName = "if";
-    private static final String hrefAttrName = "href";
-    private static final String indexAttrName = "index";
+    static final String ifAttrName = "if";
+    static final String hrefAttrName = "href";
+    static final String indexAttrName = "index";
 
     private static final String prefixTrue = "true";
     private static final String prefixFalse = "false";
@@ -155,6 +195,7 @@ public class TemplateProcessor {
     private static final String whitespaceNone = "none";
     private static final String whitespaceAll = "all";
     private static final String whitespaceIndent = "indent";
+    private static final String whitespaceMinify = "minify";
     private static final String optionInclude = "include";
 
     private static final String versionSwitch = "-version";
@@ -164,24 +205,213 @@ public class TemplateProcessor {
     private static final String jsonSwitch = "-json";
     private static final String propSwitch = "-prop";
     private static final String outSwitch = "-out";
+    private static final String compileSwitch = "-compile";
+    private static final String bufsizeSwitch = "-bufsize";
+    private static final String shardsSwitch = "-shards";
+    private static final String shardloopSwitch = "-shardloop";
+    private static final String shardframeSwitch = "-shardframe";
+    private static final String manifestSwitch = "-manifest";
+    private static final String lintSwitch = "-lint";
+    private static final String shardframeRepeat = "repeat";
+    private static final String shardframeOmit = "omit";
     private static final String dSwitch = "-D";
 
-    private static final Map<String, Document> documentMap = new HashMap<>();
+    private static final int readerBufferSize = 64 * 1024;
+    private static final int initialCharBufferSize = 1024;
+    private static final int minChunkSize = 256;
+    private static final int maxCharBufferSize = 1024 * 1024;
+
+    private static final ConcurrentMap<String, Document> documentMap = new ConcurrentHashMap<>();
+
+    private static final Executor inlineExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile ExecutorService defaultExecutor;
+    private static final ConcurrentMap<Long, ExecutorService> renderExecutors = new ConcurrentHashMap<>();
 
     private Document dom;
+    private URL url;
     private final Parser parser;
     private TemplateContext context;
     private String namespace;
     private String whitespace;
+    private boolean minify;
     private boolean prefixXML;
+    private boolean cachedPropertyAccess;
+    private Map<String, Object> staticVariables;
+    private Map<String, Object> constantVariables;
+    private CompressedOutputStream.Format compression;
+    private int compressionLevel;
+    private CompressedOutputStream chunkStream;
+    private SAXHandler chunkFormatter;
+    private int chunkSlot;
+    private final Set<String> specializationKeys;
+    private Executor executor;
+    private RenderLimits renderLimits;
+    private CancellationToken cancellationToken;
+    private CancellationToken renderToken;
+    private long stackSize;
+    private boolean stackTraceEnabled;
+    private long maxIterations;
+    private int maxCallDepth;
+    private long deadline;
+    private AtomicLong iterations;
+    private int callDepth;
+    private Element currentElement;
+    private boolean incremental;
+    private final Map<String, Long> variableVersions;
+    private long variableVersion;
+    private TemplateContext variables;
+    private Map<Element, List<CachedRegion>> regionCache;
+    private Map<Element, List<CachedRegion>> newRegionCache;
+    private CachedRegion recordingRegion;
+    private List<String> changedRegions;
+    private Map<Node, String> loopInvariants;
+    private Map<String, String> renderMemo;
+    private final Map<String, PropertyAccessor.WrappingResolver> wrappingResolvers;
+    private final Set<String> pureFunctions;
+    private final Map<String, Boolean> pureStrings;
+    private final Map<String, Boolean> pureExpressions;
+    private Map<Object, Constant[]> wrappedBeans;
+    private Element shardLoop;
+    private int shardNumber;
+    private int shardCount;
+    private boolean shardFrame;
+    private ShardFilter shardFilter;
+    private int shardStart;
+    private int shardEnd;
+    private int shardRecords;
+    private final boolean forked;
+    private CompiledTemplate compiled;
+    private char[] charBuffer;
+    private final List<AttributesImpl> attributeBuffers;
+    private int outputDepth;
+    private final List<OutputFrame> outputFrames;
+    private int frameCount;
+    private boolean preserving;
 
     public TemplateProcessor() {
         dom = null;
+        url = null;
         parser = Expression.getDefaultParser();
         context = new TemplateContext(null, null);
         namespace = defaultNamespace;
         whitespace = null;
+        minify = false;
         prefixXML = false;
+        cachedPropertyAccess = false;
+        staticVariables = Collections.emptyMap();
+        constantVariables = null;
+        specializationKeys = new HashSet<>();
+        compression = null;
+        compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        chunkStream = null;
+        chunkFormatter = null;
+        executor = null;
+        renderLimits = null;
+        cancellationToken = null;
+        renderToken = null;
+        stackSize = 0;
+        stackTraceEnabled = true;
+        maxIterations = 0;
+        maxCallDepth = 0;
+        deadline = 0;
+        iterations = new AtomicLong();
+        callDepth = 0;
+        currentElement = null;
+        incremental = false;
+        variableVersions = new HashMap<>();
+        variableVersion = 0;
+        variables = null;
+        regionCache = Collections.emptyMap();
+        newRegionCache = null;
+        recordingRegion = null;
+        changedRegions = Collections.emptyList();
+        loopInvariants = null;
+        renderMemo = null;
+        wrappingResolvers = new HashMap<>();
+        pureFunctions = new HashSet<>();
+        pureStrings = new HashMap<>();
+        pureExpressions = new HashMap<>();
+        wrappedBeans = null;
+        shardLoop = null;
+        shardFilter = null;
+        forked = false;
+        compiled = null;
+        charBuffer = new char[initialCharBufferSize];
+        attributeBuffers = new ArrayList<>();
+        outputDepth = 0;
+        outputFrames = new ArrayList<>();
+        frameCount = 0;
+        preserving = false;
+    }
+
+    /**
+     * Construct a {@code TemplateProcessor} to process one block of a {@code <parallel>} element.  The new processor
+     * shares the template and settings of the parent, and has a new context whose parent is the current context of
+     * the parent processor (which is not modified while the block is processed).
+     *
+     * @param   parent  the parent processor
+     * @param   element the {@code <parallel>} element
+     */
+    private TemplateProcessor(TemplateProcessor parent, Element element) {
+        dom = parent.dom;
+        url = parent.url;
+        parser = parent.parser;
+        context = new TemplateContext(parent.context, element);
+        namespace = parent.namespace;
+        whitespace = parent.whitespace;
+        minify = parent.minify;
+        prefixXML = parent.prefixXML;
+        cachedPropertyAccess = parent.cachedPropertyAccess;
+        staticVariables = parent.staticVariables;
+        constantVariables = parent.constantVariables;
+        specializationKeys = new HashSet<>(parent.specializationKeys);
+        compression = null;
+        compressionLevel = parent.compressionLevel;
+        chunkStream = null;
+        chunkFormatter = null;
+        executor = parent.executor;
+        renderLimits = parent.renderLimits;
+        cancellationToken = parent.cancellationToken;
+        renderToken = parent.renderToken;
+        stackSize = 0;
+        stackTraceEnabled = parent.stackTraceEnabled;
+        maxIterations = parent.maxIterations;
+        maxCallDepth = parent.maxCallDepth;
+        deadline = parent.deadline;
+        iterations = parent.iterations;
+        callDepth = parent.callDepth;
+        currentElement = element;
+        incremental = false;
+        variableVersions = parent.variableVersions;
+        variableVersion = 0;
+        variables = parent.variables;
+        regionCache = Collections.emptyMap();
+        newRegionCache = null;
+        recordingRegion = parent.recordingRegion;
+        changedRegions = Collections.emptyList();
+        loopInvariants = null;
+        renderMemo = null;
+        wrappingResolvers = new HashMap<>();
+        pureFunctions = parent.pureFunctions;
+        pureStrings = new HashMap<>();
+        pureExpressions = new HashMap<>();
+        wrappedBeans = null;
+        shardLoop = null;
+        shardFilter = null;
+        forked = true;
+        compiled = parent.compiled;
+        charBuffer = new char[initialCharBufferSize];
+        attributeBuffers = new ArrayList<>();
+        outputDepth = 0;
+        outputFrames = new ArrayList<>();
+        frameCount = 0;
+        preserving = parent.preserving;
     }
 
     public TemplateProcessor(Document dom, URL url) {
@@ -215,8 +445,12 @@ public class TemplateProcessor {
 
     public void setTemplate(Document dom, URL url) {
         this.dom = Objects.requireNonNull(dom);
+        this.url = url;
         context = new TemplateContext(context, dom.getDocumentElement());
         context.setURL(url);
+        constantVariables = null;
+        compiled = CompiledTemplate.get(dom, namespace, url, getConstantVariables(), minify);
+        regionCache = Collections.emptyMap();
     }
 
     public String getNamespace() {
@@ -225,17 +459,31 @@ public class TemplateProcessor {
 
     public void setNamespace(String namespace) {
         this.namespace = namespace;
+        compiled = null;
+        constantVariables = null;
+        regionCache = Collections.emptyMap();
     }
 
     public String getWhitespace() {
         return whitespace;
     }
 
+    /**
+     * Set the whitespace option for XML and HTML output: {@code none}, {@code all} or {@code indent} (applied by the
+     * formatter as the output is written), or {@code minify}.  With {@code minify}, a minified form of the template is
+     * compiled, in which each run of whitespace in static text is reduced to a single space and whitespace between
+     * block-level HTML elements is removed (the content of {@code <pre>}, {@code <textarea>}, {@code <script>} and
+     * {@code <style>} elements is left unchanged); the output is then written without further whitespace processing.
+     *
+     * @param   whitespace  the whitespace option
+     * @throws  TemplateException   if the option is not recognised
+     */
     public void setWhitespace(String whitespace) throws TemplateException {
         if (!(whitespaceNone.equalsIgnoreCase(whitespace) ||
                 whitespaceAll.equalsIgnoreCase(whitespace) ||
-                whitespaceIndent.equalsIgnoreCase(whitespace)))
-            throw new TemplateException("Illegal whitespace option - " + whitespace);
+                whitespaceIndent.equalsIgnoreCase(whitespace) ||
+                whitespaceMinify.equalsIgnoreCase(whitespace)))
+            throw new TemplateException("Illegal whitespace option - " + whitespace, stackTraceEnabled);
         this.whitespace = whitespace;
     }
 
@@ -250,21 +498,313 @@ public class TemplateProcessor {
     public void setPrefixXML(String prefixXML) throws TemplateException {
         if (!(prefixTrue.equalsIgnoreCase(prefixXML) || prefixFalse.equalsIgnoreCase(prefixXML) ||
                 prefixYes.equalsIgnoreCase(prefixXML) || prefixNo.equalsIgnoreCase(prefixXML)))
-            throw new TemplateException("Illegal prefix option - " + prefixXML);
+            throw new TemplateException("Illegal prefix option - " + prefixXML, stackTraceEnabled);
         setPrefixXML(prefixTrue.equalsIgnoreCase(prefixXML) || prefixYes.equalsIgnoreCase(prefixXML));
     }
 
+    public boolean isCachedPropertyAccess() {
+        return cachedPropertyAccess;
+    }
+
+    /**
+     * Select the use of cached property accessors for Java beans.  When set, a bean referred to by an expression only
+     * for access to its properties is wrapped for that expression, so that the property references use
+     * {@link PropertyAccessor} rather than reflection on each access.  A bean passed to a function, or used in any
+     * other way, is not wrapped.
+     *
+     * @param   cachedPropertyAccess    {@code true} to use cached property accessors
+     */
+    public void setCachedPropertyAccess(boolean cachedPropertyAccess) {
+        this.cachedPropertyAccess = cachedPropertyAccess;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the {@link Executor} used to process the blocks of a {@code <parallel>} element and the shards of sharded
+     * output.  If no executor is set, a dedicated pool of daemon threads, bounded to the number of processors, is used
+     * (not {@link ForkJoinPool#commonPool()}, since the blocks may block on I/O); if the processor is itself running on
+     * a thread of that pool, the blocks or shards are processed inline on the current thread, so that the pool can not
+     * deadlock waiting for itself.  A supplied executor must have threads to spare for the tasks it is given while the
+     * submitting thread waits.
+     *
+     * @param   executor    the {@link Executor}, or {@code null} to use the default
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public RenderLimits getRenderLimits() {
+        return renderLimits;
+    }
+
+    /**
+     * Set the limits to be applied to each use of the template (the limits are read at the start of processing).
+     *
+     * @param   renderLimits    the limits, or {@code null} for no limits
+     */
+    public void setRenderLimits(RenderLimits renderLimits) {
+        this.renderLimits = renderLimits;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Set a {@link CancellationToken} to allow processing to be cancelled from another thread.  When the token is
+     * cancelled, processing fails with a {@link TemplateException}.
+     *
+     * @param   cancellationToken   the token, or {@code null}
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public boolean isStackTraceEnabled() {
+        return stackTraceEnabled;
+    }
+
+    /**
+     * Enable or disable the capture of stack traces by the {@link TemplateException}s thrown by this processor.  The
+     * stack trace shows only the recursion of the template processor; where exceptions are expected in large numbers
+     * (for example, when templates use {@code <error>} to reject invalid data), disabling stack traces greatly reduces
+     * the cost of creating them.  The default is {@code true}.
+     *
+     * @param   stackTraceEnabled   {@code false} to create exceptions without stack traces
+     */
+    public void setStackTraceEnabled(boolean stackTraceEnabled) {
+        this.stackTraceEnabled = stackTraceEnabled;
+    }
+
+    public long getStackSize() {
+        return stackSize;
+    }
+
+    /**
+     * Set the stack size for processing.  The nesting of output elements (elements not in the template namespace) is
+     * processed on an explicit stack, but template elements, macros and included templates are processed recursively,
+     * using the Java stack in proportion to their nesting; if a stack size is set, each use of the template is
+     * processed on a thread with a stack of the specified size (taken from a pool of such threads, so that per-thread
+     * resources are re-used), allowing deeper nesting than the stack of the calling thread would permit.  The calling
+     * thread waits for processing to complete; if it is interrupted, processing is cancelled.  The nesting of macros
+     * and included templates is limited by {@link RenderLimits#setMaxCallDepth(int)}, with a default suitable for the
+     * default stack size; to make use of a larger stack, a larger limit must be set.  If the stack is exhausted,
+     * processing fails with a {@link StackOverflowError} (re-thrown on the calling thread).
+     *
+     * @param   stackSize   the stack size in bytes, or 0 to process on the calling thread
+     */
+    public void setStackSize(long stackSize) {
+        if (stackSize < 0)
+            throw new IllegalArgumentException("Stack size must not be negative - " + stackSize);
+        this.stackSize = stackSize;
+    }
+
+    public CompressedOutputStream.Format getCompression() {
+        return compression;
+    }
+
+    /**
+     * Select compressed output.  When set, {@link #process(OutputStream)}, {@link #processXML(OutputStream)} and
+     * {@link #processHTML(OutputStream)} write the output in the specified compressed format;
+     * {@link CompressedOutputStream.Format#getContentEncoding()} gives the corresponding HTTP
+     * {@code Content-Encoding}.
+     *
+     * @param   compression the compression format, or {@code null} for uncompressed output
+     */
+    public void setCompression(CompressedOutputStream.Format compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION &&
+                (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Illegal compression level - " + compressionLevel);
+        this.compressionLevel = compressionLevel;
+    }
+
     public void setVariable(String identifier, Object object) {
-        context.setVariable(identifier, object);
+        if (specializationKeys.contains(identifier))
+            setStaticVariable(identifier, object);
+        else {
+            removeStaticVariable(identifier);
+            updateVersion(identifier, object);
+            context.setVariable(identifier, object);
+        }
     }
 
     public <V> void setVariables(Map<String, V> map) {
         for (Map.Entry<String, V> entry : map.entrySet())
-            context.setVariable(entry.getKey(), entry.getValue());
+            setVariable(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Set a static variable.  A static variable is treated as a constant for all uses of the template by this
+     * processor, so conditions ({@code if} attributes, {@code <if>}, {@code <switch>} and {@code <case>} tests) and
+     * {@code <set>} values that depend only on static variables and literals are evaluated once, when the template is
+     * compiled, and elements that can never be processed are removed.  The variable must not be re-bound by the
+     * template; if it is set again by {@link #setVariable(String, Object)} it ceases to be static.
+     *
+     * @param   identifier  the identifier of the variable
+     * @param   object      the value of the variable
+     */
+    public void setStaticVariable(String identifier, Object object) {
+        Map<String, Object> newStaticVariables = new HashMap<>(staticVariables);
+        newStaticVariables.put(identifier, object);
+        staticVariables = Collections.unmodifiableMap(newStaticVariables);
+        compiled = null;
+        constantVariables = null;
+        regionCache = Collections.emptyMap();
+        variableVersions.put(identifier, ++variableVersion);
+        context.setVariable(identifier, object);
+    }
+
+    public <V> void setStaticVariables(Map<String, V> map) {
+        for (Map.Entry<String, V> entry : map.entrySet())
+            setStaticVariable(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Declare a variable as a specialization key.  A value subsequently supplied for the variable by
+     * {@link #setVariable(String, Object)} is treated as a static variable (see
+     * {@link #setStaticVariable(String, Object)}), so the template is specialized for each distinct combination of
+     * key values.  The specialized forms are cached and shared between processors, up to the limit set by
+     * {@link #setMaxSpecializations(int)}.  Keys should be declared before the variables are set, and should be used
+     * only for variables that take a small number of distinct values (locale, brand, device class etc.).
+     *
+     * @param   identifier  the identifier of the variable
+     */
+    public void addSpecializationKey(String identifier) {
+        specializationKeys.add(identifier);
+    }
+
+    public Set<String> getSpecializationKeys() {
+        return Collections.unmodifiableSet(specializationKeys);
+    }
+
+    /**
+     * Set the maximum number of specialized forms kept for each template document.  When the limit is reached, the
+     * least recently used form is discarded.
+     *
+     * @param   max     the maximum number of specialized forms (default 16)
+     */
+    public static void setMaxSpecializations(int max) {
+        CompiledTemplate.setMaxVariants(max);
+    }
+
+    public static int getMaxSpecializations() {
+        return CompiledTemplate.getMaxVariants();
+    }
+
+    /**
+     * Get the number of compiled forms (specializations, and variants for other namespaces or for minification)
+     * currently kept for the template document.
+     *
+     * @return  the number of compiled forms
+     */
+    public int getSpecializationCount() {
+        return dom == null ? 0 : CompiledTemplate.getVariantCount(dom);
+    }
+
+    /**
+     * Get the total number of template compilations performed, for all documents.  This may be used to monitor the
+     * effectiveness of the cache of specialized forms.
+     *
+     * @return  the number of compilations
+     */
+    public static long getCompileCount() {
+        return CompiledTemplate.getCompileCount();
+    }
+
+    private void removeStaticVariable(String identifier) {
+        if (staticVariables.containsKey(identifier)) {
+            Map<String, Object> newStaticVariables = new HashMap<>(staticVariables);
+            newStaticVariables.remove(identifier);
+            staticVariables = Collections.unmodifiableMap(newStaticVariables);
+            compiled = null;
+            constantVariables = null;
+            regionCache = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Record a new version of a variable, for the re-use of {@code <region>} output.  Setting a variable to a string,
+     * number, boolean or character equal to its previous value does not create a new version.
+     *
+     * @param   identifier  the identifier of the variable
+     * @param   value       the new value
+     */
+    private void updateVersion(String identifier, Object value) {
+        if (variableVersions.containsKey(identifier) && CachedRegion.isSimpleValue(value)) {
+            Expression previous = context.resolve(identifier);
+            try {
+                if (previous != null && Objects.equals(previous.evaluate(), value))
+                    return;
+            }
+            catch (ExpressionException ignore) {
+                // treat as changed
+            }
+        }
+        variableVersions.put(identifier, ++variableVersion);
     }
 
     public void addNamespace(String uri, Object impl) {
         context.addNamespace(uri, impl);
+        regionCache = Collections.emptyMap();
+    }
+
+    /**
+     * Declare a namespace function pure: its result depends only on its arguments, and it has no side effects.  A text
+     * or attribute value that calls a function is substituted on every use, since the function may return a different
+     * result each time (for example, the current time or a random number); if all the functions it calls have been
+     * declared pure, a value that occurs more than once in the template may be substituted once for each use of the
+     * template, and a loop-invariant value once for each entry to the loop.  In incremental mode, a {@code <region>}
+     * that calls a function is re-used only if all the functions it calls have been declared pure.
+     *
+     * @param   uri     the namespace URI
+     * @param   name    the function name, or {@code "*"} to declare all the functions of the namespace pure
+     */
+    public void addPureFunction(String uri, String name) {
+        pureFunctions.add('{' + uri + '}' + name);
+        pureStrings.clear();
+        pureExpressions.clear();
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Set incremental mode.  In incremental mode, the output of each {@code <region>} element is retained, along with
+     * the variables on which it depends, and on subsequent uses of the template the output is re-used if none of
+     * those variables has been changed.  A variable set by {@link #setVariable(String, Object)} is considered changed
+     * unless it is set to a string, number, boolean or character equal to its previous value, so a mutable object
+     * modified in place must be set again for the change to be noticed.  A region that calls a namespace function is
+     * not re-used unless the function has been declared pure (see {@link #addPureFunction(String, String)}).
+     *
+     * @param   incremental     {@code true} to re-use the output of unchanged regions
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        regionCache = Collections.emptyMap();
+    }
+
+    /**
+     * Get the names of the {@code <region>} elements processed (rather than re-used) in the most recent use of the
+     * template in incremental mode, in document order.  A region processed more than once in the same use of the
+     * template (for example, within a {@code <for>} loop) is identified on the second and subsequent occasions by its
+     * name followed by the occurrence number in brackets, as in {@code row[2]}.
+     *
+     * @return  the list of region names
+     */
+    public List<String> getChangedRegions() {
+        return changedRegions;
     }
 
     public void process(OutputStream os) throws TemplateException {
@@ -285,7 +825,7 @@ public class TemplateProcessor {
                     processHTML(os);
                 else
                     throw new TemplateException(documentElement, outputAttrName,
-                            "Illegal " + outputAttrName + ": " + outputAttr);
+                            "Illegal " + outputAttrName + ": " + outputAttr, stackTraceEnabled);
             }
             else
                 processXML(os);
@@ -310,12 +850,12 @@ public class TemplateProcessor {
                     }
                     else
                         throw new TemplateException(documentElement, outputAttrName,
-                                "Illegal " + outputAttrName + ": " + substValue);
+                                "Illegal " + outputAttrName + ": " + substValue, stackTraceEnabled);
                 }
             }
             catch (ExpressionException eee) {
                 throw new TemplateException(documentElement, outputAttrName,
-                        "Error in expression substitution" + '\n' + eee.getMessage());
+                        "Error in expression substitution" + '\n' + eee.getMessage(), stackTraceEnabled);
             }
         }
         else
@@ -331,17 +871,43 @@ public class TemplateProcessor {
             }
             catch (ExpressionException eee) {
                 throw new TemplateException(documentElement, prefixAttrName,
-                        "Error in expression substitution" + '\n' + eee.getMessage());
+                        "Error in expression substitution" + '\n' + eee.getMessage(), stackTraceEnabled);
             }
         }
     }
 
     public void processToSAX(SAXHandler saxHandler) {
+        processToSAX(saxHandler, false);
+    }
+
+    private void processToSAX(SAXHandler saxHandler, boolean minify) {
         if (context == null)
             throw new IllegalStateException("No template specified");
+        if (compiled != null && compiled.isMinify() != minify)
+            regionCache = Collections.emptyMap();
+        this.minify = minify;
+        if (compiled == null || compiled.getDocument() != dom || compiled.isMinify() != minify)
+            compiled = CompiledTemplate.get(dom, namespace, url, getConstantVariables(), minify);
+        startRender();
+        if (shardLoop != null) {
+            shardFilter = new ShardFilter(saxHandler, isShardHeader());
+            saxHandler = shardFilter;
+        }
+        if (stackSize > 0)
+            renderOnThread(saxHandler);
+        else
+            render(saxHandler);
+        shardFilter = null;
+        if (incremental)
+            regionCache = newRegionCache;
+        newRegionCache = null;
+    }
+
+    private void render(SAXHandler saxHandler) {
+        Element documentElement = dom.getDocumentElement();
+        context = new TemplateContext(variables, documentElement);
         try {
             saxHandler.startDocument();
-            Element documentElement = dom.getDocumentElement();
             if (XML.matchNS(documentElement, templateElementName, namespace))
                 processElementContents(documentElement, saxHandler, false);
             else
@@ -351,6 +917,75 @@ public class TemplateProcessor {
         catch (SAXException saxe) {
             throw new RuntimeException("Unexpected SAX exception", saxe);
         }
+        finally {
+            context = variables;
+            renderMemo = null;
+        }
+    }
+
+    private void renderOnThread(final SAXHandler saxHandler) {
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                render(saxHandler);
+                return null;
+            }
+        });
+        renderToken = new CancellationToken();
+        boolean interrupted = false;
+        try {
+            getRenderExecutor(stackSize).execute(task);
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                }
+                catch (InterruptedException ie) {
+                    // cancel the render and wait for it to stop, so that it does not outlive this call
+                    interrupted = true;
+                    renderToken.cancel();
+                }
+                catch (ExecutionException ee) {
+                    if (interrupted)
+                        break;
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException)cause;
+                    if (cause instanceof Error)
+                        throw (Error)cause;
+                    throw new RuntimeException("Unexpected exception in render", cause);
+                }
+            }
+        }
+        finally {
+            renderToken = null;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        if (interrupted)
+            throw new TemplateException("Processing interrupted", stackTraceEnabled);
+    }
+
+    private static Executor getRenderExecutor(final long stackSize) {
+        ExecutorService result = renderExecutors.get(stackSize);
+        if (result == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(null, runnable, "xtj-render-" + count.incrementAndGet(), stackSize);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            result = renderExecutors.putIfAbsent(stackSize, pool);
+            if (result == null)
+                result = pool;
+            else
+                pool.shutdown();
+        }
+        return result;
     }
 
     public Document processToDOM() {
@@ -360,18 +995,40 @@ public class TemplateProcessor {
     }
 
     public void processXML(OutputStream os) throws TemplateException {
+        if (compression == null)
+            formatXML(limitOutput(os));
+        else {
+            try {
+                CompressedOutputStream compressed = new CompressedOutputStream(os, compression, compressionLevel);
+                try {
+                    if (!(whitespace == null || whitespaceIndent.equalsIgnoreCase(whitespace)))
+                        chunkStream = compressed;
+                    formatXML(limitOutput(compressed));
+                    compressed.finish();
+                }
+                finally {
+                    chunkStream = null;
+                    chunkFormatter = null;
+                    compressed.release();
+                }
+            }
+            catch (IOException ioe) {
+                throw new RuntimeException("Unexpected I/O exception", ioe);
+            }
+        }
+    }
+
+    private void formatXML(OutputStream os) throws TemplateException {
         if (context == null)
             throw new IllegalStateException("No template specified");
-        try (XMLFormatter formatter = new XMLFormatter(os)) {
-            if (whitespaceNone.equalsIgnoreCase(whitespace))
-                formatter.setWhitespace(XMLFormatter.Whitespace.NONE);
-            else if (whitespaceAll.equalsIgnoreCase(whitespace))
-                formatter.setWhitespace(XMLFormatter.Whitespace.ALL);
-            else if (whitespaceIndent.equalsIgnoreCase(whitespace))
-                formatter.setWhitespace(XMLFormatter.Whitespace.INDENT);
-            if (prefixXML)
+        try (XMLFormatter formatter = createXMLFormatter(os)) {
+            if (chunkStream != null) {
+                chunkFormatter = formatter;
+                chunkSlot = getChunkSlot(false);
+            }
+            if (prefixXML && isShardHeader())
                 formatter.prefix();
-            processToSAX(formatter);
+            processToSAX(formatter, whitespaceMinify.equalsIgnoreCase(whitespace));
         }
         catch (IOException ioe) {
             throw new RuntimeException("Unexpected I/O exception", ioe);
@@ -382,23 +1039,245 @@ public class TemplateProcessor {
     }
 
     public void processHTML(OutputStream os) throws TemplateException {
+        if (compression == null)
+            formatHTML(limitOutput(os));
+        else {
+            try {
+                CompressedOutputStream compressed = new CompressedOutputStream(os, compression, compressionLevel);
+                try {
+                    if (!(whitespace == null || whitespaceIndent.equalsIgnoreCase(whitespace)))
+                        chunkStream = compressed;
+                    formatHTML(limitOutput(compressed));
+                    compressed.finish();
+                }
+                finally {
+                    chunkStream = null;
+                    chunkFormatter = null;
+                    compressed.release();
+                }
+            }
+            catch (IOException ioe) {
+                throw new RuntimeException("Unexpected I/O exception", ioe);
+            }
+        }
+    }
+
+    private void formatHTML(OutputStream os) throws TemplateException {
         if (context == null)
             throw new IllegalStateException("No template specified");
-        try (HTMLFormatterForXTJ formatter = new HTMLFormatterForXTJ(os)) {
-            if (whitespaceNone.equalsIgnoreCase(whitespace))
-                formatter.setWhitespace(HTMLFormatter.Whitespace.NONE);
-            else if (whitespaceAll.equalsIgnoreCase(whitespace))
-                formatter.setWhitespace(HTMLFormatter.Whitespace.ALL);
-            else if (whitespaceIndent.equalsIgnoreCase(whitespace))
-                formatter.setWhitespace(HTMLFormatter.Whitespace.INDENT);
-            processToSAX(formatter);
+        try (HTMLFormatterForXTJ formatter = createHTMLFormatter(os)) {
+            if (chunkStream != null) {
+                chunkFormatter = formatter;
+                chunkSlot = getChunkSlot(true);
+            }
+            processToSAX(formatter, whitespaceMinify.equalsIgnoreCase(whitespace));
         }
         catch (IOException ioe) {
             throw new RuntimeException("Unexpected I/O exception", ioe);
         }
     }
 
+    private XMLFormatter createXMLFormatter(OutputStream os) {
+        XMLFormatter formatter = new XMLFormatter(os);
+        if (whitespaceNone.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(XMLFormatter.Whitespace.NONE);
+        else if (whitespaceAll.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(XMLFormatter.Whitespace.ALL);
+        else if (whitespaceIndent.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(XMLFormatter.Whitespace.INDENT);
+        else if (whitespaceMinify.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(XMLFormatter.Whitespace.ALL);
+        return formatter;
+    }
+
+    private HTMLFormatterForXTJ createHTMLFormatter(OutputStream os) {
+        HTMLFormatterForXTJ formatter = new HTMLFormatterForXTJ(os);
+        if (whitespaceNone.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(HTMLFormatter.Whitespace.NONE);
+        else if (whitespaceAll.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(HTMLFormatter.Whitespace.ALL);
+        else if (whitespaceIndent.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(HTMLFormatter.Whitespace.INDENT);
+        else if (whitespaceMinify.equalsIgnoreCase(whitespace))
+            formatter.setWhitespace(HTMLFormatter.Whitespace.ALL);
+        return formatter;
+    }
+
+    /**
+     * Get the first of the two chunk slots (for output with and without whitespace preserved) used for the current
+     * formatter and whitespace option.
+     */
+    private int getChunkSlot(boolean html) {
+        int slot = html ? 6 : 0;
+        if (whitespaceAll.equalsIgnoreCase(whitespace))
+            slot += 2;
+        else if (whitespaceMinify.equalsIgnoreCase(whitespace))
+            slot += 4;
+        return slot;
+    }
+
+    /**
+     * Analyse the template, and the documents it includes, for constructs that are likely to make processing slow:
+     * dynamic includes and calls within loops, expressions within loops that do not depend on the loop, {@code <set>}
+     * within loops, {@code <copy>} with many intercepts, unconditional macro recursion, large blocks of static content
+     * and unrecognised template elements.  The template is not processed.
+     *
+     * @return  the list of findings (empty if none)
+     */
+    public List<LintFinding> lint() {
+        if (dom == null)
+            throw new IllegalStateException("No template specified");
+        return new TemplateLinter(namespace).lint(dom, url);
+    }
+
+    /**
+     * Process the template as sharded output.  The {@code <for>} loop named in the options is partitioned into the
+     * specified number of shards, each processing a contiguous slice of the iterations of the loop, and the shards are
+     * processed concurrently (using the executor set by {@link #setExecutor(Executor)}, or the default), each into
+     * its own file.  The output before and after the loop is repeated in each shard, or output only in the first and
+     * last shards, as selected in the options.  Within a shard, {@code <parallel>} blocks are processed sequentially.
+     * Each shard iterates over only its own slice of the loop, so the collection of the loop must allow its size to be
+     * found and its items to be read by more than one shard: a {@link Collection}, a {@link Map} or an array.
+     *
+     * @param   options     the sharding options
+     * @return  the list of shard files, with the number of iterations of the loop in each
+     * @throws  TemplateException   if the loop can not be found, or if thrown by the processing of any shard
+     */
+    public List<ShardResult> processSharded(ShardOptions options) throws TemplateException {
+        if (context == null)
+            throw new IllegalStateException("No template specified");
+        String pattern = options.getFilePattern();
+        if (pattern == null || String.format(pattern, 1).equals(String.format(pattern, 2)))
+            throw new IllegalArgumentException("File pattern must include shard number - " + pattern);
+        Element loop = findShardLoop(options.getLoopName());
+        startLimits();
+        int n = options.getShards();
+        final int bufferSize = options.getBufferSize();
+        List<FutureTask<ShardResult>> tasks = new ArrayList<>(n);
+        Executor shardExecutor = getTaskExecutor();
+        try {
+            for (int i = 0; i < n; i++) {
+                final File file = new File(String.format(pattern, i + 1));
+                final TemplateProcessor shardProcessor = new TemplateProcessor(this, dom.getDocumentElement());
+                shardProcessor.shardLoop = loop;
+                shardProcessor.shardNumber = i;
+                shardProcessor.shardCount = n;
+                shardProcessor.shardFrame = options.isRepeatFrame();
+                FutureTask<ShardResult> task = new FutureTask<>(new Callable<ShardResult>() {
+                    @Override
+                    public ShardResult call() {
+                        try {
+                            processToFile(shardProcessor, file, bufferSize);
+                        }
+                        catch (IOException ioe) {
+                            throw new RuntimeException("Error writing shard file - " + file, ioe);
+                        }
+                        return new ShardResult(file, shardProcessor.shardRecords);
+                    }
+                });
+                tasks.add(task);
+                shardExecutor.execute(task);
+            }
+            List<ShardResult> results = new ArrayList<>(n);
+            for (FutureTask<ShardResult> task : tasks)
+                results.add(getResult(task, loop, "sharded output"));
+            return results;
+        }
+        finally {
+            for (FutureTask<ShardResult> task : tasks)
+                task.cancel(true);
+        }
+    }
+
+    private Element findShardLoop(String loopName) throws TemplateException {
+        if (isEmpty(loopName))
+            throw new IllegalArgumentException("Shard loop name not specified");
+        Element loop = null;
+        NodeList loops = dom.getElementsByTagNameNS(namespace, forElementName);
+        for (int i = 0, n = loops.getLength(); i < n; i++) {
+            Element element = (Element)loops.item(i);
+            if (loopName.equals(element.getAttribute(nameAttrName))) {
+                if (loop != null)
+                    throw new TemplateException(element, "Shard loop name not unique - " + loopName, stackTraceEnabled);
+                loop = element;
+            }
+        }
+        if (loop == null)
+            throw new TemplateException("Shard loop not found - " + loopName, stackTraceEnabled);
+        for (Node node = loop.getParentNode(); node instanceof Element; node = node.getParentNode()) {
+            Element ancestor = (Element)node;
+            if (XML.matchNS(ancestor, forElementName, namespace) ||
+                    XML.matchNS(ancestor, macroElementName, namespace) ||
+                    XML.matchNS(ancestor, parallelElementName, namespace))
+                throw new TemplateException(loop, "Shard loop must not be within <for>, <macro> or <parallel>",
+                        stackTraceEnabled);
+        }
+        return loop;
+    }
+
+    private void startRender() {
+        if (!forked)
+            startLimits();
+        callDepth = 0;
+        currentElement = null;
+        preserving = false;
+        variables = context;
+        newRegionCache = new HashMap<>();
+        recordingRegion = null;
+        changedRegions = new ArrayList<>();
+        loopInvariants = null;
+        renderMemo = new HashMap<>();
+        wrappedBeans = null;
+        shardRecords = 0;
+    }
+
+    /**
+     * Start applying the render limits for a use of the template.  A forked processor (a {@code <parallel>} block or a
+     * shard) shares the deadline and the iteration count of the processor from which it was forked.
+     */
+    private void startLimits() {
+        maxIterations = 0;
+        maxCallDepth = RenderLimits.defaultMaxCallDepth;
+        deadline = 0;
+        if (renderLimits != null) {
+            maxIterations = renderLimits.getMaxIterations();
+            maxCallDepth = renderLimits.getMaxCallDepth();
+            long timeLimit = renderLimits.getTimeLimit();
+            if (timeLimit > 0)
+                deadline = System.nanoTime() + timeLimit * 1000000L;
+        }
+        iterations = new AtomicLong();
+    }
+
+    private OutputStream limitOutput(OutputStream os) {
+        long maxOutputBytes = renderLimits == null ? 0 : renderLimits.getMaxOutputBytes();
+        return maxOutputBytes > 0 ? new LimitedOutputStream(os, maxOutputBytes) : os;
+    }
+
+    private void checkProgress(Element element) throws TemplateException {
+        if (cancellationToken != null && cancellationToken.isCancelled())
+            throw new TemplateException(element, "Processing cancelled", stackTraceEnabled);
+        if (renderToken != null && renderToken.isCancelled())
+            throw new TemplateException(element, "Processing interrupted", stackTraceEnabled);
+        if (deadline != 0 && System.nanoTime() - deadline > 0)
+            throw new TemplateException(element, "Time limit exceeded", stackTraceEnabled);
+    }
+
+    private void countIteration(Element element) throws TemplateException {
+        if (maxIterations > 0 && iterations.incrementAndGet() > maxIterations)
+            throw new TemplateException(element, "Iteration limit exceeded", stackTraceEnabled);
+        checkProgress(element);
+    }
+
+    private void enterCall(Element element) throws TemplateException {
+        if (maxCallDepth > 0 && callDepth >= maxCallDepth)
+            throw new TemplateException(element, "Call depth limit exceeded", stackTraceEnabled);
+        callDepth++;
+    }
+
     private void processElement(Element element, SAXHandler formatter) throws TemplateException {
+        currentElement = element;
+        checkProgress(element);
         if (isIncluded(element)) {
             if (XML.matchNS(element, errorElementName, namespace))
                 processError(element);
@@ -420,6 +1299,10 @@ public class TemplateProcessor {
                 processComment(element, formatter);
             else if (XML.matchNS(element, copyElementName, namespace))
                 processCopy(element, formatter);
+            else if (XML.matchNS(element, parallelElementName, namespace))
+                processParallel(element, formatter);
+            else if (XML.matchNS(element, regionElementName, namespace))
+                processRegion(element, formatter);
             else
                 outputElement(element, formatter);
         }
@@ -429,15 +1312,19 @@ public class TemplateProcessor {
         // i.e. not excluded by xt:if=""
         Attr ifAttr = element.getAttributeNodeNS(namespace, ifAttrName);
         if (ifAttr != null) {
+            Boolean folded = getCompiled(element).getCondition(ifAttr);
+            if (folded != null)
+                return folded;
             String test = ifAttr.getValue();
             try {
                 String substTest = subst(test);
-                if (!isEmpty(substTest) && !parser.parseExpression(substTest, context).asBoolean())
+                if (!isEmpty(substTest) &&
+                        !parser.parseExpression(substTest, getExpressionResolver(substTest)).asBoolean())
                     return false;
             }
             catch (ExpressionException eee) {
                 throw new TemplateException(element, ifAttr.getName(),
-                        "Error in \"if\" attribute - " + test + '\n' +eee.getMessage());
+                        "Error in \"if\" attribute - " + test + '\n' +eee.getMessage(), stackTraceEnabled);
             }
         }
         return true;
@@ -445,39 +1332,125 @@ public class TemplateProcessor {
 
     private void processElementContents(Element element, SAXHandler formatter, boolean trim)
             throws TemplateException {
-        NodeList childNodes = element.getChildNodes();
-        int start = 0;
-        int end = childNodes.getLength();
-        if (trim) {
-            while (start < end && XML.isCommentOrEmpty(childNodes.item(start)))
-                start++;
-            while (start < end && XML.isCommentOrEmpty(childNodes.item(end - 1)))
-                end--;
-        }
-        for (int i = start, n = end; i < n; i++) {
-            Node childNode = childNodes.item(i);
-            if (childNode.getNodeType() == Node.ELEMENT_NODE &&
-                    XML.matchNS((Element)childNode, macroElementName, namespace))
-                context.addMacro((Element)childNode);
-        }
-        for (int i = start, n = end; i < n; i++) {
-            Node childNode = childNodes.item(i);
-            if (childNode.getNodeType() == Node.ELEMENT_NODE) {
-                if (!XML.matchNS((Element)childNode, macroElementName, namespace))
-                    processElement((Element)childNode, formatter);
-            }
-            else if (childNode.getNodeType() == Node.TEXT_NODE) {
-                Text text = (Text)childNode;
-                String data = text.getData();
-                if (trim) {
-                    if (i == start)
-                        data = XML.trimLeading(data);
-                    if (i == n - 1)
-                        data = XML.trimTrailing(data);
+        int base = frameCount;
+        pushFrame(null, getContents(element, trim), false);
+        processFrames(base, formatter);
+    }
+
+    /**
+     * Process the frames on the output stack above a given base.  The output elements (elements not in the template
+     * namespace) nested within the contents are processed on this explicit stack rather than by recursion, so that the
+     * depth of their nesting is not limited by the Java stack; template elements are processed recursively.
+     *
+     * @param   base        the number of frames to remain on the stack
+     * @param   formatter   the SAX handler
+     * @throws  TemplateException   on any errors in the template
+     */
+    private void processFrames(int base, SAXHandler formatter) throws TemplateException {
+        try {
+            while (frameCount > base) {
+                OutputFrame frame = outputFrames.get(frameCount - 1);
+                CompiledTemplate.Contents contents = frame.contents;
+                int i = frame.index;
+                if (i < contents.nodes.length) {
+                    frame.index = i + 1;
+                    Node childNode = contents.nodes[i];
+                    if (childNode instanceof Element) {
+                        Element childElement = (Element)childNode;
+                        if (namespace.equals(childElement.getNamespaceURI()))
+                            processElement(childElement, formatter);
+                        else {
+                            currentElement = childElement;
+                            checkProgress(childElement);
+                            if (isIncluded(childElement))
+                                startOutputElement(childElement, formatter);
+                        }
+                    }
+                    else if (contents.chars[i] != null)
+                        outputChars(contents.chars[i], formatter);
+                    else
+                        outputText((Text)childNode, contents.data[i], contents.invariant[i], formatter);
+                }
+                else {
+                    Element element = frame.element;
+                    if (element != null) {
+                        try {
+                            formatter.endElement(element.getNamespaceURI(), element.getLocalName(),
+                                    element.getNodeName());
+                        }
+                        catch (SAXException saxe) {
+                            throw new RuntimeException("Unexpected SAX exception", saxe);
+                        }
+                    }
+                    popFrame();
                 }
-                outputText(text, data, formatter);
             }
         }
+        finally {
+            while (frameCount > base)
+                popFrame();
+        }
+    }
+
+    private void pushFrame(Element element, CompiledTemplate.Contents contents, boolean savedPreserving) {
+        for (Element macro : contents.macros)
+            context.addMacro(macro);
+        if (outputFrames.size() <= frameCount)
+            outputFrames.add(new OutputFrame());
+        OutputFrame frame = outputFrames.get(frameCount++);
+        frame.element = element;
+        frame.contents = contents;
+        frame.index = 0;
+        frame.savedPreserving = savedPreserving;
+    }
+
+    private void popFrame() {
+        OutputFrame frame = outputFrames.get(--frameCount);
+        if (frame.element != null) {
+            preserving = frame.savedPreserving;
+            outputDepth--;
+        }
+        frame.element = null;
+        frame.contents = null;
+    }
+
+    /**
+     * Get the static variables that may be treated as constants when the documents of the template are compiled (see
+     * {@link CompiledTemplate#findConstants(Document, URL, String, Map)}).
+     *
+     * @return  the constant variables
+     */
+    private Map<String, Object> getConstantVariables() {
+        Map<String, Object> result = constantVariables;
+        if (result == null) {
+            result = dom == null ? staticVariables :
+                    CompiledTemplate.findConstants(dom, url, namespace, staticVariables);
+            constantVariables = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the compiled contents of an element.  In the minified form, if the output is within an element in which
+     * whitespace is preserved (which may be outside the macro or included template being processed), the contents are
+     * taken from the unminified form.
+     *
+     * @param   element     the element
+     * @param   trim        {@code true} for the trimmed contents
+     * @return  the contents
+     */
+    private CompiledTemplate.Contents getContents(Element element, boolean trim) {
+        CompiledTemplate compiledTemplate = getCompiled(element);
+        if (preserving && minify)
+            compiledTemplate = compiledTemplate.getUnminified();
+        return compiledTemplate.getContents(element, trim);
+    }
+
+    private CompiledTemplate getCompiled(Element element) {
+        Document document = element.getOwnerDocument();
+        if (compiled == null || compiled.getDocument() != document)
+            compiled = CompiledTemplate.get(document, namespace, getConstantVariables(), minify);
+        return compiled;
     }
 
     private void processElementContentsNewContext(Element element, SAXHandler formatter, boolean trim)
@@ -489,13 +1462,13 @@ public class TemplateProcessor {
 
     private void processError(Element element) throws TemplateException {
         String text = substAttr(element, textAttrName);
-        throw new TemplateException(element, !isEmpty(text) ? text : "Error element");
+        throw new TemplateException(element, !isEmpty(text) ? text : "Error element", stackTraceEnabled);
     }
 
     private void processDoctype(Element element, SAXHandler formatter) throws TemplateException {
         String name = substAttr(element, nameAttrName);
         if (isEmpty(name))
-            throw new TemplateException(element, "Name missing");
+            throw new TemplateException(element, "Name missing", stackTraceEnabled);
         String systemAttr = substAttr(element, systemAttrName);
         String publicAttr = substAttr(element, publicAttrName);
         try {
@@ -509,23 +1482,38 @@ public class TemplateProcessor {
     }
 
     private void processInclude(Element element, SAXHandler formatter) throws TemplateException {
-        String href = substAttr(element, hrefAttrName);
-        if (isEmpty(href))
-                throw new TemplateException(element, "HRef missing");
+        enterCall(element);
+        CompiledTemplate including = getCompiled(element);
         URL url = context.getURL();
-        URL includeURL;
-        Document included;
-        try {
-            includeURL = url == null ? new URL(href) : new URL(url, href);
-            included = getDocument(includeURL);
-        }
-        catch (Exception e) {
-            throw new TemplateException(element, "Error on include - " + href);
+        boolean linked = including.isBaseURL(url);
+        CompiledTemplate included = linked ? including.getInclude(element) : null;
+        if (included == null) {
+            String href = substAttr(element, hrefAttrName);
+            if (isEmpty(href))
+                throw new TemplateException(element, "HRef missing", stackTraceEnabled);
+            included = linked ? including.getDynamicInclude(href) : null;
+            if (included == null) {
+                try {
+                    URL includeURL = url == null ? new URL(href) : new URL(url, href);
+                    included = CompiledTemplate.get(getDocument(includeURL), namespace, includeURL,
+                            getConstantVariables(), minify);
+                }
+                catch (Exception e) {
+                    throw new TemplateException(element, "Error on include - " + href, stackTraceEnabled);
+                }
+                String rebound = included.findRebound(getConstantVariables());
+                if (rebound != null)
+                    throw new TemplateException(element, "Included template re-binds static variable - " + rebound,
+                            stackTraceEnabled);
+                if (linked)
+                    including.putDynamicInclude(href, included);
+            }
         }
         // TODO check element is empty - or allow <param> elements for included code
-        Element documentElement = included.getDocumentElement();
+        Element documentElement = included.getDocument().getDocumentElement();
         context = new TemplateContext(context, documentElement);
-        context.setURL(includeURL);
+        context.setURL(included.getURL());
+        compiled = included;
         if (XML.matchNS(documentElement, templateElementName, namespace)) {
             // TODO process attributes on included template?
             // TODO consider forcing specification of variables used in included template
@@ -533,57 +1521,76 @@ public class TemplateProcessor {
         }
         else
             processElement(documentElement, formatter);
+        compiled = including;
         context = context.getParent();
+        callDepth--;
     }
 
     private void processSet(Element element, @SuppressWarnings("unused") SAXHandler formatter)
             throws TemplateException {
         String name = substAttr(element, nameAttrName);
         if (!Expression.isValidIdentifier(name))
-            throw new TemplateException(element, "Name missing or invalid");
+            throw new TemplateException(element, "Name missing or invalid", stackTraceEnabled);
         if (!isEmpty(element.getAttribute(documentAttrName)))
-            throw new TemplateException(element, "Can't handle <set document= >");
+            throw new TemplateException(element, "Can't handle <set document= >", stackTraceEnabled);
+        Object folded = getCompiled(element).getSetValue(element);
+        if (folded != null) {
+            context.setVariable(name, folded);
+            return;
+        }
         // TODO should be able to do this in Java
         String value = substAttr(element, valueAttrName);
         context.setVariable(name, evaluate(value, element, valueAttrName));
-        if (!XML.isElementEmpty(element))
-            throw new TemplateException(element, "Illegal content");
+        if (!isElementEmpty(element))
+            throw new TemplateException(element, "Illegal content", stackTraceEnabled);
         // TODO allow content - if it contains elements, store as an ElementWrapper;
         // otherwise parse as JSON
     }
 
     private void processIf(Element element, SAXHandler formatter) throws TemplateException {
+        Boolean folded = getCompiled(element).getCondition(element.getAttributeNode(testAttrName));
+        if (folded != null) {
+            if (folded)
+                processElementContentsNewContext(element, formatter, true);
+            return;
+        }
         String test = substAttr(element, testAttrName);
         if (isEmpty(test))
-            throw new TemplateException(element, "Test must be specified");
+            throw new TemplateException(element, "Test must be specified", stackTraceEnabled);
         boolean testResult;
         try {
-            testResult = parser.parseExpression(test, context).asBoolean();
+            testResult = parser.parseExpression(test, getExpressionResolver(test)).asBoolean();
         }
         catch (ExpressionException e) {
-            throw new TemplateException(element, testAttrName, "Error in test - " + test + '\n' + e.getMessage());
+            throw new TemplateException(element, testAttrName, "Error in test - " + test + '\n' + e.getMessage(),
+                    stackTraceEnabled);
         }
         if (testResult)
             processElementContentsNewContext(element, formatter, true);
     }
 
     private void processSwitch(Element element, SAXHandler formatter) throws TemplateException {
-        NodeList childNodes = element.getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            Node node = childNodes.item(i);
+        CompiledTemplate switchCompiled = getCompiled(element);
+        Element selected = switchCompiled.getSwitchCase(element);
+        if (selected != null) {
+            processElementContentsNewContext(selected, formatter, true);
+            return;
+        }
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
             if (node.getNodeType() == Node.ELEMENT_NODE) {
                 Element childElement = (Element) node;
                 if (isIncluded(childElement)) {
                     if (XML.matchNS(childElement, caseElementName, namespace)) {
-                        String test = substAttr(childElement, testAttrName);
-                        boolean testResult = true;
+                        Boolean folded = switchCompiled.getCondition(childElement.getAttributeNode(testAttrName));
+                        String test = folded != null ? null : substAttr(childElement, testAttrName);
+                        boolean testResult = folded == null || folded;
                         if (!isEmpty(test)) {
                             try {
-                                testResult = parser.parseExpression(test, context).asBoolean();
+                                testResult = parser.parseExpression(test, getExpressionResolver(test)).asBoolean();
                             }
                             catch (ExpressionException e) {
                                 throw new TemplateException(childElement, testAttrName,
-                                        "Error in test - " + test + '\n' + e.getMessage());
+                                        "Error in test - " + test + '\n' + e.getMessage(), stackTraceEnabled);
                             }
                         }
                         if (testResult) {
@@ -593,35 +1600,37 @@ public class TemplateProcessor {
                         }
                     }
                     else
-                        throw new TemplateException(childElement, "Illegal element within <switch>");
+                        throw new TemplateException(childElement, "Illegal element within <switch>", stackTraceEnabled);
                 }
             }
             else if (!XML.isCommentOrEmpty(node))
-                throw new TemplateException(element, "Illegal content within <switch>");
+                throw new TemplateException(element, "Illegal content within <switch>", stackTraceEnabled);
         }
     }
 
     private void processFor(Element element, SAXHandler formatter)
             throws TemplateException {
         // TODO document not yet handled
+        Map<Node, String> enclosingLoopInvariants = loopInvariants;
+        loopInvariants = getCompiled(element).hasInvariants(element) ? new IdentityHashMap<Node, String>() : null;
         String name = substAttr(element, nameAttrName);
         if (!isEmpty(name) && !Expression.isValidIdentifier(name))
-            throw new TemplateException(element, nameAttrName, "Illegal name in <for>");
+            throw new TemplateException(element, nameAttrName, "Illegal name in <for>", stackTraceEnabled);
         String coll = substAttr(element, collectionAttrName);
         String from = substAttr(element, fromAttrName);
         String to = substAttr(element, toAttrName);
         String by = substAttr(element, byAttrName);
         String index = substAttr(element, indexAttrName);
         if (!isEmpty(index) && !Expression.isValidIdentifier(index))
-            throw new TemplateException(element, indexAttrName, "Illegal index in <for>");
+            throw new TemplateException(element, indexAttrName, "Illegal index in <for>", stackTraceEnabled);
         if (!isEmpty(coll)) {
             if (!isEmpty(from) || !isEmpty(to) || !isEmpty(by))
-                throw new TemplateException(element, "<for> has illegal combination of attributes");
+                throw new TemplateException(element, "<for> has illegal combination of attributes", stackTraceEnabled);
             processForCollection(element, formatter, name, coll, index);
         }
         else if (!isEmpty(from) || !isEmpty(to) || !isEmpty(by)) {
             if (!isEmpty(index))
-                throw new TemplateException(element, "<for> has illegal combination of attributes");
+                throw new TemplateException(element, "<for> has illegal combination of attributes", stackTraceEnabled);
             Object fromObject = isEmpty(from) ? null : evaluate(from, element, fromAttrName);
             Object toObject = isEmpty(to) ? null : evaluate(to, element, toAttrName);
             Object byObject = isEmpty(by) ? null : evaluate(by, element, byAttrName);
@@ -631,7 +1640,35 @@ public class TemplateProcessor {
                 processForSequenceInt(element, formatter, name, fromObject, toObject, byObject);
         }
         else
-            throw new TemplateException(element, "<for> must specify iteration type");
+            throw new TemplateException(element, "<for> must specify iteration type", stackTraceEnabled);
+        if (element == shardLoop) {
+            shardFilter.setPassing(shardFrame || shardNumber == shardCount - 1);
+            shardLoop = null;
+        }
+        loopInvariants = enclosingLoopInvariants;
+    }
+
+    private void processIteration(Element element, SAXHandler formatter) throws TemplateException {
+        if (element == shardLoop)
+            shardRecords++;
+        countIteration(element);
+        processElementContents(element, formatter, true);
+    }
+
+    /**
+     * Start the partitioned loop in sharded output, selecting the slice of the iterations to be processed in this
+     * shard.
+     *
+     * @param   count   the total number of iterations of the loop
+     */
+    private void startShard(int count) {
+        shardStart = (int)((long)count * shardNumber / shardCount);
+        shardEnd = (int)((long)count * (shardNumber + 1) / shardCount);
+        shardFilter.setPassing(true);
+    }
+
+    private boolean isShardHeader() {
+        return shardLoop == null || shardFrame || shardNumber == 0;
     }
 
     private void processForSequenceInt(Element element, SAXHandler formatter, String name, Object from, Object to,
@@ -641,14 +1678,25 @@ public class TemplateProcessor {
         int toValue = to == null ? 0 : intValue(to, element, toAttrName, "<for> to value invalid");
         int byValue = by == null ? 1 : intValue(by, element, byAttrName, "<for> by value invalid");
         if (byValue <= 0)
-            throw new TemplateException(element, byAttrName, "<for> by value invalid");
-        if (fromValue != toValue) {
+            throw new TemplateException(element, byAttrName, "<for> by value invalid", stackTraceEnabled);
+        if (element == shardLoop) {
+            startShard((int)((Math.abs((long)toValue - fromValue) + byValue - 1) / byValue));
+            long step = fromValue < toValue ? byValue : -byValue;
+            context = new TemplateContext(context, element);
+            for (int i = shardStart; i < shardEnd; i++) {
+                if (!isEmpty(name))
+                    context.setVariable(name, (int)(fromValue + i * step));
+                processIteration(element, formatter);
+            }
+            context = context.getParent();
+        }
+        else if (fromValue != toValue) {
             context = new TemplateContext(context, element);
             if (fromValue < toValue) {
                 do {
                     if (!isEmpty(name))
                         context.setVariable(name, fromValue);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                     fromValue += byValue;
                 } while (fromValue < toValue);
             }
@@ -656,7 +1704,7 @@ public class TemplateProcessor {
                 do {
                     if (!isEmpty(name))
                         context.setVariable(name, fromValue);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                     fromValue -= byValue;
                 } while (fromValue > toValue);
             }
@@ -669,7 +1717,7 @@ public class TemplateProcessor {
             return Expression.asInt(obj);
         }
         catch (IntCoercionException e) {
-            throw new TemplateException(elem, attrName, msg);
+            throw new TemplateException(elem, attrName, msg, stackTraceEnabled);
         }
     }
 
@@ -680,14 +1728,26 @@ public class TemplateProcessor {
         double toValue = to == null ? 0.0 : doubleValue(to, element, toAttrName, "<for> to value invalid");
         double byValue = by == null ? 1.0 : doubleValue(by, element, byAttrName, "<for> by value invalid");
         if (byValue <= 0.0)
-            throw new TemplateException(element, byAttrName, "<for> by value invalid");
-        if (fromValue != toValue) {
+            throw new TemplateException(element, byAttrName, "<for> by value invalid", stackTraceEnabled);
+        if (element == shardLoop) {
+            // the value for each iteration is calculated directly, so that a shard can start part-way through the loop
+            startShard((int)Math.ceil(Math.abs(toValue - fromValue) / byValue));
+            double step = fromValue < toValue ? byValue : -byValue;
+            context = new TemplateContext(context, element);
+            for (int i = shardStart; i < shardEnd; i++) {
+                if (!isEmpty(name))
+                    context.setVariable(name, fromValue + i * step);
+                processIteration(element, formatter);
+            }
+            context = context.getParent();
+        }
+        else if (fromValue != toValue) {
             context = new TemplateContext(context, element);
             if (fromValue < toValue) {
                 do {
                     if (!isEmpty(name))
                         context.setVariable(name, fromValue);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                     fromValue += byValue;
                 } while (fromValue < toValue);
             }
@@ -695,7 +1755,7 @@ public class TemplateProcessor {
                 do {
                     if (!isEmpty(name))
                         context.setVariable(name, fromValue);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                     fromValue -= byValue;
                 } while (fromValue > toValue);
             }
@@ -708,13 +1768,17 @@ public class TemplateProcessor {
             return Expression.asDouble(obj);
         }
         catch (DoubleCoercionException e) {
-            throw new TemplateException(elem, attrName, msg);
+            throw new TemplateException(elem, attrName, msg, stackTraceEnabled);
         }
     }
 
     private void processForCollection(Element element, SAXHandler formatter, String name, String coll,
             String index) throws TemplateException {
         Object collObject = evaluate(coll, element, collectionAttrName);
+        if (element == shardLoop) {
+            processShardCollection(element, formatter, name, collObject, index);
+            return;
+        }
         if (collObject != null) {
             context = new TemplateContext(context, element);
             if (collObject instanceof Map<?, ?>) {
@@ -724,7 +1788,7 @@ public class TemplateProcessor {
                         context.setVariable(name, obj);
                     if (!isEmpty(index))
                         context.setVariable(index, i);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                     i++;
                 }
             }
@@ -735,7 +1799,7 @@ public class TemplateProcessor {
                         context.setVariable(name, obj);
                     if (!isEmpty(index))
                         context.setVariable(index, i);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                     i++;
                 }
             }
@@ -747,54 +1811,297 @@ public class TemplateProcessor {
                         context.setVariable(name, obj);
                     if (!isEmpty(index))
                         context.setVariable(index, i);
-                    processElementContents(element, formatter, true);
+                    processIteration(element, formatter);
                 }
             }
             else
-                throw new TemplateException(element, "<for> collection must be capable of iteration");
+                throw new TemplateException(element, "<for> collection must be capable of iteration",
+                        stackTraceEnabled);
+            context = context.getParent();
+        }
+    }
+
+    /**
+     * Process the slice of the partitioned loop in sharded output that belongs to this shard.  Only the items in the
+     * slice are visited (for a {@link Collection} that is not a {@link List}, the items before the slice are skipped
+     * without being processed); an {@link Iterable} that is not a {@link Collection} is rejected, since it may not be
+     * possible to iterate over it more than once, or from more than one shard at a time.
+     */
+    private void processShardCollection(Element element, SAXHandler formatter, String name, Object collObject,
+            String index) throws TemplateException {
+        if (collObject instanceof Map<?, ?>)
+            collObject = ((Map<?, ?>)collObject).values();
+        if (collObject == null)
+            startShard(0);
+        else if (collObject instanceof Object[]) {
+            Object[] array = (Object[])collObject;
+            startShard(array.length);
+            context = new TemplateContext(context, element);
+            for (int i = shardStart; i < shardEnd; i++)
+                processShardItem(element, formatter, name, array[i], index, i);
+            context = context.getParent();
+        }
+        else if (collObject instanceof List<?>) {
+            List<?> list = (List<?>)collObject;
+            startShard(list.size());
+            context = new TemplateContext(context, element);
+            int i = shardStart;
+            for (Object obj : list.subList(shardStart, shardEnd))
+                processShardItem(element, formatter, name, obj, index, i++);
             context = context.getParent();
         }
+        else if (collObject instanceof Collection<?>) {
+            Collection<?> collection = (Collection<?>)collObject;
+            startShard(collection.size());
+            context = new TemplateContext(context, element);
+            Iterator<?> iterator = collection.iterator();
+            for (int i = 0; i < shardStart; i++)
+                iterator.next();
+            for (int i = shardStart; i < shardEnd; i++)
+                processShardItem(element, formatter, name, iterator.next(), index, i);
+            context = context.getParent();
+        }
+        else
+            throw new TemplateException(element, "Shard loop collection must be a collection, map or array",
+                    stackTraceEnabled);
+    }
+
+    private void processShardItem(Element element, SAXHandler formatter, String name, Object obj, String index, int i)
+            throws TemplateException {
+        if (!isEmpty(name))
+            context.setVariable(name, obj);
+        if (!isEmpty(index))
+            context.setVariable(index, i);
+        processIteration(element, formatter);
     }
 
     private void processCall(Element element, SAXHandler formatter) throws TemplateException {
         String name = substAttr(element, nameAttrName);
         Element macro = context.getMacro(name);
         if (macro == null)
-            throw new TemplateException(element, "macro name incorrect - " + name);
+            throw new TemplateException(element, "macro name incorrect - " + name, stackTraceEnabled);
         context = new TemplateContext(context, element);
-        NodeList childNodes = element.getChildNodes();
-        for (int i = 0, n = childNodes.getLength(); i < n; i++) {
-            Node childNode = childNodes.item(i);
+        for (Node childNode = element.getFirstChild(); childNode != null; childNode = childNode.getNextSibling()) {
             if (childNode.getNodeType() == Node.ELEMENT_NODE) {
                 Element childElement = (Element)childNode;
                 if (isIncluded(childElement)) {
                     if (XML.matchNS(childElement, paramElementName, namespace)) {
                         name = substAttr(childElement, nameAttrName);
                         if (!Expression.isValidIdentifier(name))
-                            throw new TemplateException(childElement, "Name missing or invalid");
+                            throw new TemplateException(childElement, "Name missing or invalid", stackTraceEnabled);
                         String value = substAttr(childElement, valueAttrName);
                         if (isEmpty(value))
-                            throw new TemplateException(childElement, "Value missing");
+                            throw new TemplateException(childElement, "Value missing", stackTraceEnabled);
                         try {
                             context.setVariable(name, // must be outer context
-                                    parser.parseExpression(value, context).evaluate());
+                                    parser.parseExpression(value, getExpressionResolver(value)).evaluate());
                         }
                         catch (ExpressionException e) {
                             throw new TemplateException(childElement, valueAttrName,
-                                    "Error in value - " + value + '\n' + e.getMessage());
+                                    "Error in value - " + value + '\n' + e.getMessage(), stackTraceEnabled);
                         }
                     }
                     else
-                        throw new TemplateException(childElement, "Illegal element within <call>");
+                        throw new TemplateException(childElement, "Illegal element within <call>", stackTraceEnabled);
                 }
             }
             else if (!XML.isCommentOrEmpty(childNode))
-                throw new TemplateException(element, "Illegal content within <call>");
+                throw new TemplateException(element, "Illegal content within <call>", stackTraceEnabled);
         }
+        enterCall(element);
         processElementContents(macro, formatter, true);
+        callDepth--;
+        context = context.getParent();
+    }
+
+    /**
+     * Process a {@code <parallel>} element.  Each child element is processed concurrently, in its own context, with
+     * the output recorded and then passed to the formatter in document order; text is output in order as usual.
+     * Variables set in one block are not visible to the others.  A {@code <parallel>} element within a block that is
+     * itself being processed concurrently is processed sequentially, so that nested blocks do not wait for threads of
+     * the same pool.
+     *
+     * @param   element     the {@code <parallel>} element
+     * @param   formatter   the output formatter
+     * @throws  TemplateException   if thrown by any of the blocks
+     */
+    private void processParallel(Element element, SAXHandler formatter) throws TemplateException {
+        if (forked) {
+            processElementContentsNewContext(element, formatter, true);
+            return;
+        }
+        context = new TemplateContext(context, element);
+        CompiledTemplate.Contents contents = getContents(element, true);
+        for (Element macro : contents.macros)
+            context.addMacro(macro);
+        Node[] childNodes = contents.nodes;
+        int n = childNodes.length;
+        List<FutureTask<SAXRecorder>> tasks = new ArrayList<>(n);
+        Executor blockExecutor = getTaskExecutor();
+        try {
+            for (int i = 0; i < n; i++) {
+                Node childNode = childNodes[i];
+                FutureTask<SAXRecorder> task = null;
+                if (childNode instanceof Element) {
+                    final Element block = (Element)childNode;
+                    final TemplateProcessor blockProcessor = new TemplateProcessor(this, element);
+                    task = new FutureTask<>(new Callable<SAXRecorder>() {
+                        @Override
+                        public SAXRecorder call() {
+                            SAXRecorder recorder = new SAXRecorder();
+                            blockProcessor.processElement(block, recorder);
+                            return recorder;
+                        }
+                    });
+                    blockExecutor.execute(task);
+                }
+                tasks.add(task);
+            }
+            for (int i = 0; i < n; i++) {
+                FutureTask<SAXRecorder> task = tasks.get(i);
+                if (task != null)
+                    getResult(task, element, "<parallel>").replay(formatter);
+                else if (contents.chars[i] != null)
+                    outputChars(contents.chars[i], formatter);
+                else
+                    outputText((Text)childNodes[i], contents.data[i], contents.invariant[i], formatter);
+            }
+        }
+        catch (SAXException saxe) {
+            throw new RuntimeException("Unexpected SAX exception", saxe);
+        }
+        finally {
+            for (FutureTask<SAXRecorder> task : tasks)
+                if (task != null)
+                    task.cancel(true);
+        }
         context = context.getParent();
     }
 
+    /**
+     * Process a {@code <region>} element.  The contents are processed in a new context; in incremental mode the output
+     * is recorded, and re-used on subsequent uses of the template if none of the variables on which it depends has
+     * changed (see {@link #setIncremental(boolean)}).  Regions within {@code <parallel>} blocks are always processed.
+     *
+     * @param   element     the {@code <region>} element
+     * @param   formatter   the output formatter
+     * @throws  TemplateException   if thrown by the contents
+     */
+    private void processRegion(Element element, SAXHandler formatter) throws TemplateException {
+        String name = element.getAttribute(nameAttrName);
+        if (isEmpty(name))
+            throw new TemplateException(element, "Name missing", stackTraceEnabled);
+        if (!incremental) {
+            processElementContentsNewContext(element, formatter, true);
+            return;
+        }
+        List<CachedRegion> processed = newRegionCache.get(element);
+        int occurrence = processed == null ? 0 : processed.size();
+        List<CachedRegion> previous = regionCache.get(element);
+        CachedRegion region = previous != null && occurrence < previous.size() ? previous.get(occurrence) : null;
+        if (region != null && region.isValid(context)) {
+            addRegion(region);
+            retainNestedRegions(region);
+        }
+        else {
+            region = new CachedRegion(element, variables, variableVersions);
+            addRegion(region);
+            CachedRegion enclosingRegion = recordingRegion;
+            recordingRegion = region;
+            context = new TemplateContext(context, element);
+            context.setRegion(region);
+            processElementContents(element, region.getOutput(), true);
+            context = context.getParent();
+            recordingRegion = enclosingRegion;
+            changedRegions.add(occurrence == 0 ? name : name + '[' + (occurrence + 1) + ']');
+        }
+        try {
+            region.getOutput().replay(formatter);
+        }
+        catch (SAXException saxe) {
+            throw new RuntimeException("Unexpected SAX exception", saxe);
+        }
+    }
+
+    private void addRegion(CachedRegion region) {
+        if (recordingRegion != null)
+            recordingRegion.getNested().add(region);
+        retainRegion(region);
+    }
+
+    private void retainRegion(CachedRegion region) {
+        List<CachedRegion> processed = newRegionCache.get(region.getElement());
+        if (processed == null) {
+            processed = new ArrayList<>();
+            newRegionCache.put(region.getElement(), processed);
+        }
+        processed.add(region);
+    }
+
+    private void retainNestedRegions(CachedRegion region) {
+        for (CachedRegion nestedRegion : region.getNested()) {
+            retainRegion(nestedRegion);
+            retainNestedRegions(nestedRegion);
+        }
+    }
+
+    /**
+     * Get the {@link Executor} for concurrent tasks: the executor set by {@link #setExecutor(Executor)}, or the default
+     * pool, or (when already running on a thread of the default pool) an executor that runs each task inline.
+     *
+     * @return  the {@link Executor}
+     */
+    private Executor getTaskExecutor() {
+        if (executor != null)
+            return executor;
+        if (Thread.currentThread() instanceof PoolThread)
+            return inlineExecutor;
+        return getDefaultExecutor();
+    }
+
+    private static Executor getDefaultExecutor() {
+        ExecutorService result = defaultExecutor;
+        if (result == null) {
+            synchronized (TemplateProcessor.class) {
+                result = defaultExecutor;
+                if (result == null) {
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new PoolThread(runnable, "xtj-parallel-" + count.incrementAndGet());
+                        }
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    result = pool;
+                    defaultExecutor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private <T> T getResult(FutureTask<T> task, Element element, String description)
+            throws TemplateException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TemplateException(element, "Interrupted in " + description, stackTraceEnabled);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new RuntimeException("Unexpected exception in " + description, cause);
+        }
+    }
+
     private void processComment(@SuppressWarnings("unused") Element element,
             @SuppressWarnings("unused") SAXHandler formatter) {
         // TODO complete this
@@ -803,12 +2110,12 @@ public class TemplateProcessor {
     private void processCopy(Element element, SAXHandler formatter) throws TemplateException {
         String elementName = substAttr(element, elementAttrName);
         if (isEmpty(elementName))
-            throw new TemplateException(element, "<copy> element missing");
+            throw new TemplateException(element, "<copy> element missing", stackTraceEnabled);
         // TODO if element not specified, process contents of <copy> (skipping <intercept>s)??
         context = new TemplateContext(context, element);
         Object obj = evaluate(elementName, element, elementAttrName);
         if (!(obj instanceof ElementWrapper))
-            throw new TemplateException(element, elementName, "<copy> must specify element");
+            throw new TemplateException(element, elementName, "<copy> must specify element", stackTraceEnabled);
         Element elementToCopy = ((ElementWrapper)obj).getElement();
         boolean include = false;
         String opt = substAttr(element, optionAttrName);
@@ -816,136 +2123,269 @@ public class TemplateProcessor {
             if (optionInclude.equals(opt))
                 include = true;
             else
-                throw new TemplateException(element, optionAttrName, "<copy> option not recognised - " + opt);
+                throw new TemplateException(element, optionAttrName, "<copy> option not recognised - " + opt,
+                        stackTraceEnabled);
         }
-        List<Intercept> intercepts = new ArrayList<>();
-        NodeList childNodes = element.getChildNodes();
-        for (int i = 0, n = childNodes.getLength(); i < n; i++) {
-            Node childNode = childNodes.item(i);
+        Map<String, Intercept> intercepts = null;
+        for (Node childNode = element.getFirstChild(); childNode != null; childNode = childNode.getNextSibling()) {
             if (childNode instanceof Element) {
                 Element childElement = (Element)childNode;
                 if (isIncluded(childElement)) {
-                    context = new TemplateContext(context, element);
                     if (XML.matchNS(childElement, interceptElementName, namespace)) {
                         elementName = substAttr(childElement, elementAttrName);
                         if (isEmpty(elementName))
-                            throw new TemplateException(element, "<intercept> element missing");
+                            throw new TemplateException(element, "<intercept> element missing", stackTraceEnabled);
                         String name = substAttr(childElement, nameAttrName);
                         if (!isEmpty(name) && !Expression.isValidIdentifier(name))
-                            throw new TemplateException(childElement, nameAttrName, "Invalid name on <intercept>");
-                        intercepts.add(new Intercept(elementName, childElement, name));
+                            throw new TemplateException(childElement, nameAttrName, "Invalid name on <intercept>",
+                                    stackTraceEnabled);
+                        if (intercepts == null)
+                            intercepts = new HashMap<>();
+                        if (!intercepts.containsKey(elementName)) // the first intercept for a tag name applies
+                            intercepts.put(elementName, new Intercept(elementName, childElement, name,
+                                    !isEmpty(name) || needsContext(childElement)));
                     }
                     else
-                        throw new TemplateException(element, "Illegal element within <copy>");
-                    context = context.getParent();
+                        throw new TemplateException(element, "Illegal element within <copy>", stackTraceEnabled);
                 }
             }
             else if (!XML.isCommentOrEmpty(childNode))
-                throw new TemplateException(element, "Illegal content within <copy>");
+                throw new TemplateException(element, "Illegal content within <copy>", stackTraceEnabled);
         }
-        if (include)
-            copyElement(elementToCopy, intercepts, formatter);
-        else
-            copyElementContents(elementToCopy, intercepts, formatter);
+        copyTree(elementToCopy, include, intercepts, formatter);
         context = context.getParent();
     }
 
-    private void copyElement(Element element, List<Intercept> intercepts, SAXHandler formatter)
+    /**
+     * Determine whether the replacement for an intercept requires a context of its own, that is, whether it declares
+     * namespace prefixes or contains elements that create variables or macros in the current context.
+     *
+     * @param   replacement     the {@code <intercept>} element
+     * @return  {@code true} if a new context is required
+     */
+    private boolean needsContext(Element replacement) {
+        NamedNodeMap attributes = replacement.getAttributes();
+        for (int i = 0, n = attributes.getLength(); i < n; i++)
+            if (attributes.item(i).getNodeName().startsWith("xmlns"))
+                return true;
+        return replacement.getElementsByTagNameNS(namespace, setElementName).getLength() > 0 ||
+                replacement.getElementsByTagNameNS(namespace, macroElementName).getLength() > 0;
+    }
+
+    /**
+     * Copy an element (if {@code include} is {@code true}), or the contents of an element, to the output, applying the
+     * intercepts.  The tree is traversed iteratively, using the parent and sibling links of the DOM in place of the
+     * Java stack, so that the depth of the data that may be copied is limited only by memory.  Intercepts are looked
+     * up by tag name, and a single attribute list is re-used for all copied elements, so the cost of the copy is
+     * linear in the size of the tree and independent of the number of intercepts.
+     *
+     * @param   root        the element to be copied
+     * @param   include     {@code true} if the element itself is to be copied, not just its contents
+     * @param   intercepts  the intercepts, keyed by tag name (may be {@code null})
+     * @param   formatter   the output formatter
+     * @throws  TemplateException   if thrown by the replacement for an intercepted element
+     */
+    private void copyTree(Element root, boolean include, Map<String, Intercept> intercepts, SAXHandler formatter)
             throws TemplateException {
-        for (Intercept intercept : intercepts) {
-            if (element.getTagName().equals(intercept.getTagName())) {
-                Element replacement = intercept.getReplacement();
-                context = new TemplateContext(context, replacement);
-                String name = intercept.getName();
-                if (!isEmpty(name))
-                    context.setVariable(name, new ElementWrapper(element));
-                processElementContents(replacement, formatter, true);
-                context = context.getParent();
-                return;
-            }
-        }
         AttributesImpl attrs = new AttributesImpl();
-        NamedNodeMap attributes = element.getAttributes();
-        for (int i = 0, n = attributes.getLength(); i < n; i++) {
-            Attr attr = (Attr)attributes.item(i);
-            attrs.addAttribute(attr.getNamespaceURI(), attr.getLocalName(), attr.getNodeName(), "CDATA",
-                    attr.getValue());
-        }
         try {
-            formatter.startElement(element.getNamespaceURI(), element.getLocalName(), element.getNodeName(), attrs);
-            copyElementContents(element, intercepts, formatter);
-            formatter.endElement(element.getNamespaceURI(), element.getLocalName(), element.getNodeName());
+            Node node = include ? root : root.getFirstChild();
+            while (node != null) {
+                Node child = null;
+                if (node instanceof Element) {
+                    Element element = (Element)node;
+                    Intercept intercept = intercepts == null ? null : intercepts.get(element.getTagName());
+                    if (intercept != null)
+                        processIntercept(element, intercept, formatter);
+                    else {
+                        formatter.startElement(element.getNamespaceURI(), element.getLocalName(),
+                                element.getNodeName(), copyAttributes(element, attrs));
+                        child = element.getFirstChild();
+                        if (child == null)
+                            formatter.endElement(element.getNamespaceURI(), element.getLocalName(),
+                                    element.getNodeName());
+                    }
+                }
+                else if (node instanceof CDATASection) {
+                    formatter.startCDATA();
+                    outputData(((Text)node).getData(), formatter);
+                    formatter.endCDATA();
+                }
+                else if (node instanceof Text)
+                    outputData(((Text)node).getData(), formatter);
+                if (child != null)
+                    node = child;
+                else {
+                    // move to the next sibling, ending each element whose contents are complete
+                    while (node != root && node.getNextSibling() == null) {
+                        node = node.getParentNode();
+                        if (node != root || include)
+                            formatter.endElement(node.getNamespaceURI(), node.getLocalName(), node.getNodeName());
+                    }
+                    node = node == root ? null : node.getNextSibling();
+                }
+            }
         }
         catch (SAXException saxe) {
             throw new RuntimeException("Unexpected SAX exception", saxe);
         }
     }
 
-    private void copyElementContents(Element element, List<Intercept> intercepts, SAXHandler formatter)
+    private void processIntercept(Element element, Intercept intercept, SAXHandler formatter)
             throws TemplateException {
-        context = new TemplateContext(context, element);
-        NodeList childNodes = element.getChildNodes();
-        for (int i = 0, n = childNodes.getLength(); i < n; i++) {
-            Node childNode = childNodes.item(i);
-            if (childNode instanceof Element)
-                copyElement((Element)childNode, intercepts, formatter);
-            else if (childNode instanceof CDATASection) {
-                try {
-                    formatter.startCDATA();
-                    outputData(((Text)childNode).getData(), formatter);
-                    formatter.endCDATA();
-                }
-                catch (SAXException saxe) {
-                    throw new RuntimeException("Unexpected SAX exception", saxe);
-                }
-            }
-            else if (childNode instanceof Text)
-                outputData(((Text)childNode).getData(), formatter);
-        }
+        Element replacement = intercept.getReplacement();
+        if (!intercept.isScoped()) {
+            processElementContents(replacement, formatter, true);
+            return;
+        }
+        context = new TemplateContext(context, replacement);
+        String name = intercept.getName();
+        if (!isEmpty(name))
+            context.setVariable(name, new ElementWrapper(element));
+        processElementContents(replacement, formatter, true);
         context = context.getParent();
     }
 
-    private void outputElement(Element element, SAXHandler formatter) throws TemplateException {
-        AttributesImpl attrs = new AttributesImpl();
+    private static Attributes copyAttributes(Element element, AttributesImpl attrs) {
+        attrs.clear();
         NamedNodeMap attributes = element.getAttributes();
         for (int i = 0, n = attributes.getLength(); i < n; i++) {
             Attr attr = (Attr)attributes.item(i);
-            if (!namespace.equals(attr.getNamespaceURI())) {
-                String value = attr.getValue();
-                try {
-                    String substValue = subst(value);
-                    if (!isEmpty(substValue))
-                        attrs.addAttribute(attr.getNamespaceURI(), attr.getLocalName(), attr.getNodeName(), "CDATA",
-                                substValue);
-                }
-                catch (ExpressionException eee) {
-                    throw new TemplateException(element, attr.getName(), "Error in expression substitution - " + value);
+            attrs.addAttribute(attr.getNamespaceURI(), attr.getLocalName(), attr.getNodeName(), "CDATA",
+                    attr.getValue());
+        }
+        return attrs;
+    }
+
+    private void outputElement(Element element, SAXHandler formatter) throws TemplateException {
+        int base = frameCount;
+        startOutputElement(element, formatter);
+        processFrames(base, formatter);
+    }
+
+    /**
+     * Start the output of an element: output the start tag and push a frame for the contents onto the output stack.
+     * The end tag is output when the frame is exhausted (see {@link #processFrames(int, SAXHandler)}).
+     */
+    private void startOutputElement(Element element, SAXHandler formatter) throws TemplateException {
+        CompiledTemplate compiledTemplate = getCompiled(element);
+        if (formatter == chunkFormatter && compiledTemplate.isStaticRun(element))
+            expectChunk(element, compiledTemplate);
+        CompiledTemplate.OutputAttributes outputAttributes = compiledTemplate.getOutputAttributes(element);
+        Attributes attrs = outputAttributes.staticAttributes;
+        if (attrs == null) {
+            while (attributeBuffers.size() <= outputDepth)
+                attributeBuffers.add(new AttributesImpl());
+            AttributesImpl buffer = attributeBuffers.get(outputDepth);
+            buffer.clear();
+            for (int i = 0, n = outputAttributes.values.length; i < n; i++) {
+                String value = outputAttributes.values[i];
+                if (outputAttributes.dynamic[i]) {
+                    try {
+                        value = substOutput(value, outputAttributes.invariant[i]);
+                    }
+                    catch (ExpressionException eee) {
+                        throw new TemplateException(element, outputAttributes.qNames[i],
+                                "Error in expression substitution - " + value, stackTraceEnabled);
+                    }
                 }
+                if (!isEmpty(value))
+                    buffer.addAttribute(outputAttributes.uris[i], outputAttributes.localNames[i],
+                            outputAttributes.qNames[i], "CDATA", value);
             }
+            attrs = buffer;
         }
         try {
             formatter.startElement(element.getNamespaceURI(), element.getLocalName(), element.getNodeName(), attrs);
-            processElementContents(element, formatter, false);
-            formatter.endElement(element.getNamespaceURI(), element.getLocalName(), element.getNodeName());
         }
         catch (SAXException saxe) {
             throw new RuntimeException("Unexpected SAX exception", saxe);
         }
+        boolean savedPreserving = preserving;
+        outputDepth++;
+        if (outputAttributes.preserve != null)
+            preserving = outputAttributes.preserve;
+        CompiledTemplate.Contents contents;
+        try {
+            contents = getContents(element, false);
+        }
+        catch (RuntimeException e) {
+            preserving = savedPreserving;
+            outputDepth--;
+            throw e;
+        }
+        pushFrame(element, contents, savedPreserving);
+    }
+
+    /**
+     * Tell the compressed output stream to expect the output of a static run, in pre-compressed form.  The output is
+     * created (by formatting the run separately) the first time the run is output in each form; if it is small, or if
+     * it is often not found in the output (because the formatter writes it differently in context), it is not used.
+     */
+    private void expectChunk(Element element, CompiledTemplate compiledTemplate) throws TemplateException {
+        int slot = chunkSlot + (preserving ? 1 : 0);
+        int level = chunkStream.getLevel();
+        CompressedOutputStream.Chunk chunk = compiledTemplate.getChunk(element, slot);
+        if (chunk == null || chunk.level != level) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (chunkSlot >= 6) {
+                try (HTMLFormatterForXTJ formatter = createHTMLFormatter(baos)) {
+                    outputElement(element, formatter);
+                }
+                catch (IOException ioe) {
+                    throw new RuntimeException("Unexpected I/O exception", ioe);
+                }
+            }
+            else {
+                try (XMLFormatter formatter = createXMLFormatter(baos)) {
+                    outputElement(element, formatter);
+                }
+                catch (IOException ioe) {
+                    throw new RuntimeException("Unexpected I/O exception", ioe);
+                }
+            }
+            byte[] data = baos.toByteArray();
+            chunk = data.length < minChunkSize ? new CompressedOutputStream.Chunk(null, null, level) :
+                    CompressedOutputStream.compress(data, level);
+            compiledTemplate.setChunk(element, slot, chunk);
+        }
+        if (chunk.isUseful())
+            chunkStream.expect(chunk);
     }
 
-    private void outputText(Text text, String data, SAXHandler formatter) throws TemplateException {
+    private void outputText(Text text, String data, boolean invariant, SAXHandler formatter)
+            throws TemplateException {
         try {
-            String substData = subst(data);
+            String substData = substOutput(data, invariant ? text : null);
             outputData(substData, formatter);
         }
         catch (ExpressionException eee) {
-            throw new TemplateException(text, "Error in expression substitution" + '\n' + eee.getMessage());
+            throw new TemplateException(text, "Error in expression substitution" + '\n' + eee.getMessage(),
+                    stackTraceEnabled);
         }
     }
 
     private void outputData(String data, SAXHandler formatter) {
+        // the SAX handler may not retain the array, so a single buffer may be re-used for all output
+        int length = data.length();
+        char[] chars = charBuffer;
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            if (chars.length <= maxCharBufferSize)
+                charBuffer = chars;
+        }
+        data.getChars(0, length, chars, 0);
         try {
-            formatter.characters(data.toCharArray(), 0, data.length());
+            formatter.characters(chars, 0, length);
+        }
+        catch (SAXException saxe) {
+            throw new RuntimeException("Unexpected SAX exception", saxe);
+        }
+    }
+
+    private void outputChars(char[] chars, SAXHandler formatter) {
+        try {
+            formatter.characters(chars, 0, chars.length);
         }
         catch (SAXException saxe) {
             throw new RuntimeException("Unexpected SAX exception", saxe);
@@ -954,10 +2394,11 @@ public class TemplateProcessor {
 
     private Object evaluate(String str, Element element, String attrName) throws TemplateException {
         try {
-            return parser.parseExpression(str, context).evaluate();
+            return parser.parseExpression(str, getExpressionResolver(str)).evaluate();
         }
         catch (ExpressionException eee) {
-            throw new TemplateException(element, attrName, "Error in expression evaluation" + '\n' + eee.getMessage());
+            throw new TemplateException(element, attrName, "Error in expression evaluation" + '\n' + eee.getMessage(),
+                    stackTraceEnabled);
         }
     }
 
@@ -967,12 +2408,173 @@ public class TemplateProcessor {
         }
         catch (ExpressionException eee) {
             throw new TemplateException(element, attrName,
-                    "Error in expression substitution" + '\n' + eee.getMessage());
+                    "Error in expression substitution" + '\n' + eee.getMessage(), stackTraceEnabled);
         }
     }
 
     private String subst(String str) throws ExpressionException {
-        return str == null ? null : parser.substitute(str, context);
+        return str == null ? null : parser.substitute(str, getResolver(str));
+    }
+
+    /**
+     * Substitute a text or output attribute value.  A common expression (one that occurs more than once in the
+     * document) whose identifiers all refer to variables set on the processor, or to nothing, is substituted once for
+     * each use of the template; a loop-invariant value is substituted once for each entry to the loop.  A value that
+     * calls a function not declared pure is always substituted.  While a
+     * {@code <region>} is being recorded, values are always substituted, so that the dependencies of the region are
+     * recorded.
+     *
+     * @param   str             the string to be substituted
+     * @param   invariantNode   the text or attribute node if the value is loop-invariant, otherwise {@code null}
+     * @return  the substituted string
+     * @throws  ExpressionException on any errors in the expressions
+     */
+    private String substOutput(String str, Node invariantNode) throws ExpressionException {
+        if (recordingRegion == null) {
+            if (renderMemo != null) {
+                String[] identifiers = compiled.getCommonExpression(str);
+                if (identifiers != null && isGlobal(identifiers) && isPure(str)) {
+                    String result = renderMemo.get(str);
+                    if (result == null) {
+                        result = subst(str);
+                        renderMemo.put(str, result);
+                    }
+                    return result;
+                }
+            }
+            if (invariantNode != null && loopInvariants != null && isPure(str))
+                return substLoopInvariant(invariantNode, str);
+        }
+        return subst(str);
+    }
+
+    /**
+     * Test whether the functions called in a text or attribute value have all been declared pure (see
+     * {@link #addPureFunction(String, String)}).
+     *
+     * @param   str     the string to be substituted
+     * @return  {@code true} if the value calls no functions, or only pure functions
+     */
+    private boolean isPure(String str) {
+        Boolean pure = pureStrings.get(str);
+        if (pure == null) {
+            pure = callsPureFunctions(str, false);
+            pureStrings.put(str, pure);
+        }
+        return pure;
+    }
+
+    private boolean isPureExpression(String expression) {
+        Boolean pure = pureExpressions.get(expression);
+        if (pure == null) {
+            pure = callsPureFunctions(expression, true);
+            pureExpressions.put(expression, pure);
+        }
+        return pure;
+    }
+
+    private boolean callsPureFunctions(String str, boolean expression) {
+        List<String> functions = CompiledTemplate.findFunctions(str, expression);
+        if (functions == null)
+            return false;
+        for (String function : functions) {
+            int colon = function.indexOf(':');
+            String uri = colon < 0 ? "" : context.resolvePrefix(function.substring(0, colon));
+            if (uri == null || !(pureFunctions.contains('{' + uri + "}*") ||
+                    pureFunctions.contains('{' + uri + '}' + function.substring(colon + 1))))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Test whether each of a set of identifiers refers to a variable set on the processor, or is not defined.
+     *
+     * @param   identifiers the identifiers
+     * @return  {@code true} if none of the identifiers is bound within the template
+     */
+    private boolean isGlobal(String[] identifiers) {
+        for (String identifier : identifiers) {
+            TemplateContext owner = context.getDefiningContext(identifier);
+            if (owner != null) {
+                TemplateContext processorContext = variables;
+                while (processorContext != null && processorContext != owner)
+                    processorContext = processorContext.getParent();
+                if (processorContext == null)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Substitute a loop-invariant text or attribute value.  The value is substituted the first time it is required
+     * on each entry to the loop, and re-used for the remaining iterations.  While a {@code <region>} is being recorded,
+     * the value is always substituted, so that the dependencies of the region are recorded.
+     *
+     * @param   node    the text or attribute node (the key for the substituted value)
+     * @param   str     the string to be substituted
+     * @return  the substituted string
+     * @throws  ExpressionException on any errors in the expressions
+     */
+    private String substLoopInvariant(Node node, String str) throws ExpressionException {
+        if (recordingRegion != null)
+            return subst(str);
+        String result = loopInvariants.get(node);
+        if (result == null) {
+            result = subst(str);
+            loopInvariants.put(node, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the resolver for a string for substitution: the context, or if cached property access is selected and the
+     * string uses beans for property access, a resolver that wraps them.  While a {@code <region>} is being recorded,
+     * a call in the string to a function not declared pure prevents the region from being re-used.
+     *
+     * @param   str     the string
+     * @return  the resolver
+     */
+    private ExtendedResolver getResolver(String str) {
+        if (recordingRegion != null && !isPure(str))
+            context.recordImpureCall();
+        if (!cachedPropertyAccess)
+            return context;
+        PropertyAccessor.WrappingResolver resolver = wrappingResolvers.get(str);
+        if (resolver == null) {
+            Map<String, Integer> depths = CompiledTemplate.findPropertyDepths(str);
+            if (depths == null)
+                depths = Collections.emptyMap();
+            resolver = new PropertyAccessor.WrappingResolver(depths) {
+                @Override
+                ExtendedResolver getResolver() {
+                    return context;
+                }
+                @Override
+                Map<Object, Constant[]> getWrappers() {
+                    if (wrappedBeans == null)
+                        wrappedBeans = new IdentityHashMap<>();
+                    return wrappedBeans;
+                }
+            };
+            wrappingResolvers.put(str, resolver);
+        }
+        return resolver.hasDepths() ? resolver : context;
+    }
+
+    private ExtendedResolver getExpressionResolver(String expression) {
+        if (recordingRegion != null && !isPureExpression(expression))
+            context.recordImpureCall();
+        return cachedPropertyAccess ? getResolver("${" + expression + '}') : context;
+    }
+
+    private static boolean isElementEmpty(Element element) {
+        // iterate by sibling rather than by NodeList index - the latter is not safe for concurrent use in some DOMs
+        for (Node childNode = element.getFirstChild(); childNode != null; childNode = childNode.getNextSibling())
+            if (!XML.isCommentOrEmpty(childNode))
+                return false;
+        return true;
     }
 
     private static boolean isEmpty(String str) {
@@ -988,8 +2590,14 @@ public class TemplateProcessor {
             TemplateProcessor processor = new TemplateProcessor();
             File currentDir = new File(".");
             URL baseURL = new URL("file://" + currentDir.getAbsoluteFile());
+            URL templateURL = null;
             File out = null;
+            int bufferSize = ChannelOutputStream.defaultBufferSize;
             boolean jstlFunctions = true;
+            boolean compile = false;
+            boolean lint = false;
+            ShardOptions shardOptions = null;
+            File manifest = null;
             for (int i = 0; i < args.length; i++) {
                 String arg = args[i];
                 if (arg.equals(versionSwitch)) {
@@ -1002,14 +2610,18 @@ public class TemplateProcessor {
                 else if (arg.equals(templateSwitch)) {
                     if (processor.getDom() != null)
                         throw new UserError("Duplicate " + templateSwitch);
-                    URL template = getArgURL(args, ++i, baseURL, templateSwitch);
-                    processor.setTemplate(getDocument(template), template);
+                    templateURL = getArgURL(args, ++i, baseURL, templateSwitch);
+                    processor.setTemplate(getDocument(templateURL), templateURL);
                 }
+                else if (arg.equals(compileSwitch))
+                    compile = true;
+                else if (arg.equals(lintSwitch))
+                    lint = true;
                 else if (arg.equals(xmlSwitch)) {
                     String ident = getArgIdent(args, ++i, xmlSwitch);
                     URL xmlURL = getArgURL(args, ++i, baseURL, xmlSwitch);
                     try {
-                        Element element = getDocument(xmlURL).getDocumentElement();
+                        Element element = getDocument(xmlURL, false).getDocumentElement();
                         processor.setVariable(ident, new ElementWrapper(element));
                     }
                     catch (TemplateException te) {
@@ -1022,8 +2634,8 @@ public class TemplateProcessor {
                 else if (arg.equals(jsonSwitch)) {
                     String ident = getArgIdent(args, ++i, jsonSwitch);
                     URL jsonURL = getArgURL(args, ++i, baseURL, jsonSwitch);
-                    try {
-                        processor.setVariable(ident, JSON.parse(getURLReader(jsonURL)));
+                    try (Reader reader = getURLReader(jsonURL)) {
+                        processor.setVariable(ident, JSON.parse(reader));
                     }
                     catch (JSONException je) {
                         throw new UserError(jsonSwitch + " content invalid - " + args[i]);
@@ -1035,9 +2647,9 @@ public class TemplateProcessor {
                 else if (arg.equals(propSwitch)) {
                     String ident = getArgIdent(args, ++i, propSwitch);
                     URL propURL = getArgURL(args, ++i, baseURL, propSwitch);
-                    try {
+                    try (Reader reader = getURLReader(propURL)) {
                         Properties properties = new Properties();
-                        properties.load(getURLReader(propURL));
+                        properties.load(reader);
                         processor.setVariable(ident, properties);
                     }
                     catch (Exception e) {
@@ -1049,6 +2661,34 @@ public class TemplateProcessor {
                         throw new UserError("Duplicate " + outSwitch);
                     out = new File(getArg(args, ++i, outSwitch + " with no pathname"));
                 }
+                else if (arg.equals(bufsizeSwitch))
+                    bufferSize = getArgSize(args, ++i, bufsizeSwitch);
+                else if (arg.equals(shardsSwitch)) {
+                    if (shardOptions == null)
+                        shardOptions = new ShardOptions();
+                    shardOptions.setShards(getArgCount(args, ++i, shardsSwitch));
+                }
+                else if (arg.equals(shardloopSwitch)) {
+                    if (shardOptions == null)
+                        shardOptions = new ShardOptions();
+                    shardOptions.setLoopName(getArgIdent(args, ++i, shardloopSwitch));
+                }
+                else if (arg.equals(shardframeSwitch)) {
+                    if (shardOptions == null)
+                        shardOptions = new ShardOptions();
+                    String frame = getArg(args, ++i, shardframeSwitch + " with no option");
+                    if (frame.equals(shardframeRepeat))
+                        shardOptions.setRepeatFrame(true);
+                    else if (frame.equals(shardframeOmit))
+                        shardOptions.setRepeatFrame(false);
+                    else
+                        throw new UserError(shardframeSwitch + " option invalid - " + frame);
+                }
+                else if (arg.equals(manifestSwitch)) {
+                    if (manifest != null)
+                        throw new UserError("Duplicate " + manifestSwitch);
+                    manifest = new File(getArg(args, ++i, manifestSwitch + " with no pathname"));
+                }
                 else if (arg.startsWith(dSwitch) && arg.length() > dSwitch.length()) {
                     int j = arg.indexOf('=');
                     String lhs = j < 0 ? arg.substring(dSwitch.length()) :
@@ -1056,18 +2696,46 @@ public class TemplateProcessor {
                     String rhs = j < 0 ? null : arg.substring(j + 1);
                     if (!Expression.isValidIdentifier(lhs))
                         throw new UserError(dSwitch + " identifier invalid - " + lhs);
-                    processor.setVariable(lhs, rhs == null ? Boolean.TRUE : parseArg(rhs));
+                    // values given on the command line are fixed for the run, so they are static
+                    processor.setStaticVariable(lhs, rhs == null ? Boolean.TRUE : parseArg(rhs));
                 }
                 else
                     throw new UserError("Unrecognised argument - " + arg);
             }
             if (processor.getDom() == null)
                 throw new UserError("No " + templateSwitch);
-            if (jstlFunctions)
+            if (compile) {
+                if (!"file".equals(templateURL.getProtocol()))
+                    throw new UserError(compileSwitch + " requires template file - " + templateURL);
+                File templateFile = new File(templateURL.getPath());
+                BinaryTemplate.compile(templateFile, out != null ? out :
+                        new File(templateFile.getPath() + BinaryTemplate.fileExtension));
+                return;
+            }
+            if (lint) {
+                List<LintFinding> findings = processor.lint();
+                for (LintFinding finding : findings)
+                    System.out.println(finding);
+                if (!findings.isEmpty())
+                    System.exit(2);
+                return;
+            }
+            if (jstlFunctions) {
                 processor.addNamespace(jstlFunctionsURL, new Functions());
-            if (out != null) {
-                try (OutputStream os = new FileOutputStream(out)) {
-                    processor.process(os);
+                processor.addPureFunction(jstlFunctionsURL, "*");
+            }
+            processor.addNamespace(formatFunctionsURL, new FormatFunctions());
+            processor.addPureFunction(formatFunctionsURL, "*");
+            if (shardOptions != null) {
+                if (out == null || shardOptions.getLoopName() == null)
+                    throw new UserError("Sharded output requires " + outSwitch + " and " + shardloopSwitch);
+                shardOptions.setFilePattern(out.getPath());
+                shardOptions.setBufferSize(bufferSize);
+                writeManifest(processor.processSharded(shardOptions), manifest);
+            }
+            else if (out != null) {
+                try {
+                    processToFile(processor, out, bufferSize);
                 }
                 catch (IOException ioe) {
                     throw new RuntimeException("Error writing output file", ioe);
@@ -1078,6 +2746,12 @@ public class TemplateProcessor {
         }
         catch (TemplateException te) {
             System.err.println();
+            String templateURL = te.getURL();
+            if (templateURL != null)
+                System.err.println("URL: " + templateURL);
+            int line = te.getLine();
+            if (line > 0)
+                System.err.println("Line: " + line + ", column: " + te.getColumn());
             String xpath = te.getXPath();
             if (xpath != null)
                 System.err.println("XPath: " + xpath);
@@ -1105,6 +2779,121 @@ public class TemplateProcessor {
         return ident;
     }
 
+    private static int getArgCount(String[] args, int index, String name) {
+        String arg = getArg(args, index, name + " with no count");
+        try {
+            int count = Integer.parseInt(arg);
+            if (count > 0)
+                return count;
+        }
+        catch (NumberFormatException e) {
+            // fall through to error below
+        }
+        throw new UserError(name + " count invalid - " + arg);
+    }
+
+    private static int getArgSize(String[] args, int index, String name) {
+        String arg = getArg(args, index, name + " with no size");
+        int multiplier = 1;
+        String digits = arg;
+        if (arg.endsWith("k") || arg.endsWith("K")) {
+            multiplier = 1024;
+            digits = arg.substring(0, arg.length() - 1);
+        }
+        else if (arg.endsWith("m") || arg.endsWith("M")) {
+            multiplier = 1024 * 1024;
+            digits = arg.substring(0, arg.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(digits) * multiplier;
+            if (size > 0 && size <= Integer.MAX_VALUE)
+                return (int)size;
+        }
+        catch (NumberFormatException e) {
+            // fall through to error below
+        }
+        throw new UserError(name + " size invalid - " + arg);
+    }
+
+    /**
+     * Process the template to a file.  The output is written through a {@link FileChannel} to a temporary file in the
+     * same directory, which is renamed to the target file only when the output is complete, so that a failed or
+     * interrupted run does not leave a partially-written file.
+     *
+     * @param   processor   the {@code TemplateProcessor}
+     * @param   out         the output file
+     * @param   bufferSize  the size of the output buffer
+     * @throws  IOException on any I/O errors
+     */
+    private static void processToFile(TemplateProcessor processor, File out, int bufferSize) throws IOException {
+        Path target = out.getAbsoluteFile().toPath();
+        Path temp = null;
+        FileChannel channel = null;
+        while (channel == null) {
+            temp = target.resolveSibling(target.getFileName().toString() + '.' +
+                    Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1) + ".tmp");
+            try {
+                channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+        boolean complete = false;
+        try {
+            try (OutputStream os = new ChannelOutputStream(channel, bufferSize)) {
+                copyPermissions(target, temp);
+                processor.process(os);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            complete = true;
+        }
+        finally {
+            if (!complete)
+                Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Copy the POSIX permissions of an existing target file to the file that is to replace it.  A new file is created
+     * without explicit attributes, so that in the absence of a target it takes the default permissions (subject to
+     * {@code umask}), not the owner-only permissions of {@link Files#createTempFile}.
+     *
+     * @param   target      the target file
+     * @param   temp        the temporary file
+     * @throws  IOException on any I/O errors
+     */
+    private static void copyPermissions(Path target, Path temp) throws IOException {
+        if (Files.exists(target) && Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class))
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+    }
+
+    /**
+     * Write the manifest of sharded output: one line for each shard, with the file name and the number of records,
+     * separated by a tab.
+     *
+     * @param   results     the shard results
+     * @param   manifest    the manifest file, or {@code null} to write to standard output
+     * @throws  IOException on any I/O errors
+     */
+    private static void writeManifest(List<ShardResult> results, File manifest) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (ShardResult result : results)
+            sb.append(result.getFile().getPath()).append('\t').append(result.getRecords()).append('\n');
+        byte[] bytes = sb.toString().getBytes(Charset.defaultCharset());
+        if (manifest != null)
+            Files.write(manifest.toPath(), bytes);
+        else {
+            System.out.write(bytes);
+            System.out.flush();
+        }
+    }
+
     private static URL getArgURL(String[] args, int index, URL baseURL, String name) {
         String arg = getArg(args, index, name + " with no URL");
         try {
@@ -1118,7 +2907,10 @@ public class TemplateProcessor {
     private static Reader getURLReader(URL url) {
         try {
             if ("file".equals(url.getProtocol())) // workaround for Windows
-                return new FileReader(url.getPath());
+                return new BufferedReader(Channels.newReader(FileChannel.open(Paths.get(url.getPath()),
+                        StandardOpenOption.READ), Charset.defaultCharset().newDecoder().
+                        onMalformedInput(CodingErrorAction.REPLACE).
+                        onUnmappableCharacter(CodingErrorAction.REPLACE), readerBufferSize));
             URLConnection urlConnection = url.openConnection();
             InputStream stream = urlConnection.getInputStream();
             String contentTypeHeader = urlConnection.getContentType();
@@ -1170,17 +2962,36 @@ public class TemplateProcessor {
         return arg;
     }
 
-    private static synchronized Document getDocument(URL url) throws TemplateException {
+    static Document getDocument(URL url) throws TemplateException {
+        return getDocument(url, true);
+    }
+
+    /**
+     * Get a document, parsing it if it has not already been loaded.  The binary form of a template (see
+     * {@link BinaryTemplate}) is used only for template documents, not for data documents, and the source locations
+     * of elements (for error reporting) are recorded only for template documents.
+     *
+     * @param   url         the URL of the document
+     * @param   template    {@code true} if the document is a template
+     * @return  the document
+     * @throws  TemplateException   if the document can not be read or parsed
+     */
+    static Document getDocument(URL url, boolean template) throws TemplateException {
         String urlString = url.toString();
         Document document = documentMap.get(urlString);
         if (document == null) {
+            // parse outside any lock; if another thread loads the same document concurrently, the first one stored wins
             try {
-                InputSource is = new InputSource();
-                if ("file".equals(url.getProtocol())) // workaround for Windows
-                    is.setByteStream(new FileInputStream(url.getPath()));
+                if ("file".equals(url.getProtocol())) { // workaround for Windows
+                    File file = new File(url.getPath());
+                    File binary = template ? new File(file.getPath() + BinaryTemplate.fileExtension) : null;
+                    if (binary != null && binary.exists())
+                        document = BinaryTemplate.load(file, binary);
+                    else
+                        document = DocumentLoader.parse(file, template);
+                }
                 else
-                    is.setSystemId(urlString);
-                document = XML.getDocumentBuilderNS().parse(is);
+                    document = DocumentLoader.parse(url, template);
             }
             catch (IOException e) {
                 throw new TemplateException("I/O error reading URL - " + urlString);
@@ -1188,81 +2999,289 @@ public class TemplateProcessor {
             catch (SAXException e) {
                 throw new TemplateException("Parsing error reading URL - " + urlString);
             }
+            catch (TemplateException e) {
+                throw e;
+            }
             catch (Exception e) {
                 throw new TemplateException("Unexpected error reading URL - " + urlString);
             }
-            documentMap.put(urlString, document);
+            if (document.getDocumentURI() == null)
+                document.setDocumentURI(urlString); // reported by TemplateException.getURL()
+            Document existing = documentMap.putIfAbsent(urlString, document);
+            if (existing != null)
+                document = existing;
         }
         return document;
     }
 
+    /**
+     * {@link OutputStream} wrapper enforcing the output size limit.
+     */
+    private class LimitedOutputStream extends FilterOutputStream {
+
+        private final long maxBytes;
+        private long count;
+
+        LimitedOutputStream(OutputStream out, long maxBytes) {
+            super(out);
+            this.maxBytes = maxBytes;
+            count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            addCount(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            addCount(len);
+            out.write(b, off, len);
+        }
+
+        private void addCount(int n) {
+            count += n;
+            if (count > maxBytes)
+                throw new TemplateException(currentElement, "Output size limit exceeded", stackTraceEnabled);
+        }
+
+    }
+
+    /**
+     * A frame of the output stack: the contents of an output element (or, if the element is {@code null}, of a
+     * template element) and the index of the next node to be processed.  Frames are re-used.
+     */
+    private static class OutputFrame {
+
+        private Element element;
+        private CompiledTemplate.Contents contents;
+        private int index;
+        private boolean savedPreserving;
+
+    }
+
+    /**
+     * A thread of the default pool for concurrent tasks.
+     */
+    private static class PoolThread extends Thread {
+
+        PoolThread(Runnable runnable, String name) {
+            super(runnable, name);
+            setDaemon(true);
+        }
+
+    }
+
+    /**
+     * Wrapper for a DOM {@link Element}, giving access to its children, attributes and text from the Expression
+     * Language.  A wrapper created by {@link #prebuilt(Element)} has all values for the element and its descendants
+     * computed in advance and does not access the DOM again (other than through {@link #getElement()}), so it may be
+     * shared between threads.  Otherwise the values are computed lazily, reading the DOM while holding a private lock
+     * shared by a wrapper and all the wrappers created from it for descendant elements; this protects those wrappers
+     * from each other, but not from other concurrent use of the DOM, which is not thread-safe even for reads.
+     */
     public static class ElementWrapper {
 
         private final Element element;
-        private List<ElementWrapper> elems;
-        private Map<String, Object> attrs;
-        private String text;
+        private final Object lock;
+        private final String tagName;
+        private volatile List<ElementWrapper> elems;
+        private volatile Map<String, List<ElementWrapper>> elemsByName;
+        private volatile Map<String, ElementWrapper> first;
+        private volatile Map<String, Object> attrs;
+        private volatile String text;
 
         public ElementWrapper(Element element) {
+            this(element, new Object());
+        }
+
+        private ElementWrapper(Element element, Object lock) {
             this.element = element;
+            this.lock = lock;
+            tagName = element.getTagName();
             elems = null;
+            elemsByName = null;
+            first = null;
             attrs = null;
             text = null;
         }
 
+        /**
+         * Create an {@code ElementWrapper} with the values for the element and all its descendants computed in
+         * advance, for use when the same data document is to be used by many renders.
+         *
+         * @param   element the element
+         * @return  the {@code ElementWrapper}
+         */
+        public static ElementWrapper prebuilt(Element element) {
+            ElementWrapper elementWrapper = new ElementWrapper(element);
+            // list the wrappers without recursion (parents before children), then build them in reverse order
+            List<ElementWrapper> wrappers = new ArrayList<>();
+            wrappers.add(elementWrapper);
+            for (int i = 0; i < wrappers.size(); i++)
+                wrappers.addAll(wrappers.get(i).getElems());
+            for (int i = wrappers.size(); i > 0; )
+                wrappers.get(--i).build();
+            return elementWrapper;
+        }
+
+        /**
+         * Compute all values for the element; the wrappers for the child elements must already have been built.
+         */
+        private void build() {
+            List<ElementWrapper> children = getElems();
+            getElemsByName();
+            getAttrs();
+            // build text from the children's text, to avoid repeated scans of the subtree
+            StringBuilder sb = new StringBuilder();
+            NodeList childNodes = element.getChildNodes();
+            int childIndex = 0;
+            for (int i = 0, n = childNodes.getLength(); i < n; i++) {
+                Node child = childNodes.item(i);
+                if (child instanceof Text)
+                    sb.append(((Text)child).getData());
+                else if (child instanceof Element)
+                    sb.append(children.get(childIndex++).getText());
+            }
+            text = sb.toString();
+        }
+
         public Element getElement() {
             return element;
         }
 
         @SuppressWarnings("unused")
         public String getTagName() {
-            return element.getTagName();
+            return tagName;
         }
 
         @SuppressWarnings("unused")
         public List<ElementWrapper> getElems() {
-            if (elems == null) {
-                elems = new ArrayList<>();
-                NodeList children = element.getChildNodes();
-                for (int i = 0, n = children.getLength(); i < n; i++) {
-                    Node child = children.item(i);
-                    if (child instanceof Element)
-                        elems.add(new ElementWrapper((Element)child));
+            List<ElementWrapper> result = elems;
+            if (result == null) {
+                synchronized (lock) {
+                    result = elems;
+                    if (result == null) {
+                        result = new ArrayList<>();
+                        NodeList children = element.getChildNodes();
+                        for (int i = 0, n = children.getLength(); i < n; i++) {
+                            Node child = children.item(i);
+                            if (child instanceof Element)
+                                result.add(new ElementWrapper((Element)child, lock));
+                        }
+                        result = Collections.unmodifiableList(result);
+                        elems = result;
+                    }
                 }
             }
-            return elems;
+            return result;
         }
 
+        /**
+         * Get the child elements indexed by tag name.
+         *
+         * @return  a {@link Map} of tag name to the list of child elements with that name
+         */
         @SuppressWarnings("unused")
-        public Map<String, Object> getAttrs() {
-            if (attrs == null) {
-                attrs = new HashMap<>();
-                NamedNodeMap attributes = element.getAttributes();
-                for (int i = 0, n = attributes.getLength(); i < n; i++) {
-                    Attr attr = (Attr)attributes.item(i);
-                    attrs.put(attr.getName(), attr.getValue());
+        public Map<String, List<ElementWrapper>> getElemsByName() {
+            Map<String, List<ElementWrapper>> result = elemsByName;
+            if (result == null) {
+                List<ElementWrapper> children = getElems();
+                synchronized (lock) {
+                    result = elemsByName;
+                    if (result == null) {
+                        Map<String, List<ElementWrapper>> lists = new HashMap<>();
+                        Map<String, ElementWrapper> firsts = new HashMap<>();
+                        for (ElementWrapper child : children) {
+                            List<ElementWrapper> list = lists.get(child.tagName);
+                            if (list == null) {
+                                list = new ArrayList<>();
+                                lists.put(child.tagName, list);
+                                firsts.put(child.tagName, child);
+                            }
+                            list.add(child);
+                        }
+                        for (Map.Entry<String, List<ElementWrapper>> entry : lists.entrySet())
+                            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+                        first = Collections.unmodifiableMap(firsts);
+                        result = Collections.unmodifiableMap(lists);
+                        elemsByName = result;
+                    }
                 }
             }
-            return attrs;
+            return result;
         }
 
+        /**
+         * Get the first child element with each tag name.
+         *
+         * @return  a {@link Map} of tag name to the first child element with that name
+         */
         @SuppressWarnings("unused")
-        public String getText() {
-            if (text == null) {
-                StringBuilder sb = new StringBuilder();
-                appendData(sb, element);
-                text = sb.toString();
+        public Map<String, ElementWrapper> getFirst() {
+            Map<String, ElementWrapper> result = first;
+            if (result == null) {
+                getElemsByName();
+                result = first;
             }
-            return text;
+            return result;
         }
 
-        private void appendData(StringBuilder sb, Node node) {
-            if (node instanceof Text)
-                sb.append(((Text)node).getData());
-            else if (node instanceof Element) {
-                NodeList children = node.getChildNodes();
-                for (int i = 0, n = children.getLength(); i < n; i++)
-                    appendData(sb, children.item(i));
+        @SuppressWarnings("unused")
+        public Map<String, Object> getAttrs() {
+            Map<String, Object> result = attrs;
+            if (result == null) {
+                synchronized (lock) {
+                    result = attrs;
+                    if (result == null) {
+                        result = new HashMap<>();
+                        NamedNodeMap attributes = element.getAttributes();
+                        for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                            Attr attr = (Attr)attributes.item(i);
+                            result.put(attr.getName(), attr.getValue());
+                        }
+                        result = Collections.unmodifiableMap(result);
+                        attrs = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unused")
+        public String getText() {
+            String result = text;
+            if (result == null) {
+                synchronized (lock) {
+                    result = text;
+                    if (result == null) {
+                        StringBuilder sb = new StringBuilder();
+                        appendData(sb);
+                        result = sb.toString();
+                        text = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void appendData(StringBuilder sb) {
+            // walk the subtree in document order without recursion
+            Node node = element.getFirstChild();
+            while (node != null) {
+                if (node instanceof Text)
+                    sb.append(((Text)node).getData());
+                else if (node instanceof Element && node.getFirstChild() != null) {
+                    node = node.getFirstChild();
+                    continue;
+                }
+                while (node.getNextSibling() == null) {
+                    node = node.getParentNode();
+                    if (node == element)
+                        return;
+                }
+                node = node.getNextSibling();
             }
         }
 
@@ -1273,11 +3292,17 @@ public class TemplateProcessor {
         private final String tagName;
         private final Element replacement;
         private final String name;
+        private final boolean scoped;
 
-        public Intercept(String tagName, Element replacement, String name) {
+        Intercept(String tagName, Element replacement, String name, boolean scoped) {
             this.tagName = tagName;
             this.replacement = replacement;
             this.name = name;
+            this.scoped = scoped;
+        }
+
+        public Intercept(String tagName, Element replacement, String name) {
+            this(tagName, replacement, name, true);
         }
 
         public String getTagName() {
@@ -1292,6 +3317,15 @@ public class TemplateProcessor {
             return name;
         }
 
+        /**
+         * Determine whether the replacement is processed in a context of its own.
+         *
+         * @return  {@code true} if a new context is created for each intercepted element
+         */
+        public boolean isScoped() {
+            return scoped;
+        }
+
     }
 
     public static class HTMLFormatterForXTJ extends HTMLFormatter implements SAXHandler {
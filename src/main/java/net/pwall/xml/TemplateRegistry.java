@@ -0,0 +1,373 @@
+/*
+ * @(#) TemplateRegistry.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.pwall.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.w3c.dom.Document;
+
+/**
+ * A registry of templates, identified by logical name.  Templates are loaded from a directory or from a classpath
+ * prefix, in parallel, with their static includes, so that the cost of parsing and compiling them is incurred at
+ * startup rather than on first use.  The logical name of a template is its path relative to the directory or prefix,
+ * with {@code /} as separator and without the {@code .xml} extension.
+ *
+ * <p>Templates that fail to load (or that have static includes that fail to load) are reported by
+ * {@link #getFailures()}.  An optional warm-up ({@link #warmUp(int, Map)}) processes each template a number of times,
+ * discarding the output, so that the code paths used are compiled by the JIT before the first real request.</p>
+ *
+ * @author  Peter Wall
+ */
+public class TemplateRegistry {
+
+    public static final String templateExtension = ".xml";
+
+    private static final OutputStream discardOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            // discard
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // discard
+        }
+    };
+
+    private final Map<String, URL> templates;
+    private final Map<String, Exception> failures;
+    private final Map<String, Object> namespaces;
+    private Executor executor;
+
+    public TemplateRegistry() {
+        templates = new ConcurrentHashMap<>();
+        failures = new ConcurrentHashMap<>();
+        namespaces = new LinkedHashMap<>();
+        executor = null;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the {@link Executor} used to load and warm up templates in parallel.
+     *
+     * @param   executor    the {@link Executor}, or {@code null} to use the common {@link ForkJoinPool}
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Add a namespace to be made available to the processors created by {@link #getProcessor(String)} (see
+     * {@link TemplateProcessor#addNamespace(String, Object)}).
+     *
+     * @param   uri     the namespace URI
+     * @param   impl    the implementation object
+     */
+    public void addNamespace(String uri, Object impl) {
+        namespaces.put(uri, impl);
+    }
+
+    /**
+     * Load all templates ({@code .xml} files) in a directory and its subdirectories.
+     *
+     * @param   directory   the directory
+     * @throws  IOException if the directory does not exist or can not be read
+     */
+    public void loadDirectory(File directory) throws IOException {
+        if (!directory.isDirectory())
+            throw new IOException("Not a directory - " + directory);
+        Map<String, URL> found = new TreeMap<>();
+        findFiles(directory, "", found);
+        load(found);
+    }
+
+    /**
+     * Load all templates ({@code .xml} resources) under a classpath prefix, using the context class loader of the
+     * current thread.
+     *
+     * @param   prefix      the prefix (e.g. {@code "templates"})
+     * @throws  IOException on any errors reading the classpath
+     */
+    public void loadResources(String prefix) throws IOException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        loadResources(classLoader != null ? classLoader : TemplateRegistry.class.getClassLoader(), prefix);
+    }
+
+    /**
+     * Load all templates ({@code .xml} resources) under a classpath prefix.  Resources in directories and in jar
+     * files are found; where the same name occurs in more than one location, the first on the classpath is used.
+     *
+     * @param   classLoader the {@link ClassLoader}
+     * @param   prefix      the prefix (e.g. {@code "templates"})
+     * @throws  IOException on any errors reading the classpath
+     */
+    public void loadResources(ClassLoader classLoader, String prefix) throws IOException {
+        String path = prefix.endsWith("/") ? prefix : prefix + '/';
+        if (path.startsWith("/"))
+            path = path.substring(1);
+        Map<String, URL> found = new TreeMap<>();
+        Enumeration<URL> roots = classLoader.getResources(path);
+        while (roots.hasMoreElements()) {
+            URL root = roots.nextElement();
+            Map<String, URL> rootFound = new HashMap<>();
+            if ("file".equals(root.getProtocol())) {
+                try {
+                    findFiles(new File(root.toURI()), "", rootFound);
+                }
+                catch (URISyntaxException e) {
+                    throw new IOException("Invalid resource URL - " + root);
+                }
+            }
+            else {
+                URLConnection connection = root.openConnection();
+                if (connection instanceof JarURLConnection)
+                    findJarEntries((JarURLConnection)connection, root, rootFound);
+            }
+            for (Map.Entry<String, URL> entry : rootFound.entrySet())
+                if (!found.containsKey(entry.getKey()))
+                    found.put(entry.getKey(), entry.getValue());
+        }
+        load(found);
+    }
+
+    /**
+     * Load a single template.
+     *
+     * @param   name    the logical name
+     * @param   url     the URL of the template
+     */
+    public void load(String name, URL url) {
+        load(Collections.singletonMap(name, url));
+    }
+
+    /**
+     * Get the names of the templates successfully loaded.
+     *
+     * @return  the names, in alphabetical order
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(templates.keySet()));
+    }
+
+    public boolean contains(String name) {
+        return templates.containsKey(name);
+    }
+
+    public URL getURL(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * Get the templates that failed to load, with the exception describing the failure.
+     *
+     * @return  a map of name to exception, in alphabetical order of name
+     */
+    public Map<String, Exception> getFailures() {
+        return Collections.unmodifiableMap(new TreeMap<>(failures));
+    }
+
+    /**
+     * Get a new {@link TemplateProcessor} for the named template.  The template will already have been parsed and
+     * compiled, so the cost of creating the processor is small.
+     *
+     * @param   name    the logical name
+     * @return  the processor
+     * @throws  TemplateException if the name is not that of a template successfully loaded
+     */
+    public TemplateProcessor getProcessor(String name) throws TemplateException {
+        URL url = templates.get(name);
+        if (url == null)
+            throw new TemplateException("Template not found - " + name);
+        TemplateProcessor processor = new TemplateProcessor(url);
+        for (Map.Entry<String, Object> entry : namespaces.entrySet())
+            processor.addNamespace(entry.getKey(), entry.getValue());
+        return processor;
+    }
+
+    /**
+     * Warm up the templates by processing each of them the specified number of times, with the specified variables,
+     * discarding the output.  The templates are processed in parallel.
+     *
+     * @param   iterations  the number of times to process each template
+     * @param   variables   the variables to be supplied to each template
+     * @param   <V>         the type of the variable values
+     * @return  the templates that failed during the warm-up, with the exception describing the failure
+     */
+    public <V> Map<String, Exception> warmUp(int iterations, final Map<String, V> variables) {
+        final Map<String, Exception> warmUpFailures = new ConcurrentHashMap<>();
+        List<FutureTask<Object>> tasks = new ArrayList<>();
+        for (final String name : getNames()) {
+            final int n = iterations;
+            FutureTask<Object> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            TemplateProcessor processor = getProcessor(name);
+                            processor.setVariables(variables);
+                            processor.process(discardOutputStream);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        warmUpFailures.put(name, e);
+                    }
+                }
+            }, null);
+            getTaskExecutor().execute(task);
+            tasks.add(task);
+        }
+        awaitAll(tasks);
+        return Collections.unmodifiableMap(new TreeMap<>(warmUpFailures));
+    }
+
+    private void load(Map<String, URL> found) {
+        List<FutureTask<Object>> tasks = new ArrayList<>();
+        for (Map.Entry<String, URL> entry : found.entrySet()) {
+            final String name = entry.getKey();
+            final URL url = entry.getValue();
+            FutureTask<Object> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    loadTemplate(name, url);
+                }
+            }, null);
+            getTaskExecutor().execute(task);
+            tasks.add(task);
+        }
+        awaitAll(tasks);
+    }
+
+    private void loadTemplate(String name, URL url) {
+        try {
+            Document document = TemplateProcessor.getDocument(url);
+            CompiledTemplate compiled = CompiledTemplate.get(document, TemplateProcessor.defaultNamespace, url,
+                    Collections.<String, Object>emptyMap(), false);
+            List<String> unlinkedIncludes = compiled.getUnlinkedIncludes();
+            if (!unlinkedIncludes.isEmpty())
+                throw new TemplateException("Include could not be loaded - " + unlinkedIncludes.get(0));
+            templates.put(name, url);
+            failures.remove(name);
+        }
+        catch (RuntimeException e) {
+            templates.remove(name);
+            failures.put(name, e);
+        }
+    }
+
+    private Executor getTaskExecutor() {
+        return executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    private static void awaitAll(List<FutureTask<Object>> tasks) {
+        try {
+            for (FutureTask<Object> task : tasks)
+                task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TemplateException("Interrupted loading templates");
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected exception loading templates", e.getCause());
+        }
+        finally {
+            for (FutureTask<Object> task : tasks)
+                task.cancel(true);
+        }
+    }
+
+    private static void findFiles(File directory, String prefix, Map<String, URL> found) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Can't read directory - " + directory);
+        for (File file : files) {
+            String fileName = file.getName();
+            if (file.isDirectory())
+                findFiles(file, prefix + fileName + '/', found);
+            else if (fileName.endsWith(templateExtension)) {
+                String name = prefix + fileName.substring(0, fileName.length() - templateExtension.length());
+                found.put(name, fileURL(file));
+            }
+        }
+    }
+
+    private static void findJarEntries(JarURLConnection connection, URL root, Map<String, URL> found)
+            throws IOException {
+        JarFile jarFile = connection.getJarFile();
+        String entryPrefix = connection.getEntryName();
+        if (entryPrefix == null)
+            entryPrefix = "";
+        else if (!entryPrefix.endsWith("/"))
+            entryPrefix += '/';
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            String entryName = entry.getName();
+            if (!entry.isDirectory() && entryName.startsWith(entryPrefix) && entryName.endsWith(templateExtension)) {
+                String relative = entryName.substring(entryPrefix.length());
+                found.put(relative.substring(0, relative.length() - templateExtension.length()),
+                        new URL(root, relative));
+            }
+        }
+    }
+
+    private static URL fileURL(File file) {
+        try {
+            return new URL("file://" + file.getAbsoluteFile());
+        }
+        catch (MalformedURLException e) {
+            throw new RuntimeException("Unexpected MalformedURLException", e);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * @(#) TestBinaryTemplate.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import static org.junit.Assert.*;
+
+import net.pwall.xml.BinaryTemplate;
+import net.pwall.xml.TemplateException;
+import net.pwall.xml.TemplateProcessor;
+import net.pwall.xml.XML;
+
+public class TestBinaryTemplate {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] source = Files.readAllBytes(Paths.get("src/test/resources/testtemp.xml"));
+        long checksum = BinaryTemplate.checksum(source);
+        Document original = XML.getDocumentBuilderNS().parse(new ByteArrayInputStream(source));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryTemplate.write(original, source.length, 0, checksum, baos);
+        Document copy = BinaryTemplate.read(ByteBuffer.wrap(baos.toByteArray()), checksum);
+        assertNotNull(copy);
+        assertEquals("xt:template", copy.getDocumentElement().getTagName());
+        assertEquals(process(original), process(copy));
+    }
+
+    @Test
+    public void testStaleChecksum() throws Exception {
+        byte[] source = Files.readAllBytes(Paths.get("src/test/resources/testtemp.xml"));
+        Document original = XML.getDocumentBuilderNS().parse(new ByteArrayInputStream(source));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryTemplate.write(original, source.length, 0, BinaryTemplate.checksum(source), baos);
+        source[source.length - 2] = ' ';
+        assertNull(BinaryTemplate.read(ByteBuffer.wrap(baos.toByteArray()), BinaryTemplate.checksum(source)));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File dir = Files.createTempDirectory("xtb").toFile();
+        File source = new File(dir, "test.xml");
+        File binary = new File(dir, "test.xml" + BinaryTemplate.fileExtension);
+        try {
+            byte[] sourceBytes = Files.readAllBytes(Paths.get("src/test/resources/testtemp.xml"));
+            Files.write(source.toPath(), sourceBytes);
+            long modified = source.lastModified();
+            // binary form of a different document, stamped with the size and time of the source
+            Document other = XML.getDocumentBuilderNS().parse(new ByteArrayInputStream("<other/>".getBytes()));
+            try (OutputStream os = new FileOutputStream(binary)) {
+                BinaryTemplate.write(other, sourceBytes.length, modified, 0, os);
+            }
+            Document document = BinaryTemplate.load(source, binary);
+            assertEquals("other", document.getDocumentElement().getTagName()); // source not read
+            assertEquals(source.toURI().toString(), document.getDocumentURI());
+            assertTrue(source.setLastModified(modified - 10000));
+            document = BinaryTemplate.load(source, binary); // time differs, checksum differs
+            assertEquals("xt:template", document.getDocumentElement().getTagName());
+            assertEquals(source.toURI().toString(), document.getDocumentURI());
+            BinaryTemplate.compile(source, binary);
+            assertTrue(source.setLastModified(modified));
+            document = BinaryTemplate.load(source, binary); // time differs, checksum matches
+            assertEquals("xt:template", document.getDocumentElement().getTagName());
+        }
+        finally {
+            binary.delete();
+            source.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLocations() throws Exception {
+        File dir = Files.createTempDirectory("xtb").toFile();
+        File source = new File(dir, "test.xml");
+        File binary = new File(dir, "test.xml" + BinaryTemplate.fileExtension);
+        try {
+            Files.write(source.toPath(), ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">\n" +
+                    "<a>\n" +
+                    "  <b><xt:error text=\"bad\"/></b>\n" +
+                    "</a>\n" +
+                    "</xt:template>\n").getBytes(StandardCharsets.UTF_8));
+            BinaryTemplate.compile(source, binary);
+            Document document = BinaryTemplate.load(source, binary);
+            try {
+                process(document);
+                fail("Should have thrown exception");
+            }
+            catch (TemplateException e) {
+                assertEquals(3, e.getLine());
+                assertEquals(28, e.getColumn());
+            }
+        }
+        finally {
+            binary.delete();
+            source.delete();
+            dir.delete();
+        }
+    }
+
+    private static String process(Document document) {
+        TemplateProcessor tp = new TemplateProcessor(document, null);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tp.process(baos);
+        return new String(baos.toByteArray());
+    }
+
+}
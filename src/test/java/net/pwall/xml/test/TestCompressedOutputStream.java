@@ -0,0 +1,179 @@
+/*
+ * @(#) TestCompressedOutputStream.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import net.pwall.xml.CompressedOutputStream;
+import net.pwall.xml.TemplateProcessor;
+import net.pwall.xml.XML;
+
+public class TestCompressedOutputStream {
+
+    @Test
+    public void testGzip() throws Exception {
+        byte[] compressed = process(CompressedOutputStream.Format.GZIP);
+        assertEquals(uncompressed(), read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        byte[] compressed = process(CompressedOutputStream.Format.DEFLATE);
+        assertEquals(uncompressed(), read(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testRawDeflate() throws Exception {
+        byte[] compressed = process(CompressedOutputStream.Format.RAW_DEFLATE);
+        assertEquals(uncompressed(), read(new InflaterInputStream(new ByteArrayInputStream(compressed),
+                new Inflater(true))));
+    }
+
+    @Test
+    public void testContentEncoding() {
+        assertEquals("gzip", CompressedOutputStream.Format.GZIP.getContentEncoding());
+        assertEquals("deflate", CompressedOutputStream.Format.DEFLATE.getContentEncoding());
+        assertNull(CompressedOutputStream.Format.RAW_DEFLATE.getContentEncoding());
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        CompressedOutputStream abandoned = new CompressedOutputStream(new ByteArrayOutputStream(),
+                CompressedOutputStream.Format.GZIP);
+        abandoned.write("partial".getBytes("UTF-8"));
+        abandoned.release();
+        abandoned.release();
+        try {
+            abandoned.write("more".getBytes("UTF-8"));
+            fail("Write after release");
+        }
+        catch (IOException expected) {
+            // expected
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CompressedOutputStream cos = new CompressedOutputStream(baos, CompressedOutputStream.Format.GZIP);
+        cos.write("complete".getBytes("UTF-8"));
+        cos.finish();
+        cos.release();
+        assertEquals("complete", read(new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()))));
+    }
+
+    @Test
+    public void testStaticChunks() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+            sb.append("<li>Static item number ").append(i).append("</li>");
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" whitespace=\"none\"><a>" +
+                "<xt:for name=\"n\" from=\"0\" to=\"3\"><p>${n}</p><ul class=\"static\">" + sb +
+                "</ul></xt:for></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        templateProcessor.process(baos);
+        String expected = new String(baos.toByteArray(), "UTF-8");
+        String staticRun = expected.substring(expected.indexOf("<ul"), expected.indexOf("</ul>") + 5);
+        byte[] chunk = compressChunk(staticRun.getBytes("UTF-8"));
+        for (CompressedOutputStream.Format format : CompressedOutputStream.Format.values()) {
+            for (int i = 0; i < 2; i++) { // second time uses the chunk created the first time
+                templateProcessor.setCompression(format);
+                baos = new ByteArrayOutputStream();
+                templateProcessor.process(baos);
+                byte[] compressed = baos.toByteArray();
+                InputStream is = new ByteArrayInputStream(compressed);
+                is = format == CompressedOutputStream.Format.GZIP ? new GZIPInputStream(is) :
+                        format == CompressedOutputStream.Format.DEFLATE ? new InflaterInputStream(is) :
+                        new InflaterInputStream(is, new Inflater(true));
+                assertEquals(expected, read(is));
+                assertTrue(indexOf(compressed, chunk) >= 0);
+            }
+        }
+    }
+
+    private static byte[] compressChunk(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        byte[] buffer = new byte[data.length + 64];
+        int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    private static int indexOf(byte[] array, byte[] target) {
+        outer: for (int i = 0, n = array.length - target.length; i <= n; i++) {
+            for (int j = 0; j < target.length; j++)
+                if (array[i + j] != target[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private static String uncompressed() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        TemplateProcessor.from("src/test/resources/testtemp.xml").process(baos);
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+    private static byte[] process(CompressedOutputStream.Format format) throws Exception {
+        byte[] result = null;
+        for (int i = 0; i < 2; i++) { // second time uses pooled Deflater
+            TemplateProcessor tp = TemplateProcessor.from("src/test/resources/testtemp.xml");
+            tp.setCompression(format);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            tp.process(baos);
+            if (result != null)
+                assertArrayEquals(result, baos.toByteArray());
+            result = baos.toByteArray();
+        }
+        return result;
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = is.read(buffer)) > 0)
+            baos.write(buffer, 0, n);
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+}
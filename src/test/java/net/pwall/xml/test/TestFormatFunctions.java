@@ -0,0 +1,94 @@
+/*
+ * @(#) TestFormatFunctions.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import static org.junit.Assert.*;
+
+import net.pwall.xml.FormatFunctions;
+import net.pwall.xml.TemplateProcessor;
+import net.pwall.xml.XML;
+
+public class TestFormatFunctions {
+
+    private final FormatFunctions functions = new FormatFunctions(Locale.US, ZoneOffset.UTC);
+
+    @Test
+    public void testFormatNumber() {
+        assertEquals("1,234.50", functions.formatNumber(1234.5, "#,##0.00"));
+        assertEquals("1,234.50", functions.formatNumber("1234.5", "#,##0.00"));
+        assertEquals("1.234,50", functions.formatNumber(1234.5, "#,##0.00", "de-DE"));
+        assertEquals("", functions.formatNumber(null, "#,##0.00"));
+        assertEquals("$1,234.50", functions.formatCurrency(1234.5, "USD"));
+        assertEquals("25%", functions.formatPercent(0.25));
+        assertEquals("12.5%", functions.formatPercent(0.125, 1));
+    }
+
+    @Test
+    public void testFormatDate() {
+        assertEquals("2026-03-04", functions.formatDate(LocalDate.of(2026, 3, 4), "yyyy-MM-dd"));
+        assertEquals("1970-01-02 00:00", functions.formatDate(86400000L, "yyyy-MM-dd HH:mm"));
+        assertEquals("4 March 2026", functions.formatDate(LocalDate.of(2026, 3, 4), "d MMMM yyyy"));
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("abc-1.2_3~", functions.escapeURL("abc-1.2_3~"));
+        assertEquals("a%20b%26c%3D%C3%A9", functions.escapeURL("a b&c=\u00E9"));
+        assertEquals("plain", functions.escapeJS("plain"));
+        assertEquals("it\\'s \\\"x\\\"\\n\\u003C/script\\u003E", functions.escapeJS("it's \"x\"\n</script>"));
+    }
+
+    @Test
+    public void testJoin() {
+        assertEquals("a, b, c", functions.join(Arrays.asList("a", "b", "c"), ", "));
+        assertEquals("1/2", functions.join(new int[] { 1, 2 }, "/"));
+        assertEquals("", functions.join(null, ","));
+    }
+
+    @Test
+    public void testTemplate() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" " +
+                "xmlns:xf=\"http://pwall.net/xml/xt/functions\"><a>${xf:formatNumber(x, '0.0')}</a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.addNamespace(TemplateProcessor.formatFunctionsURL, functions);
+        templateProcessor.setVariable("x", 2.25);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        templateProcessor.process(baos);
+        assertEquals("<a>2.2</a>", new String(baos.toByteArray()));
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * @(#) TestPropertyAccessor.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import static org.junit.Assert.*;
+
+import net.pwall.xml.PropertyAccessor;
+import net.pwall.xml.TemplateProcessor;
+import net.pwall.xml.XML;
+
+public class TestPropertyAccessor {
+
+    @Test
+    public void testBeanProperties() {
+        Map<String, Object> customer = new PropertyAccessor.BeanMap(new Customer("Fred", true));
+        assertEquals("Fred", customer.get("name"));
+        assertEquals(Boolean.TRUE, customer.get("active"));
+        assertNull(customer.get("missing"));
+        assertTrue(customer.containsKey("name"));
+        assertFalse(customer.containsKey("class"));
+    }
+
+    @Test
+    public void testBeanMap() {
+        Order order = new Order(new Customer("Mary", false));
+        Object wrapped = PropertyAccessor.wrap(order);
+        assertTrue(wrapped instanceof PropertyAccessor.BeanMap);
+        Object customer = ((Map<?, ?>)wrapped).get("customer");
+        assertTrue(customer instanceof PropertyAccessor.BeanMap);
+        assertEquals("Mary", ((Map<?, ?>)customer).get("name"));
+        assertEquals("order", wrapped.toString());
+        assertSame("abc", PropertyAccessor.wrap("abc"));
+        wrapped = PropertyAccessor.wrap(order, 1);
+        assertTrue(wrapped instanceof PropertyAccessor.BeanMap);
+        assertTrue(((Map<?, ?>)wrapped).get("customer") instanceof Customer);
+        assertSame(order, PropertyAccessor.wrap(order, 0));
+    }
+
+    @Test
+    public void testFunctionArguments() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" xmlns:f=\"http://example.com/f\">" +
+                "${o.customer.name}:${f:describe(o.customer)}:${f:describe(c)}:${c.name}</xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setCachedPropertyAccess(true);
+        templateProcessor.addNamespace("http://example.com/f", new CustomerFunctions());
+        Customer customer = new Customer("Mary", false);
+        templateProcessor.setVariable("o", new Order(customer));
+        templateProcessor.setVariable("c", customer);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        templateProcessor.process(baos);
+        assertEquals("Mary:customer Mary:customer Mary:Mary", baos.toString("UTF-8"));
+        baos.reset();
+        templateProcessor.setVariable("c", new Customer("Fred", true));
+        templateProcessor.process(baos);
+        assertEquals("Mary:customer Mary:customer Fred:Fred", baos.toString("UTF-8"));
+    }
+
+    public static class CustomerFunctions {
+
+        public String describe(Customer customer) {
+            return "customer " + customer.getName();
+        }
+
+    }
+
+    public static class Customer {
+
+        private final String name;
+        private final boolean active;
+
+        public Customer(String name, boolean active) {
+            this.name = name;
+            this.active = active;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+    }
+
+    public static class Order {
+
+        private final Customer customer;
+
+        public Order(Customer customer) {
+            this.customer = customer;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+
+        @Override
+        public String toString() {
+            return "order";
+        }
+
+    }
+
+}
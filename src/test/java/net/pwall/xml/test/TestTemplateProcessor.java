@@ -2,7 +2,7 @@
  * @(#) TestTemplateProcessor.java
  *
  * xtj XML Templating for Java
- * Copyright (c) 2015, 2016, 2019 Peter Wall
+ * Copyright (c) 2015, 2016, 2019, 2026 Peter Wall
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -25,15 +25,47 @@
 
 package net.pwall.xml.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 
 import org.junit.Test;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
 import static org.junit.Assert.*;
 
+import net.pwall.xml.CancellationToken;
+import net.pwall.xml.CompressedOutputStream;
+import net.pwall.xml.LintFinding;
+import net.pwall.xml.RenderLimits;
+import net.pwall.xml.ShardOptions;
+import net.pwall.xml.ShardResult;
+import net.pwall.xml.TemplateException;
 import net.pwall.xml.TemplateProcessor;
+import net.pwall.xml.XML;
 
 public class TestTemplateProcessor {
 
@@ -78,4 +110,676 @@ public class TestTemplateProcessor {
         assertNull(templateProcessor.getWhitespace());
     }
 
+    @Test
+    public void testStaticVariables() throws Exception {
+        String template = "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">" +
+                "<a><xt:if test=\"debug\">debug</xt:if><b xt:if=\"!debug\">${mode}</b>" +
+                "<xt:switch><xt:case test=\"mode == 'x'\">x</xt:case><xt:case test=\"mode == 'y'\">y</xt:case>" +
+                "</xt:switch></a></xt:template>";
+        Document dom = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(template)));
+        TemplateProcessor staticProcessor = new TemplateProcessor(dom, null);
+        staticProcessor.setStaticVariable("debug", false);
+        staticProcessor.setStaticVariable("mode", "y");
+        TemplateProcessor dynamicProcessor = new TemplateProcessor(dom, null);
+        dynamicProcessor.setVariable("debug", false);
+        dynamicProcessor.setVariable("mode", "y");
+        String output = process(staticProcessor);
+        assertTrue(output.endsWith("<a><b>y</b>y</a>"));
+        assertEquals(process(dynamicProcessor), output);
+    }
+
+    @Test
+    public void testStaticVariableReboundInInclude() throws Exception {
+        Path directory = Files.createTempDirectory("xtj");
+        Path parent = directory.resolve("parent.xml");
+        Path child = directory.resolve("child.xml");
+        Path setter = directory.resolve("setter.xml");
+        try {
+            Files.write(parent, ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:set name=\"debug\" " +
+                    "value=\"true\"/><xt:include href=\"child.xml\"/></xt:template>").getBytes(StandardCharsets.UTF_8));
+            Files.write(child, ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a xt:if=\"debug\">debug</a>" +
+                    "</xt:template>").getBytes(StandardCharsets.UTF_8));
+            Files.write(setter, ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:for name=\"debug\" " +
+                    "collection=\"list\"/></xt:template>").getBytes(StandardCharsets.UTF_8));
+            TemplateProcessor templateProcessor = TemplateProcessor.from(parent.toFile());
+            templateProcessor.setStaticVariable("debug", false);
+            assertTrue(process(templateProcessor).endsWith("<a>debug</a>"));
+            Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                    "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:include href=\"${name}\"/>" +
+                    "</xt:template>")));
+            templateProcessor = new TemplateProcessor(document, directory.toUri().toURL());
+            templateProcessor.setStaticVariable("debug", false);
+            templateProcessor.setVariable("name", "setter.xml");
+            templateProcessor.setVariable("list", Collections.emptyList());
+            try {
+                process(templateProcessor);
+                fail("Expected TemplateException");
+            }
+            catch (TemplateException te) {
+                assertEquals("Included template re-binds static variable - debug", te.getMessage());
+            }
+        }
+        finally {
+            Files.delete(parent);
+            Files.delete(child);
+            Files.delete(setter);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testSpecializationKeys() throws Exception {
+        String template = "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">" +
+                "<a><xt:switch><xt:case test=\"locale == 'fr'\">Bonjour</xt:case><xt:case>Hello</xt:case>" +
+                "</xt:switch> ${name}</a></xt:template>";
+        Document dom = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(template)));
+        for (int i = 0; i < 3; i++) {
+            for (String locale : new String[] { "fr", "en" }) {
+                long compileCount = TemplateProcessor.getCompileCount();
+                TemplateProcessor templateProcessor = specializedProcessor(dom, locale, "Fred" + i);
+                String expected = ("fr".equals(locale) ? "<a>Bonjour Fred" : "<a>Hello Fred") + i + "</a>";
+                assertTrue(process(templateProcessor).endsWith(expected));
+                // after the first pass, each specialized form is re-used from the cache
+                assertEquals(i == 0 ? compileCount + 1 : compileCount, TemplateProcessor.getCompileCount());
+                assertEquals(i == 0 && "fr".equals(locale) ? 1 : 2, templateProcessor.getSpecializationCount());
+            }
+        }
+        int maxSpecializations = TemplateProcessor.getMaxSpecializations();
+        TemplateProcessor.setMaxSpecializations(2);
+        try {
+            dom = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(template)));
+            long compileCount = TemplateProcessor.getCompileCount();
+            process(specializedProcessor(dom, "de", "Hans"));
+            process(specializedProcessor(dom, "en", "Hans"));
+            process(specializedProcessor(dom, "de", "Hans"));
+            assertEquals(compileCount + 2, TemplateProcessor.getCompileCount());
+            // "en" is now the least recently used, so it is evicted
+            TemplateProcessor templateProcessor = specializedProcessor(dom, "fr", "Jean");
+            assertTrue(process(templateProcessor).endsWith("<a>Bonjour Jean</a>"));
+            assertEquals(compileCount + 3, TemplateProcessor.getCompileCount());
+            assertEquals(2, templateProcessor.getSpecializationCount());
+            process(specializedProcessor(dom, "de", "Hans"));
+            assertEquals(compileCount + 3, TemplateProcessor.getCompileCount());
+            process(specializedProcessor(dom, "en", "Hans"));
+            assertEquals(compileCount + 4, TemplateProcessor.getCompileCount());
+            assertEquals(2, templateProcessor.getSpecializationCount());
+        }
+        finally {
+            TemplateProcessor.setMaxSpecializations(maxSpecializations);
+        }
+    }
+
+    @Test
+    public void testCompiledFormsCollected() throws Exception {
+        WeakReference<Document> reference = processUnreferenced();
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    private static WeakReference<Document> processUnreferenced() throws Exception {
+        Document dom = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" whitespace=\"minify\"><a> <b>${x}</b> " +
+                "<pre> ${x} </pre> <xt:for name=\"i\" from=\"0\" to=\"3\"><c>${x}</c></xt:for></a>" +
+                "</xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(dom, null);
+        templateProcessor.setVariable("x", "y");
+        assertTrue(process(templateProcessor).endsWith("<a> <b>y</b> <pre> y </pre> <c>y</c><c>y</c><c>y</c></a>"));
+        assertEquals(2, templateProcessor.getSpecializationCount()); // minified and unminified (for <pre>)
+        return new WeakReference<>(dom);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        String blocks = "<xt:macro name=\"m\"><li>${n}</li></xt:macro>" +
+                "<h>${title}</h> text <xt:for name=\"n\" from=\"0\" to=\"50\"><xt:call name=\"m\"/></xt:for>" +
+                "<g><xt:set name=\"x\" value=\"'local'\"/><f>${x}</f></g>";
+        String template = "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a>%s</a></xt:template>";
+        Document sequential = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                String.format(template, blocks))));
+        Document parallel = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                String.format(template, "<xt:parallel>" + blocks + "</xt:parallel>"))));
+        TemplateProcessor sequentialProcessor = new TemplateProcessor(sequential, null);
+        sequentialProcessor.setVariable("title", "T");
+        TemplateProcessor parallelProcessor = new TemplateProcessor(parallel, null);
+        parallelProcessor.setVariable("title", "T");
+        String expected = process(sequentialProcessor);
+        assertEquals(expected, process(parallelProcessor));
+        final TemplateProcessor pooledProcessor = parallelProcessor;
+        ForkJoinPool pool = new ForkJoinPool(1); // caller on the only worker of a pool
+        try {
+            assertEquals(expected, pool.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return process(pooledProcessor);
+                }
+            }).get(30, TimeUnit.SECONDS));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRenderLimits() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><xt:for name=\"n\" from=\"0\" " +
+                "to=\"1000000\"><b>${n}</b></xt:for></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        RenderLimits renderLimits = new RenderLimits();
+        renderLimits.setMaxIterations(100);
+        templateProcessor.setRenderLimits(renderLimits);
+        try {
+            process(templateProcessor);
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertTrue(e.getMessage().contains("Iteration limit exceeded"));
+        }
+        renderLimits = new RenderLimits();
+        renderLimits.setMaxOutputBytes(1000);
+        templateProcessor.setRenderLimits(renderLimits);
+        try {
+            process(templateProcessor);
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertTrue(e.getMessage().contains("Output size limit exceeded"));
+        }
+        Document repetitive = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><xt:for from=\"0\" to=\"2000\">" +
+                "<b>x</b></xt:for></a></xt:template>")));
+        TemplateProcessor compressedProcessor = new TemplateProcessor(repetitive, null);
+        compressedProcessor.setCompression(CompressedOutputStream.Format.GZIP);
+        compressedProcessor.setRenderLimits(renderLimits);
+        try {
+            process(compressedProcessor); // compressed output is well under the limit
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertTrue(e.getMessage().contains("Output size limit exceeded"));
+        }
+        Document parallel = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><xt:parallel>" +
+                "<b><xt:for from=\"0\" to=\"60\">x</xt:for></b><c><xt:for from=\"0\" to=\"60\">y</xt:for></c>" +
+                "</xt:parallel></a></xt:template>")));
+        TemplateProcessor parallelProcessor = new TemplateProcessor(parallel, null);
+        renderLimits = new RenderLimits();
+        renderLimits.setMaxIterations(100);
+        parallelProcessor.setRenderLimits(renderLimits);
+        try {
+            process(parallelProcessor); // each block is under the limit, but not the two together
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertTrue(e.getMessage().contains("Iteration limit exceeded"));
+        }
+        renderLimits.setMaxIterations(120);
+        process(parallelProcessor);
+        CancellationToken cancellationToken = new CancellationToken();
+        cancellationToken.cancel();
+        templateProcessor.setRenderLimits(null);
+        templateProcessor.setCancellationToken(cancellationToken);
+        try {
+            process(templateProcessor);
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertTrue(e.getMessage().contains("Processing cancelled"));
+        }
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:macro name=\"m\"><i>${p}</i></xt:macro>" +
+                "<a><xt:region name=\"ra\"><b>${x}</b></xt:region>" +
+                "<xt:region name=\"rb\"><xt:call name=\"m\"><xt:param name=\"p\" value=\"y\"/></xt:call>" +
+                "</xt:region><xt:for name=\"n\" from=\"1\" to=\"3\"><xt:region name=\"rc\">" +
+                "<c xt:if=\"${n == 2}\">${x}</c></xt:region></xt:for></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setIncremental(true);
+        templateProcessor.setVariable("x", "X1");
+        templateProcessor.setVariable("y", "Y1");
+        String expected = "<a><b>X1</b><i>Y1</i><c>X1</c></a>";
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Arrays.asList("ra", "rb", "rc", "rc[2]"), templateProcessor.getChangedRegions());
+        templateProcessor.setVariable("x", "X1");
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Collections.emptyList(), templateProcessor.getChangedRegions());
+        templateProcessor.setVariable("y", "Y2");
+        expected = "<a><b>X1</b><i>Y2</i><c>X1</c></a>";
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Collections.singletonList("rb"), templateProcessor.getChangedRegions());
+        templateProcessor.setVariable("x", "X2");
+        expected = "<a><b>X2</b><i>Y2</i><c>X2</c></a>";
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Arrays.asList("ra", "rc[2]"), templateProcessor.getChangedRegions());
+    }
+
+    @Test
+    public void testRegionsWithFunctions() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" xmlns:c=\"http://example.com/c\"><a>" +
+                "<xt:region name=\"ra\"><b>${x}</b></xt:region><xt:region name=\"rb\"><xt:parallel><i>" +
+                "<xt:if test=\"${c:next() > 0}\">${x}</xt:if></i></xt:parallel></xt:region></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setIncremental(true);
+        templateProcessor.setVariable("x", "X1");
+        CountingFunctions functions = new CountingFunctions();
+        templateProcessor.addNamespace("http://example.com/c", functions);
+        String expected = "<a><b>X1</b><i>X1</i></a>";
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Arrays.asList("ra", "rb"), templateProcessor.getChangedRegions());
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Collections.singletonList("rb"), templateProcessor.getChangedRegions());
+        assertEquals(2, functions.count);
+        templateProcessor.addPureFunction("http://example.com/c", "*");
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Collections.singletonList("rb"), templateProcessor.getChangedRegions());
+        assertTrue(process(templateProcessor).endsWith(expected));
+        assertEquals(Collections.emptyList(), templateProcessor.getChangedRegions());
+        assertEquals(3, functions.count);
+    }
+
+    @Test
+    public void testTemplateException() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><b/><b><xt:error text=\"bad\"/></b></a>" +
+                "</xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setStackTraceEnabled(false);
+        try {
+            process(templateProcessor);
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertEquals("bad", e.getMessage());
+            assertEquals(0, e.getStackTrace().length);
+            String xpath = "/ xt:template / a / b[2] / xt:error ";
+            assertEquals(xpath, e.getXPath());
+            assertEquals(xpath, e.getXPath());
+            assertEquals(0, e.getLine()); // not loaded by the processor, so location not recorded
+        }
+        File file = File.createTempFile("xtj", ".xml");
+        try {
+            Files.write(file.toPath(), ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">\n" +
+                    "<a>\n" +
+                    "  <b><xt:error text=\"bad\"/></b>\n" +
+                    "</a>\n" +
+                    "</xt:template>\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                process(TemplateProcessor.from(file));
+                fail("Should have thrown exception");
+            }
+            catch (TemplateException e) {
+                assertTrue(e.getStackTrace().length > 0);
+                assertEquals(3, e.getLine());
+                assertEquals(28, e.getColumn());
+            }
+            // the location is that of the document as loaded, even if the file has since changed
+            Files.write(file.toPath(), ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">\n\n\n" +
+                    "<a><b><xt:error text=\"bad\"/></b></a>\n" +
+                    "</xt:template>\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                process(TemplateProcessor.from(file));
+                fail("Should have thrown exception");
+            }
+            catch (TemplateException e) {
+                assertEquals(3, e.getLine());
+                assertEquals(28, e.getColumn());
+            }
+        }
+        finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void testLoopInvariants() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><xt:for name=\"n\" from=\"0\" to=\"3\">" +
+                "<b c=\"${counter.count}\">${n}</b><xt:set name=\"x\" value=\"n\"/><d>${x}</d></xt:for></a>" +
+                "</xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        Counter counter = new Counter();
+        templateProcessor.setVariable("counter", counter);
+        assertTrue(process(templateProcessor).endsWith(
+                "<a><b c=\"1\">0</b><d>0</d><b c=\"1\">1</b><d>1</d><b c=\"1\">2</b><d>2</d></a>"));
+        assertEquals(1, counter.count);
+    }
+
+    @Test
+    public void testCommonExpressions() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:macro name=\"m\"><c>${counter.count}</c>" +
+                "</xt:macro><a><b>${counter.count}</b><xt:call name=\"m\"><xt:param name=\"counter\" " +
+                "value=\"other\"/></xt:call><d x=\"${counter.count}\"/></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        Counter counter = new Counter();
+        Counter other = new Counter();
+        other.count = 10;
+        templateProcessor.setVariable("counter", counter);
+        templateProcessor.setVariable("other", other);
+        assertTrue(process(templateProcessor).endsWith("<a><b>1</b><c>11</c><d x=\"1\"></d></a>"));
+        assertTrue(process(templateProcessor).endsWith("<a><b>2</b><c>12</c><d x=\"2\"></d></a>"));
+    }
+
+    @Test
+    public void testImpureFunctions() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" xmlns:c=\"http://example.com/c\"><a>" +
+                "<b>${c:next()}</b><b>${c:next()}</b><xt:for name=\"n\" from=\"0\" to=\"2\"><d>${c:next()}</d>" +
+                "</xt:for></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        CountingFunctions functions = new CountingFunctions();
+        templateProcessor.addNamespace("http://example.com/c", functions);
+        assertTrue(process(templateProcessor).endsWith("<a><b>1</b><b>2</b><d>3</d><d>4</d></a>"));
+        assertEquals(4, functions.count);
+        templateProcessor.addPureFunction("http://example.com/c", "next");
+        assertTrue(process(templateProcessor).endsWith("<a><b>5</b><b>5</b><d>5</d><d>5</d></a>"));
+        assertEquals(5, functions.count);
+    }
+
+    @Test
+    public void testDeepNesting() throws Exception {
+        Document data = XML.getDocumentBuilderNS().newDocument();
+        Element element = data.createElement("e");
+        element.appendChild(data.createTextNode("x"));
+        for (int i = 0; i < 100000; i++) {
+            Element parent = data.createElement("e");
+            parent.appendChild(element);
+            element = parent;
+        }
+        data.appendChild(element);
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><xt:copy element=\"data\" " +
+                "option=\"include\"/></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setVariable("data", new TemplateProcessor.ElementWrapper(data.getDocumentElement()));
+        String result = process(templateProcessor);
+        assertEquals(3 + 100001 * 3 + 1 + 100001 * 4 + 4, result.length());
+        assertTrue(result.startsWith("<a><e><e><e>"));
+        assertTrue(result.contains("<e><e>x</e></e>"));
+        assertTrue(result.endsWith("</e></e></a>"));
+        document = XML.getDocumentBuilderNS().newDocument();
+        element = document.createElementNS(null, "e");
+        element.setAttributeNS(null, "a", "${x}");
+        element.appendChild(document.createTextNode("${x}"));
+        for (int i = 0; i < 100000; i++) {
+            Element parent = document.createElementNS(null, "e");
+            parent.appendChild(element);
+            element = parent;
+        }
+        document.appendChild(document.createElementNS("http://pwall.net/xml/xt/1.0", "xt:template"));
+        document.getDocumentElement().appendChild(element);
+        templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setVariable("x", "y");
+        result = process(templateProcessor); // nested output elements do not use the Java stack
+        assertEquals(100001 * 3 + 6 + 1 + 100001 * 4, result.length());
+        assertTrue(result.startsWith("<e><e><e>"));
+        assertTrue(result.contains("<e><e a=\"y\">y</e></e>"));
+        TemplateProcessor.ElementWrapper wrapper = TemplateProcessor.ElementWrapper.prebuilt(data.getDocumentElement());
+        assertEquals("x", wrapper.getText());
+        assertEquals("x", wrapper.getFirst().get("e").getText());
+        assertEquals("x", new TemplateProcessor.ElementWrapper(data.getDocumentElement()).getText());
+        document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:macro name=\"m\"><b>" +
+                "<xt:call name=\"m\"/></b></xt:macro><a><xt:call name=\"m\"/></a></xt:template>")));
+        templateProcessor = new TemplateProcessor(document, null);
+        try {
+            process(templateProcessor); // default call depth limit applies
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertEquals("Call depth limit exceeded", e.getMessage());
+        }
+        document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:macro name=\"m\"><xt:if test=\"${n > 0}\">" +
+                "<b><xt:call name=\"m\"><xt:param name=\"n\" value=\"${n - 1}\"/></xt:call></b></xt:if></xt:macro>" +
+                "<a><xt:call name=\"m\"><xt:param name=\"n\" value=\"1000\"/></xt:call></a></xt:template>")));
+        templateProcessor = new TemplateProcessor(document, null);
+        RenderLimits renderLimits = new RenderLimits();
+        renderLimits.setMaxCallDepth(1001);
+        templateProcessor.setRenderLimits(renderLimits);
+        templateProcessor.setStackSize(16 * 1024 * 1024);
+        result = process(templateProcessor);
+        assertEquals(1000, result.split("<b").length - 1); // 1000 levels of nesting
+        assertTrue(result.endsWith("</b></b></a>"));
+    }
+
+    @Test
+    public void testInterruptRenderOnThread() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><a><xt:for name=\"n\" from=\"0\" " +
+                "to=\"1000000000\"><b>${n}</b></xt:for></a></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setStackSize(1024 * 1024);
+        final Thread caller = Thread.currentThread();
+        Thread interrupter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ignore) {
+                    return;
+                }
+                caller.interrupt();
+            }
+        });
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        interrupter.start();
+        try {
+            templateProcessor.process(baos);
+            fail("Should have thrown exception");
+        }
+        catch (TemplateException e) {
+            assertEquals("Processing interrupted", e.getMessage());
+            assertTrue(Thread.interrupted());
+        }
+        finally {
+            interrupter.join();
+        }
+        int size = baos.size(); // render has stopped before process() returned
+        Thread.sleep(100);
+        assertEquals(size, baos.size());
+    }
+
+    @Test
+    public void testMinify() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" whitespace=\"minify\">\n<div>\n  <p>\n" +
+                "  Hello,   ${x}   <b>a  ${'b  c'}</b>\n  </p>\n  <!-- comment -->\n  <pre>  1\n  2</pre>\n" +
+                "</div>\n</xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setVariable("x", "X  Y");
+        assertEquals("<div><p> Hello, X  Y <b>a b  c</b> </p><pre>  1\n  2</pre></div>", process(templateProcessor));
+        document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" whitespace=\"minify\">" +
+                "<xt:macro name=\"code\">if (a)\n    b();</xt:macro><div>\n  <p><xt:call name=\"code\"/></p>\n" +
+                "  <pre><xt:call name=\"code\"/></pre>\n  <pre><span xml:space=\"default\"><xt:call name=\"code\"/>" +
+                "</span></pre>\n</div>\n</xt:template>")));
+        templateProcessor = new TemplateProcessor(document, null);
+        assertEquals("<div><p>if (a) b();</p><pre>if (a)\n    b();</pre>" +
+                "<pre><span xml:space=\"default\">if (a) b();</span></pre></div>", process(templateProcessor));
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><list><xt:for name=\"r\" " +
+                "collection=\"records\"><r>${r}</r></xt:for></list></xt:template>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setVariable("records", Arrays.asList("a", "b", "c", "d", "e", "f", "g"));
+        Path directory = Files.createTempDirectory("xtj");
+        ShardOptions options = new ShardOptions();
+        options.setLoopName("r");
+        options.setShards(3);
+        options.setFilePattern(directory.resolve("shard-%d.xml").toString());
+        try {
+            List<ShardResult> results = templateProcessor.processSharded(options);
+            assertEquals(3, results.size());
+            assertEquals(2, results.get(0).getRecords());
+            assertEquals(2, results.get(1).getRecords());
+            assertEquals(3, results.get(2).getRecords());
+            assertEquals("<list><r>a</r><r>b</r></list>", readFile(results.get(0).getFile()));
+            assertEquals("<list><r>e</r><r>f</r><r>g</r></list>", readFile(results.get(2).getFile()));
+            options.setRepeatFrame(false);
+            results = templateProcessor.processSharded(options);
+            StringBuilder sb = new StringBuilder();
+            for (ShardResult result : results)
+                sb.append(readFile(result.getFile()));
+            assertEquals(process(templateProcessor), sb.toString());
+            assertEquals("<r>c</r><r>d</r>", readFile(results.get(1).getFile()));
+            for (ShardResult result : results)
+                Files.delete(result.getFile().toPath());
+            templateProcessor.setVariable("records", new LinkedHashSet<>(Arrays.asList("a", "b", "c", "d", "e")));
+            assertEquals(process(templateProcessor), processShards(templateProcessor, options));
+            templateProcessor.setVariable("records", new String[] { "a", "b", "c", "d" });
+            assertEquals(process(templateProcessor), processShards(templateProcessor, options));
+            Map<String, String> map = new LinkedHashMap<>();
+            map.put("x", "a");
+            map.put("y", "b");
+            templateProcessor.setVariable("records", map);
+            assertEquals(process(templateProcessor), processShards(templateProcessor, options));
+            final List<String> list = Arrays.asList("a", "b", "c");
+            templateProcessor.setVariable("records", new Iterable<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return list.iterator();
+                }
+            });
+            try {
+                templateProcessor.processSharded(options);
+                fail("Should have thrown exception");
+            }
+            catch (TemplateException e) {
+                assertEquals("Shard loop collection must be a collection, map or array", e.getMessage());
+            }
+            document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                    "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><list><xt:for name=\"r\" " +
+                    "from=\"${from}\" to=\"${to}\" by=\"${by}\"><r>${r}</r></xt:for></list></xt:template>")));
+            templateProcessor = new TemplateProcessor(document, null);
+            Object[][] ranges = { { 0, 10, 1 }, { 20, 3, 4 }, { 5, 5, 1 }, { 0.0, 1.0, 0.25 }, { 2.0, 0.5, 0.5 } };
+            for (Object[] range : ranges) {
+                templateProcessor.setVariable("from", range[0]);
+                templateProcessor.setVariable("to", range[1]);
+                templateProcessor.setVariable("by", range[2]);
+                assertEquals(process(templateProcessor), processShards(templateProcessor, options));
+            }
+        }
+        finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testCopyIntercepts() throws Exception {
+        Document document = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\"><xt:copy element=\"data\">" +
+                "<xt:intercept element=\"a\" name=\"e\"><A>${e.text}</A></xt:intercept>" +
+                "<xt:intercept element=\"b\"><B/></xt:intercept>" +
+                "<xt:intercept element=\"a\"><X/></xt:intercept>" +
+                "<xt:intercept element=\"c\"><xt:set name=\"s\" value=\"1\"/>${s}</xt:intercept>" +
+                "</xt:copy></xt:template>")));
+        Document data = XML.getDocumentBuilderNS().parse(new InputSource(new StringReader(
+                "<data><p q=\"1\"><a>x</a><b>y</b></p><a>z</a><c/><d r=\"2\"/></data>")));
+        TemplateProcessor templateProcessor = new TemplateProcessor(document, null);
+        templateProcessor.setVariable("data", new TemplateProcessor.ElementWrapper(data.getDocumentElement()));
+        assertEquals("<p q=\"1\"><A>x</A><B></B></p><A>z</A>1<d r=\"2\"></d>", process(templateProcessor));
+    }
+
+    @Test
+    public void testSchema() throws Exception {
+        Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(new File("xt-1.0.xsd"));
+        schema.newValidator().validate(new StreamSource(new StringReader(
+                "<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\" whitespace=\"minify\">" +
+                "<xt:parallel><xt:region name=\"header\"><h1>${title}</h1></xt:region><p>body</p></xt:parallel>" +
+                "</xt:template>")));
+    }
+
+    @Test
+    public void testLint() throws Exception {
+        File file = File.createTempFile("xtj", ".xml");
+        try {
+            Files.write(file.toPath(), ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">\n" +
+                    "<xt:for name=\"r\" collection=\"records\">\n" +
+                    "<xt:include href=\"${r}.xml\"/>\n" +
+                    "<xt:if test=\"config.enabled\"><p>${r}</p></xt:if>\n" +
+                    "<xt:set name=\"x\" value=\"r\"/>\n" +
+                    "</xt:for>\n" +
+                    "<xt:macro name=\"m\"><xt:call name=\"m\"/></xt:macro>\n" +
+                    "<xt:loop/>\n" +
+                    "<xt:parallel><xt:region name=\"r\"><p/></xt:region><xt:comment>c</xt:comment></xt:parallel>\n" +
+                    "</xt:template>\n").getBytes(StandardCharsets.UTF_8));
+            TemplateProcessor templateProcessor = TemplateProcessor.from(file);
+            List<LintFinding> findings = templateProcessor.lint();
+            assertEquals(5, findings.size());
+            assertEquals(LintFinding.Type.DYNAMIC_INCLUDE_IN_LOOP, findings.get(0).getType());
+            assertEquals(3, findings.get(0).getLine());
+            assertEquals(LintFinding.Type.LOOP_INVARIANT_EXPRESSION, findings.get(1).getType());
+            assertEquals(4, findings.get(1).getLine());
+            assertEquals(LintFinding.Type.SET_IN_LOOP, findings.get(2).getType());
+            assertEquals(LintFinding.Type.UNKNOWN_ELEMENT, findings.get(3).getType());
+            assertEquals(8, findings.get(3).getLine());
+            assertEquals(LintFinding.Type.UNBOUNDED_RECURSION, findings.get(4).getType());
+            assertEquals(7, findings.get(4).getLine());
+        }
+        finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static TemplateProcessor specializedProcessor(Document dom, String locale, String name) {
+        TemplateProcessor templateProcessor = new TemplateProcessor();
+        templateProcessor.addSpecializationKey("locale");
+        templateProcessor.setVariable("locale", locale);
+        templateProcessor.setVariable("name", name);
+        templateProcessor.setTemplate(dom, null);
+        return templateProcessor;
+    }
+
+    private static String processShards(TemplateProcessor templateProcessor, ShardOptions options)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (ShardResult result : templateProcessor.processSharded(options)) {
+            sb.append(readFile(result.getFile()));
+            Files.delete(result.getFile().toPath());
+        }
+        return sb.toString();
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    public static class CountingFunctions {
+
+        private int count;
+
+        public int next() {
+            return ++count;
+        }
+
+    }
+
+    public static class Counter {
+
+        private int count;
+
+        public int getCount() {
+            return ++count;
+        }
+
+    }
+
+    private static String process(TemplateProcessor templateProcessor) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        templateProcessor.process(baos);
+        return new String(baos.toByteArray());
+    }
+
 }
@@ -0,0 +1,117 @@
+/*
+ * @(#) TestTemplateRegistry.java
+ *
+ * xtj XML Templating for Java
+ * Copyright (c) 2026 Peter Wall
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.pwall.xml.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import net.pwall.xml.TemplateProcessor;
+import net.pwall.xml.TemplateRegistry;
+
+public class TestTemplateRegistry {
+
+    @Test
+    public void testLoadDirectory() throws Exception {
+        TemplateRegistry registry = new TemplateRegistry();
+        registry.loadDirectory(new File("src/test/resources"));
+        assertEquals(new HashSet<>(Arrays.asList("testtemp", "testxhtml")), registry.getNames());
+        assertTrue(registry.getFailures().isEmpty());
+        TemplateProcessor templateProcessor = registry.getProcessor("testtemp");
+        assertEquals("xt:template", templateProcessor.getDom().getDocumentElement().getTagName());
+        assertEquals(Collections.singleton("testxhtml"),
+                registry.warmUp(2, Collections.<String, Object>emptyMap()).keySet());
+        assertTrue(registry.warmUp(2, Collections.singletonMap("content", "text")).isEmpty());
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        Path directory = Files.createTempDirectory("xtj");
+        Path good = directory.resolve("good.xml");
+        Path bad = directory.resolve("bad.xml");
+        Path include = directory.resolve("sub").resolve("include.xml");
+        Files.createDirectory(include.getParent());
+        Files.write(good, "<a>good</a>".getBytes(StandardCharsets.UTF_8));
+        Files.write(bad, "<a>bad".getBytes(StandardCharsets.UTF_8));
+        Files.write(include, ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">" +
+                "<xt:include href=\"missing.xml\"/></xt:template>").getBytes(StandardCharsets.UTF_8));
+        try {
+            TemplateRegistry registry = new TemplateRegistry();
+            registry.loadDirectory(directory.toFile());
+            assertEquals(Collections.singleton("good"), registry.getNames());
+            assertEquals(new HashSet<>(Arrays.asList("bad", "sub/include")), registry.getFailures().keySet());
+        }
+        finally {
+            Files.delete(include);
+            Files.delete(include.getParent());
+            Files.delete(bad);
+            Files.delete(good);
+            Files.delete(directory);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testParallelRecursiveIncludes() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Path directory = Files.createTempDirectory("xtj");
+            List<Path> files = new ArrayList<>();
+            try {
+                for (String name : new String[] { "a", "b", "c", "d", "e", "f" }) {
+                    Path file = directory.resolve(name + ".xml");
+                    String include = name.equals("a") ? "<xt:if test=\"deep\"><xt:include href=\"b.xml\"/></xt:if>" :
+                            "<xt:include href=\"a.xml\"/>";
+                    Files.write(file, ("<xt:template xmlns:xt=\"http://pwall.net/xml/xt/1.0\">" + name + include +
+                            "</xt:template>").getBytes(StandardCharsets.UTF_8));
+                    files.add(file);
+                }
+                TemplateRegistry registry = new TemplateRegistry();
+                registry.loadDirectory(directory.toFile());
+                assertTrue(registry.getFailures().isEmpty());
+                TemplateProcessor templateProcessor = registry.getProcessor("b");
+                templateProcessor.setVariable("deep", false);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                templateProcessor.process(baos);
+                assertTrue(baos.toString("UTF-8").endsWith("ba"));
+            }
+            finally {
+                for (Path file : files)
+                    Files.delete(file);
+                Files.delete(directory);
+            }
+        }
+    }
+
+}